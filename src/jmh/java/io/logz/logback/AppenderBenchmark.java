@@ -0,0 +1,164 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import net.logstash.logback.encoder.LogstashEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.MDC;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End to end cost of logging one event through LogzioLogbackAppender: the logback event, formatting and the
+ * enqueue into the sender's queue, while the sender drains to a local listener in the background.
+ * Run with {@code -prof gc} to get gc.alloc.rate.norm, the bytes allocated per event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AppenderBenchmark {
+
+    public enum Scenario {
+        TEXT,
+        JSON,
+        ENCODER,
+        LINE,
+        EXCEPTION,
+        LARGE_MDC
+    }
+
+    private static final String TEXT_MESSAGE = "User {} logged in from {} after {} attempts";
+    private static final String JSON_MESSAGE = "{\"message\":\"User logged in\",\"user\":\"benchmark\",\"attempts\":3,"
+            + "\"client\":{\"ip\":\"10.0.0.1\",\"agent\":\"jmh\"}}";
+    private static final int LARGE_MDC_SIZE = 20;
+
+    @State(Scope.Benchmark)
+    public static class AppenderState {
+
+        @Param
+        public Scenario scenario;
+
+        @Param({"MEMORY", "DISK"})
+        public String queue;
+
+        @Param({"false", "true"})
+        public boolean compressRequests;
+
+        Logger logger;
+        Exception exception;
+        private LogzioLogbackAppender appender;
+        private BulkSink sink;
+        private Path queueDir;
+
+        @Setup
+        public void setUp() throws IOException {
+            sink = new BulkSink();
+            LoggerContext context = new LoggerContext();
+            appender = new LogzioLogbackAppender();
+            appender.setContext(context);
+            appender.setName("benchmark");
+            appender.setToken("benchmarkToken");
+            appender.setLogzioType("benchmark");
+            appender.setLogzioUrl(sink.getUrl());
+            appender.setDrainTimeoutSec(1);
+            appender.setCompressRequests(compressRequests);
+            if ("MEMORY".equals(queue)) {
+                appender.setInMemoryQueue(true);
+            } else {
+                queueDir = Files.createTempDirectory("logzio-benchmark");
+                appender.setQueueDir(queueDir.toString());
+            }
+            switch (scenario) {
+                case JSON:
+                    appender.setFormat("json");
+                    break;
+                case ENCODER:
+                    LogstashEncoder encoder = new LogstashEncoder();
+                    encoder.setContext(context);
+                    encoder.start();
+                    appender.setEncoder(encoder);
+                    break;
+                case LINE:
+                    appender.setLine(true);
+                    break;
+                default:
+                    break;
+            }
+            appender.start();
+            if (!appender.isStarted()) {
+                throw new IllegalStateException("Appender did not start, see the logback status messages");
+            }
+
+            logger = context.getLogger("io.logz.benchmark.AppenderBenchmark");
+            logger.setLevel(Level.INFO);
+            logger.setAdditive(false);
+            logger.addAppender(appender);
+            exception = new IllegalStateException("Benchmark failure", new IOException("Connection reset"));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            appender.stop();
+            sink.close();
+            if (queueDir != null) {
+                try (Stream<Path> files = Files.walk(queueDir)) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        @Setup
+        public void setUp(AppenderState appenderState) {
+            MDC.clear();
+            if (appenderState.scenario == Scenario.LARGE_MDC) {
+                for (int i = 0; i < LARGE_MDC_SIZE; i++) {
+                    MDC.put("mdcKey" + i, "mdc value number " + i);
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            MDC.clear();
+        }
+    }
+
+    @Benchmark
+    public void append(AppenderState state, ThreadState threadState) {
+        switch (state.scenario) {
+            case JSON:
+                state.logger.info(JSON_MESSAGE);
+                break;
+            case EXCEPTION:
+                state.logger.error(TEXT_MESSAGE, "benchmark", "10.0.0.1", 3, state.exception);
+                break;
+            default:
+                state.logger.info(TEXT_MESSAGE, "benchmark", "10.0.0.1", 3);
+                break;
+        }
+    }
+}
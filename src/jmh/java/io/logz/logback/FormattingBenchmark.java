@@ -0,0 +1,93 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one event into the bytes the sender enqueues, without logback and the sender around it.
+ * The event is built once, so its formatted message, MDC and caller data are already cached.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormattingBenchmark {
+
+    @Param({"text", "json"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean withException;
+
+    @Param({"0", "20"})
+    public int mdcSize;
+
+    private LogzioLogbackAppender appender;
+    private JsonEventWriter jsonEventWriter;
+    private LoggingEvent event;
+
+    @Setup
+    public void setUp() {
+        LoggerContext context = new LoggerContext();
+        appender = new LogzioLogbackAppender();
+        appender.setContext(context);
+        appender.setToken("benchmarkToken");
+        appender.setLogzioType("benchmark");
+        appender.setLogzioUrl("http://127.0.0.1:1");
+        appender.setInMemoryQueue(true);
+        appender.setDrainTimeoutSec(60);
+        appender.setFormat(format);
+        appender.setAdditionalFields("env=benchmark;region=us-east-1;cluster=jmh");
+        appender.start();
+        jsonEventWriter = appender.getJsonEventWriter();
+
+        Logger logger = context.getLogger("io.logz.benchmark.FormattingBenchmark");
+        String message = "json".equals(format)
+                ? "{\"message\":\"User logged in\",\"user\":\"benchmark\",\"attempts\":3}"
+                : "User {} logged in from {} after {} attempts";
+        Throwable throwable = withException ? new IllegalStateException("Benchmark failure") : null;
+        event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, throwable,
+                new Object[]{"benchmark", "10.0.0.1", 3});
+        Map<String, String> mdc = new HashMap<>();
+        for (int i = 0; i < mdcSize; i++) {
+            mdc.put("mdcKey" + i, "mdc value number " + i);
+        }
+        event.setMDCPropertyMap(mdc);
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.stop();
+    }
+
+    @Benchmark
+    public byte[] streaming() {
+        return jsonEventWriter.write(event);
+    }
+
+    @Benchmark
+    public byte[] jsonObject() {
+        return appender.formatMessageAsJsonInternal(event).toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+package io.logz.logback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when the appender queue is flushed and how large its bulks are, instead of shipping whatever accumulated
+ * in a fixed drain interval. A flush is requested as soon as a target bulk size was enqueued since the last one, the
+ * caller also flushes every max linger time, whichever comes first.
+ * <p>
+ * The target is the logs enqueued over one round trip to the listener, both smoothed over the last flushes and round
+ * trips, between a lower and an upper bound: small bulks that go out right away under light load, and under heavy
+ * load or with a far away listener, bulks large enough to keep up without growing past the upper bound.
+ */
+final class AdaptiveBatcher {
+
+    private static final double SMOOTHING = 0.2;
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long minBytes;
+    private final long maxBytes;
+    private final Runnable flush;
+    private final LongSupplier nanoClock;
+    private final AtomicLong enqueuedBytes = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // enqueuedBytes when the last flush started
+    private volatile long flushedBytes;
+    private volatile long targetBytes;
+    // Guarded by this
+    private long lastFlushNanos;
+    private double bytesPerSecond;
+    private double roundTripSeconds;
+
+    /**
+     * @param flush requests a flush, called on the logging thread once per target reached, it must not block
+     */
+    AdaptiveBatcher(long minBytes, long maxBytes, Runnable flush, LongSupplier nanoClock) {
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.flush = flush;
+        this.nanoClock = nanoClock;
+        this.targetBytes = minBytes;
+        this.lastFlushNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Called for every log enqueued, a single atomic add unless it is the one reaching the target
+     */
+    void onEnqueued(int bytes) {
+        if (enqueuedBytes.addAndGet(bytes) - flushedBytes >= targetBytes && flushRequested.compareAndSet(false, true)) {
+            flush.run();
+        }
+    }
+
+    /**
+     * Called when a flush starts, whatever triggered it
+     */
+    synchronized void onFlush() {
+        long now = nanoClock.getAsLong();
+        long enqueued = enqueuedBytes.get();
+        long elapsed = now - lastFlushNanos;
+        if (elapsed > 0) {
+            bytesPerSecond = smooth(bytesPerSecond, (enqueued - flushedBytes) * NANOS_PER_SECOND / elapsed);
+        }
+        lastFlushNanos = now;
+        flushedBytes = enqueued;
+        updateTarget();
+    }
+
+    /**
+     * Called when a flush is done, the next target reached requests another one. Requests made while a flush is
+     * running are left to it, it ships what was enqueued meanwhile
+     */
+    void onFlushed() {
+        flushRequested.set(false);
+    }
+
+    /**
+     * Called with the time a bulk request took, from sending it to the listener's response
+     */
+    synchronized void onRoundTrip(long nanos) {
+        roundTripSeconds = smooth(roundTripSeconds, nanos / NANOS_PER_SECOND);
+        updateTarget();
+    }
+
+    /**
+     * @return the size a bulk should be, between the bounds
+     */
+    long targetBytes() {
+        return targetBytes;
+    }
+
+    private void updateTarget() {
+        targetBytes = Math.max(minBytes, Math.min(maxBytes, (long) (bytesPerSecond * roundTripSeconds)));
+    }
+
+    private static double smooth(double average, double sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,256 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.logz.sender.SenderStatusReporter;
+import io.opentelemetry.api.trace.SpanContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events from the logging threads over to background workers through an {@link EventRing},
+ * so formatting and enqueueing to the sender never run on the caller's thread.
+ */
+final class AsyncDispatcher {
+
+    enum WaitStrategy {
+        /** Spin, then yield, then park for a millisecond at a time. Low idle CPU, no cost for producers */
+        SLEEPING,
+        /** Spin, then yield. Lowest latency that still lets other threads run, burns a core per worker */
+        YIELDING,
+        /** Never gives up the core. Only for dedicated hardware */
+        BUSY_SPIN,
+        /** Park until a producer wakes the worker up. Lowest idle CPU, producers pay an unpark on idle workers */
+        BLOCKING;
+
+        static WaitStrategy fromString(String value) {
+            return WaitStrategy.valueOf(value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCKING_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_RING_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    // How long an event that is never dropped right away waits for a free slot before it is dropped anyway
+    private static final long FULL_RING_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int DRAIN_BATCH_SIZE = 64;
+
+    private final EventRing ring;
+    private final EventRing.EventHandler handler;
+    private final WaitStrategy waitStrategy;
+    private final boolean dropInfoWhenFull;
+    private final long shutdownTimeoutMillis;
+    private final SenderStatusReporter reporter;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger parkedWorkers = new AtomicInteger();
+    // Producers between checking the dispatcher runs and publishing, stop waits for them before the last drain
+    private final AtomicInteger publishingProducers = new AtomicInteger();
+    private final LongAdder droppedEvents = new LongAdder();
+    private volatile boolean running;
+    private volatile boolean dropReported;
+
+    AsyncDispatcher(int capacity, int workerCount, WaitStrategy waitStrategy, boolean dropInfoWhenFull,
+                    long shutdownTimeoutMillis, String name, EventRing.EventHandler handler, SenderStatusReporter reporter) {
+        this.ring = new EventRing(capacity);
+        this.handler = (loggingEvent, spanContext, callerLine) -> {
+            try {
+                handler.onEvent(loggingEvent, spanContext, callerLine);
+            } catch (RuntimeException e) {
+                reporter.warning("Failed to handle an async logging event", e);
+            }
+        };
+        this.waitStrategy = waitStrategy;
+        this.dropInfoWhenFull = dropInfoWhenFull;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.reporter = reporter;
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("logzio-async-" + name + "-%d")
+                .setDaemon(true)
+                .build();
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            workers.add(threadFactory.newThread(this::runWorker));
+        }
+    }
+
+    void start() {
+        running = true;
+        workers.forEach(Thread::start);
+    }
+
+    /**
+     * Publishes the event to the workers. Events at INFO and below are dropped if the ring is full and
+     * dropInfoWhenFull is set, anything else waits for a free slot, up to a second. Events are dropped once
+     * the dispatcher is stopping.
+     *
+     * @return false if the event was dropped
+     */
+    boolean dispatch(ILoggingEvent loggingEvent, SpanContext spanContext, String callerLine) {
+        publishingProducers.incrementAndGet();
+        try {
+            if (!running) {
+                onDrop();
+                return false;
+            }
+            return publish(loggingEvent, spanContext, callerLine);
+        } finally {
+            publishingProducers.decrementAndGet();
+        }
+    }
+
+    private boolean publish(ILoggingEvent loggingEvent, SpanContext spanContext, String callerLine) {
+        long deadline = 0;
+        while (!ring.offer(loggingEvent, spanContext, callerLine)) {
+            if (!running || (dropInfoWhenFull && !loggingEvent.getLevel().isGreaterOrEqual(Level.WARN))) {
+                onDrop();
+                return false;
+            }
+            if (deadline == 0) {
+                deadline = System.nanoTime() + FULL_RING_TIMEOUT_NANOS;
+            } else if (System.nanoTime() - deadline > 0) {
+                onDrop();
+                return false;
+            }
+            LockSupport.parkNanos(FULL_RING_PARK_NANOS);
+        }
+        wakeUpWorkers();
+        return true;
+    }
+
+    private void wakeUpWorkers() {
+        if (waitStrategy == WaitStrategy.BLOCKING && parkedWorkers.get() > 0) {
+            workers.forEach(LockSupport::unpark);
+        }
+    }
+
+    /**
+     * Publishes the events to the workers, as many at a time as there are free slots for. When the ring is full,
+     * each event gets the same treatment as in {@link #dispatch}.
+     *
+     * @param callerLines the caller line of each event, at the same index, or null if none has one
+     * @return the number of events dropped
+     */
+    int dispatchBatch(List<? extends ILoggingEvent> loggingEvents, SpanContext spanContext, String[] callerLines) {
+        publishingProducers.incrementAndGet();
+        try {
+            if (!running) {
+                loggingEvents.forEach(loggingEvent -> onDrop());
+                return loggingEvents.size();
+            }
+            int dropped = 0;
+            int index = 0;
+            while (index < loggingEvents.size()) {
+                int published = ring.offerBatch(loggingEvents, index, spanContext, callerLines);
+                if (published > 0) {
+                    index += published;
+                    wakeUpWorkers();
+                } else {
+                    String callerLine = callerLines == null ? null : callerLines[index];
+                    if (!publish(loggingEvents.get(index), spanContext, callerLine)) {
+                        dropped++;
+                    }
+                    index++;
+                }
+            }
+            return dropped;
+        } finally {
+            publishingProducers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stops accepting events, lets the workers drain what is left in the ring, up to the shutdown timeout.
+     * Events published while the workers were exiting are handled on the calling thread.
+     */
+    void stop() {
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+        boolean workersExited = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+            try {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workersExited = false;
+                break;
+            }
+            workersExited &= !worker.isAlive();
+        }
+        if (workersExited) {
+            // A producer that saw the dispatcher running may publish after the workers found the ring empty
+            while (publishingProducers.get() > 0 && System.nanoTime() - deadline < 0) {
+                LockSupport.parkNanos(FULL_RING_PARK_NANOS);
+            }
+            int drained;
+            do {
+                drained = ring.drain(handler, DRAIN_BATCH_SIZE);
+            } while (drained > 0 && System.nanoTime() - deadline < 0);
+        }
+        if (!ring.isEmpty()) {
+            reporter.warning("Async workers did not finish within " + shutdownTimeoutMillis + "ms, "
+                    + ring.size() + " events were not sent");
+        }
+        long dropped = droppedEvents.sum();
+        if (dropped > 0) {
+            reporter.warning("Async queue was full, " + dropped + " events were dropped since start");
+        }
+    }
+
+    int size() {
+        return ring.size();
+    }
+
+    private void onDrop() {
+        droppedEvents.increment();
+        if (!dropReported) {
+            dropReported = true;
+            reporter.warning("Async queue of " + ring.capacity() + " events is full, dropping events. "
+                    + "Further drops are counted and reported when the appender stops");
+        }
+    }
+
+    private void runWorker() {
+        int idleRounds = 0;
+        while (running || !ring.isEmpty()) {
+            if (ring.drain(handler, DRAIN_BATCH_SIZE) > 0) {
+                idleRounds = 0;
+            } else {
+                idleRounds = idle(idleRounds);
+            }
+        }
+    }
+
+    private int idle(int idleRounds) {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN) {
+            Thread.onSpinWait();
+            return idleRounds;
+        }
+        if (idleRounds < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (idleRounds < SPIN_TRIES + YIELD_TRIES || waitStrategy == WaitStrategy.YIELDING) {
+            Thread.yield();
+        } else if (waitStrategy == WaitStrategy.BLOCKING) {
+            parkedWorkers.incrementAndGet();
+            try {
+                if (running && ring.isEmpty()) {
+                    LockSupport.parkNanos(this, BLOCKING_PARK_NANOS);
+                }
+            } finally {
+                parkedWorkers.decrementAndGet();
+            }
+        } else {
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        return idleRounds < SPIN_TRIES + YIELD_TRIES ? idleRounds + 1 : idleRounds;
+    }
+}
@@ -0,0 +1,121 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import io.logz.sender.SenderStatusReporter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Grades the appender's response to a filling queue, instead of letting the queue drop whatever comes once full:
+ * <ul>
+ *     <li>above the shed watermark, events at or below the shed level are dropped, so the room left goes to
+ *     the more severe ones</li>
+ *     <li>above the block watermark, the logging thread waits, up to a timeout, for the queue to drain below it</li>
+ *     <li>when full, events are dropped before being formatted, rather than by the queue</li>
+ * </ul>
+ * The fill level is the queue's size over its limit, read from the queue on every event without taking its lock.
+ */
+final class BackpressurePolicy {
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final DoubleSupplier fillLevelSupplier;
+    private final double shedWatermark;
+    private final Level shedLevel;
+    private final double blockWatermark;
+    private final long blockTimeoutNanos;
+    private final SenderStatusReporter reporter;
+    private final LongAdder shedEvents = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private volatile double fillLevel;
+    private volatile boolean shedding;
+
+    /**
+     * @param fillLevelSupplier the queue's size over its limit, 1 or more once it drops logs, cheap to call
+     * @param shedWatermark     fill level from which events at or below shedLevel are dropped
+     * @param blockWatermark    fill level from which the logging thread waits for the queue to drain
+     * @param blockTimeoutNanos how long the logging thread waits at most, the event is then let through
+     */
+    BackpressurePolicy(DoubleSupplier fillLevelSupplier, double shedWatermark, Level shedLevel, double blockWatermark,
+                       long blockTimeoutNanos, SenderStatusReporter reporter) {
+        this.fillLevelSupplier = fillLevelSupplier;
+        this.shedWatermark = shedWatermark;
+        this.shedLevel = shedLevel;
+        this.blockWatermark = blockWatermark;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Must be called on the logging thread, it may wait for the queue to drain
+     *
+     * @return false if the event must be dropped
+     */
+    boolean admit(ILoggingEvent loggingEvent) {
+        double level = fillLevel();
+        if (level < shedWatermark) {
+            return true;
+        }
+        if (loggingEvent.getLevel().levelInt <= shedLevel.levelInt) {
+            shedEvents.increment();
+            return false;
+        }
+        if (level >= blockWatermark) {
+            level = awaitDrainBelow(blockWatermark);
+        }
+        if (level >= 1) {
+            droppedEvents.increment();
+            return false;
+        }
+        return true;
+    }
+
+    long getShedEvents() {
+        return shedEvents.sum();
+    }
+
+    long getDroppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    private double awaitDrainBelow(double watermark) {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        double level = fillLevel;
+        while (level >= watermark && deadline - System.nanoTime() > 0) {
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            level = fillLevel();
+        }
+        return level;
+    }
+
+    /**
+     * @return the current fill level
+     */
+    double fillLevel() {
+        double level;
+        try {
+            level = fillLevelSupplier.getAsDouble();
+        } catch (RuntimeException e) {
+            reporter.warning("Could not measure the queue fill level", e);
+            level = 0;
+        }
+        fillLevel = level;
+        // Once per episode, not once per shed event
+        if (level >= shedWatermark && !shedding) {
+            shedding = true;
+            reporter.warning(String.format("Logz.io: Queue is %d%% full, dropping %s and lower events until it drains",
+                    Math.round(level * 100), shedLevel));
+        } else if (level < shedWatermark && shedding) {
+            shedding = false;
+            reporter.info("Logz.io: Queue drained below " + Math.round(shedWatermark * 100) + "%, no longer dropping events");
+        }
+        return level;
+    }
+}
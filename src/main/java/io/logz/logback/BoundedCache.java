@@ -0,0 +1,43 @@
+package io.logz.logback;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent cache for values worked out from keys that are few in practice, such as logger names, MDC keys or call
+ * sites. Past its capacity new values are not cached, and are worked out every time by the caller, so an unexpected
+ * number of keys can't grow it without bound.
+ */
+final class BoundedCache<K, V> {
+
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private final ConcurrentHashMap<K, V> values = new ConcurrentHashMap<>();
+    private final int capacity;
+
+    BoundedCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    BoundedCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the cached value, null if there is none
+     */
+    V get(K key) {
+        return values.get(key);
+    }
+
+    /**
+     * Caches the value unless the cache is full or the key already has one
+     *
+     * @return the value
+     */
+    V put(K key, V value) {
+        if (value != null && values.size() < capacity) {
+            values.putIfAbsent(key, value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,233 @@
+package io.logz.logback;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Builds the body of a bulk request the appender ships itself: the logs separated by new lines, compressed.
+ * A compressor keeps its deflater or zstd context and its buffers from one bulk to the next, instead of allocating
+ * them for every request as GZIPOutputStream does. Not thread safe, a shipping thread borrows one for a bulk.
+ */
+abstract class BulkCompressor {
+
+    enum Codec {
+        NONE,
+        GZIP,
+        // Needs zstd-jni on the classpath
+        ZSTD;
+
+        static Codec fromString(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // Use the codec's own default level
+    static final int DEFAULT_LEVEL = -1;
+    private static final String ZSTD_CLASS = "com.github.luben.zstd.ZstdCompressCtx";
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private byte[] input = new byte[INITIAL_BUFFER_SIZE];
+    // Written by the codecs, through body(int) unless the body is the input itself
+    byte[] body;
+    private int bodySize;
+
+    static BulkCompressor create(Codec codec, int level) {
+        switch (codec) {
+            case GZIP:
+                return new GzipCompressor(level);
+            case ZSTD:
+                return new ZstdCompressor(level);
+            default:
+                return new IdentityCompressor();
+        }
+    }
+
+    /**
+     * @return true if the level is one the codec accepts, or {@link #DEFAULT_LEVEL}
+     */
+    static boolean isValidLevel(Codec codec, int level) {
+        if (level == DEFAULT_LEVEL) {
+            return true;
+        }
+        switch (codec) {
+            case GZIP:
+                return level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+            case ZSTD:
+                return level >= 1 && level <= 22;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if zstd-jni is on the classpath and its native library loads on this platform
+     */
+    static boolean isZstdAvailable() {
+        try {
+            Class.forName(ZSTD_CLASS, false, BulkCompressor.class.getClassLoader());
+            new ZstdCompressor(DEFAULT_LEVEL).close();
+            return true;
+        } catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the body with the logs, for {@link #body()} and {@link #bodySize()}
+     */
+    final void compress(List<byte[]> logs) {
+        int size = 0;
+        for (byte[] log : logs) {
+            size += log.length + 1;
+        }
+        if (input.length < size) {
+            input = new byte[Math.max(size, input.length * 2)];
+        }
+        int position = 0;
+        for (byte[] log : logs) {
+            System.arraycopy(log, 0, input, position, log.length);
+            position += log.length;
+            input[position++] = '\n';
+        }
+        bodySize = compress(input, size);
+    }
+
+    final byte[] body() {
+        return body;
+    }
+
+    final int bodySize() {
+        return bodySize;
+    }
+
+    /**
+     * @return the Content-Encoding header value, null for none
+     */
+    abstract String contentEncoding();
+
+    /**
+     * Releases the native memory of the compressor, it can't be used after
+     */
+    void close() {
+    }
+
+    /**
+     * Compresses the input into the body buffer, from {@link #body(int)}
+     *
+     * @return the size of the compressed body
+     */
+    abstract int compress(byte[] input, int length);
+
+    /**
+     * @return the body buffer, with room for at least capacity bytes. The content is kept when it grows
+     */
+    final byte[] body(int capacity) {
+        if (body == null || body.length < capacity) {
+            body = body == null ? new byte[capacity] : Arrays.copyOf(body, Math.max(capacity, body.length * 2));
+        }
+        return body;
+    }
+
+    private static final class IdentityCompressor extends BulkCompressor {
+
+        @Override
+        String contentEncoding() {
+            return null;
+        }
+
+        @Override
+        int compress(byte[] input, int length) {
+            // The input buffer is the body, it is only written again by the next compress
+            body = input;
+            return length;
+        }
+    }
+
+    /**
+     * Writes the gzip header and trailer itself, around a raw deflate stream, so one Deflater serves every bulk
+     */
+    private static final class GzipCompressor extends BulkCompressor {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        private static final int TRAILER_SIZE = 8;
+
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+
+        private GzipCompressor(int level) {
+            this.deflater = new Deflater(level == DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION : level, true);
+        }
+
+        @Override
+        String contentEncoding() {
+            return "gzip";
+        }
+
+        @Override
+        int compress(byte[] input, int length) {
+            deflater.reset();
+            crc.reset();
+            crc.update(input, 0, length);
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            // Compressed logs are a fraction of their size, the buffer only grows for incompressible ones
+            byte[] out = body(HEADER.length + length / 2 + TRAILER_SIZE);
+            System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+            int position = HEADER.length;
+            while (!deflater.finished()) {
+                if (position == out.length) {
+                    out = body(out.length + 1);
+                }
+                position += deflater.deflate(out, position, out.length - position);
+            }
+            out = body(position + TRAILER_SIZE);
+            writeIntLittleEndian(out, position, (int) crc.getValue());
+            writeIntLittleEndian(out, position + Integer.BYTES, length);
+            return position + TRAILER_SIZE;
+        }
+
+        @Override
+        void close() {
+            deflater.end();
+        }
+
+        private static void writeIntLittleEndian(byte[] out, int position, int value) {
+            out[position] = (byte) value;
+            out[position + 1] = (byte) (value >>> 8);
+            out[position + 2] = (byte) (value >>> 16);
+            out[position + 3] = (byte) (value >>> 24);
+        }
+    }
+
+    /**
+     * Only loaded when zstd is the codec, zstd-jni is an optional dependency
+     */
+    private static final class ZstdCompressor extends BulkCompressor {
+        private final ZstdCompressCtx context = new ZstdCompressCtx();
+
+        private ZstdCompressor(int level) {
+            context.setLevel(level == DEFAULT_LEVEL ? Zstd.defaultCompressionLevel() : level);
+        }
+
+        @Override
+        String contentEncoding() {
+            return "zstd";
+        }
+
+        @Override
+        int compress(byte[] input, int length) {
+            byte[] out = body((int) Zstd.compressBound(length));
+            return context.compressByteArray(out, 0, out.length, input, 0, length);
+        }
+
+        @Override
+        void close() {
+            context.close();
+        }
+    }
+}
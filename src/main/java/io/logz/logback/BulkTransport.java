@@ -0,0 +1,143 @@
+package io.logz.logback;
+
+import io.logz.sender.HttpsRequestConfiguration;
+import io.logz.sender.SenderStatusReporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Sends one bulk request to the listener, for the bulks the appender ships itself. Thread safe, the bulks in flight
+ * share one transport.
+ */
+abstract class BulkTransport {
+
+    enum Type {
+        // HttpURLConnection, as the sender uses, one request at a time per connection
+        URLCONNECTION,
+        // java.net.http.HttpClient, HTTP/2 where the listener negotiates it, over connections kept open between bulks
+        HTTP2;
+
+        static Type fromString(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    final HttpsRequestConfiguration configuration;
+    private final SenderStatusReporter reporter;
+
+    BulkTransport(HttpsRequestConfiguration configuration, SenderStatusReporter reporter) {
+        this.configuration = configuration;
+        this.reporter = reporter;
+    }
+
+    static BulkTransport create(Type type, HttpsRequestConfiguration configuration, SenderStatusReporter reporter) {
+        return type == Type.HTTP2
+                ? new HttpClientTransport(configuration, reporter)
+                : new UrlConnectionTransport(configuration, reporter);
+    }
+
+    /**
+     * @return the response code, a 400 or a 401 is reported here
+     */
+    abstract int send(BulkCompressor compressor) throws IOException, InterruptedException;
+
+    final void reportRejection(int responseCode, String output) {
+        if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST) {
+            reporter.warning("Got 400 from logzio, here is the output: " + output);
+        } else if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            reporter.error("Logz.io: Got forbidden! Your token is not right. Unfortunately, dropping logs. Message: "
+                    + output);
+        }
+    }
+
+    private static final class UrlConnectionTransport extends BulkTransport {
+
+        private UrlConnectionTransport(HttpsRequestConfiguration configuration, SenderStatusReporter reporter) {
+            super(configuration, reporter);
+        }
+
+        @Override
+        int send(BulkCompressor compressor) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) configuration.getLogzioListenerUrl().openConnection();
+            try {
+                conn.setRequestMethod(configuration.getRequestMethod());
+                conn.setRequestProperty("Content-length", String.valueOf(compressor.bodySize()));
+                conn.setRequestProperty("Content-Type", "text/plain");
+                if (compressor.contentEncoding() != null) {
+                    conn.setRequestProperty("Content-Encoding", compressor.contentEncoding());
+                }
+                conn.setReadTimeout(configuration.getSocketTimeout());
+                conn.setConnectTimeout(configuration.getConnectTimeout());
+                conn.setDoOutput(true);
+                conn.setDoInput(true);
+                try (OutputStream out = conn.getOutputStream()) {
+                    out.write(compressor.body(), 0, compressor.bodySize());
+                }
+                int responseCode = conn.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST) {
+                    reportRejection(responseCode, readErrorStream(conn));
+                } else if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                    reportRejection(responseCode, conn.getResponseMessage());
+                }
+                return responseCode;
+            } finally {
+                conn.disconnect();
+            }
+        }
+
+        private static String readErrorStream(HttpURLConnection conn) throws IOException {
+            try (InputStream errorStream = conn.getErrorStream()) {
+                return errorStream == null ? "" : new String(errorStream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    /**
+     * One client for every bulk: it keeps its connections open between requests, and multiplexes the bulks in flight
+     * as streams of a single HTTP/2 connection. A listener that doesn't negotiate HTTP/2 gets HTTP/1.1 requests on
+     * kept-alive connections.
+     */
+    private static final class HttpClientTransport extends BulkTransport {
+        private final HttpClient client;
+        private final URI uri;
+
+        private HttpClientTransport(HttpsRequestConfiguration configuration, SenderStatusReporter reporter) {
+            super(configuration, reporter);
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofMillis(configuration.getConnectTimeout()))
+                    .build();
+            try {
+                this.uri = configuration.getLogzioListenerUrl().toURI();
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid logzio url " + configuration.getLogzioListenerUrl(), e);
+            }
+        }
+
+        @Override
+        int send(BulkCompressor compressor) throws IOException, InterruptedException {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofMillis(configuration.getSocketTimeout()))
+                    .header("Content-Type", "text/plain")
+                    .method(configuration.getRequestMethod(),
+                            HttpRequest.BodyPublishers.ofByteArray(compressor.body(), 0, compressor.bodySize()));
+            if (compressor.contentEncoding() != null) {
+                request.header("Content-Encoding", compressor.contentEncoding());
+            }
+            HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            reportRejection(response.statusCode(), response.body());
+            return response.statusCode();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package io.logz.logback;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable, reusable byte buffer that knows how to write JSON string literals straight as UTF-8.
+ * Not thread safe, every thread is expected to hold its own instance.
+ */
+final class ByteArrayBuilder extends OutputStream {
+
+    // Buffers that grew past this size (a huge stack trace, for example) are released on reset
+    // so a single outlier does not pin memory for the lifetime of the thread
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ESCAPES = new byte[128];
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            ESCAPES[i] = 'u';
+        }
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\f'] = 'f';
+    }
+
+    private final int initialCapacity;
+    private byte[] buf;
+    private int count;
+
+    ByteArrayBuilder(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.buf = new byte[initialCapacity];
+    }
+
+    void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[initialCapacity];
+        }
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Writes a string that is known to hold only ASCII characters, without quoting or escaping it
+     */
+    void writeAscii(String value) {
+        int len = value.length();
+        ensureCapacity(count + len);
+        for (int i = 0; i < len; i++) {
+            buf[count++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a range of the value as UTF-8, as is, for text that is already valid JSON
+     */
+    void writeUtf8(String value, int from, int to) {
+        // 3 bytes is the longest output of a single char, a surrogate pair takes 4 bytes for 2 chars
+        ensureCapacity(count + (to - from) * 3);
+        byte[] b = buf;
+        int c = count;
+        for (int i = from; i < to; i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                b[c++] = (byte) ch;
+            } else if (ch < 0x800) {
+                b[c++] = (byte) (0xC0 | (ch >> 6));
+                b[c++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                if (Character.isHighSurrogate(ch) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+                    b[c++] = (byte) (0xF0 | (codePoint >> 18));
+                    b[c++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    b[c++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    b[c++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    b[c++] = '?';
+                }
+            } else {
+                b[c++] = (byte) (0xE0 | (ch >> 12));
+                b[c++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                b[c++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        count = c;
+    }
+
+    /**
+     * Writes a non negative number in decimal, left padded with zeros to the given width
+     */
+    void writeDigits(int value, int width) {
+        ensureCapacity(count + width);
+        for (int i = count + width - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += width;
+    }
+
+    /**
+     * Writes the value as a quoted JSON string, escaped the same way Gson escapes it
+     */
+    void writeJsonString(String value) {
+        int len = value.length();
+        ensureCapacity(count + len + 2);
+        byte[] b = buf;
+        int c = count;
+        b[c++] = '"';
+        int i = 0;
+        for (; i < len; i++) {
+            char ch = value.charAt(i);
+            if (ch >= 0x80 || ESCAPES[ch] != 0) {
+                break;
+            }
+            b[c++] = (byte) ch;
+        }
+        count = c;
+        if (i < len) {
+            writeEscapedTail(value, i, len);
+        }
+        write('"');
+    }
+
+    private void writeEscapedTail(String value, int from, int len) {
+        // 6 bytes is the longest output a single char can produce, for an escaped control character
+        ensureCapacity(count + (len - from) * 6);
+        byte[] b = buf;
+        int c = count;
+        for (int i = from; i < len; i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                byte escape = ESCAPES[ch];
+                if (escape == 0) {
+                    b[c++] = (byte) ch;
+                } else if (escape == 'u') {
+                    b[c++] = '\\';
+                    b[c++] = 'u';
+                    b[c++] = '0';
+                    b[c++] = '0';
+                    b[c++] = HEX[ch >> 4];
+                    b[c++] = HEX[ch & 0xF];
+                } else {
+                    b[c++] = '\\';
+                    b[c++] = escape;
+                }
+            } else if (ch < 0x800) {
+                b[c++] = (byte) (0xC0 | (ch >> 6));
+                b[c++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (ch == '\u2028' || ch == '\u2029') {
+                b[c++] = '\\';
+                b[c++] = 'u';
+                b[c++] = '2';
+                b[c++] = '0';
+                b[c++] = '2';
+                b[c++] = HEX[ch & 0xF];
+            } else if (Character.isSurrogate(ch)) {
+                if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+                    b[c++] = (byte) (0xF0 | (codePoint >> 18));
+                    b[c++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    b[c++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    b[c++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    // Same replacement String.getBytes(UTF_8) uses for a malformed surrogate
+                    b[c++] = '?';
+                }
+            } else {
+                b[c++] = (byte) (0xE0 | (ch >> 12));
+                b[c++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                b[c++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        count = c;
+    }
+
+    void ensureCapacity(int minCapacity) {
+        if (minCapacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(minCapacity, buf.length << 1));
+        }
+    }
+}
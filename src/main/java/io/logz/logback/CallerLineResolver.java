@@ -0,0 +1,133 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.pattern.LineOfCallerConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Finds the line the event was logged from, for {@code line=true}, which is the most expensive field to add:
+ * logback gets it from the stack trace of a new Throwable, built in full on every event.
+ * <p>
+ * Only events at or above a minimum level, and one in every sampleRate of them, get the line. With the stack walker
+ * enabled, the stack is walked lazily, up to a bounded number of frames, and only as far as the first frame out of
+ * the logging framework. The line of that frame is cached by call site, so the stack trace element is only built
+ * the first time an event is logged from a given place.
+ * <p>
+ * Must be called on the thread that logged the event.
+ */
+final class CallerLineResolver {
+
+    private static final String[] DEFAULT_FRAMEWORK_PACKAGES = {"ch.qos.logback.", "org.slf4j."};
+
+    private final LineOfCallerConverter lineOfCallerConverter;
+    private final Level minLevel;
+    private final int sampleRate;
+    private final boolean stackWalker;
+    private final int maxDepth;
+    private final String[] frameworkPackages;
+    private final BoundedCache<CallSite, String> lines = new BoundedCache<>();
+    private final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    /**
+     * @param minLevel          events below that level get no line, null for all of them
+     * @param sampleRate        one in every sampleRate events gets a line
+     * @param stackWalker       find the caller walking the stack instead of through the event's caller data
+     * @param maxDepth          number of frames the stack walker looks through before giving up to the event's caller data
+     * @param frameworkPackages packages to skip on top of logback's and slf4j's, such as logging facades
+     */
+    CallerLineResolver(LineOfCallerConverter lineOfCallerConverter, Level minLevel, int sampleRate, boolean stackWalker,
+                       int maxDepth, List<String> frameworkPackages) {
+        this.lineOfCallerConverter = lineOfCallerConverter;
+        this.minLevel = minLevel;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.stackWalker = stackWalker;
+        this.maxDepth = maxDepth;
+        List<String> packages = new ArrayList<>(List.of(DEFAULT_FRAMEWORK_PACKAGES));
+        packages.addAll(frameworkPackages);
+        this.frameworkPackages = packages.toArray(new String[0]);
+    }
+
+    /**
+     * @return the line, "?" if it can't be found, or null if the event was left out by the level or the sampling
+     */
+    String resolve(ILoggingEvent loggingEvent) {
+        if (minLevel != null && !loggingEvent.getLevel().isGreaterOrEqual(minLevel)) {
+            return null;
+        }
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return null;
+        }
+        if (stackWalker && !loggingEvent.hasCallerData()) {
+            // Events not logged through a logger, as in appendBatch, have no logging framework frames to walk past
+            String line = walk();
+            if (line != null) {
+                return line;
+            }
+        }
+        return lineOfCallerConverter.convert(loggingEvent);
+    }
+
+    private String walk() {
+        Optional<StackWalker.StackFrame> caller = walker.walk(frames -> frames
+                .limit(maxDepth)
+                // The appender's own frames, then the logging framework's, then the caller
+                .dropWhile(frame -> !isFramework(frame.getClassName()))
+                .dropWhile(frame -> isFramework(frame.getClassName()))
+                .findFirst());
+        if (!caller.isPresent()) {
+            return null;
+        }
+        StackWalker.StackFrame frame = caller.get();
+        CallSite callSite = new CallSite(frame.getDeclaringClass(), frame.getMethodName(), frame.getDescriptor(),
+                frame.getByteCodeIndex());
+        String line = lines.get(callSite);
+        if (line == null) {
+            line = lines.put(callSite, frame.getLineNumber() < 0 ? "?" : Integer.toString(frame.getLineNumber()));
+        }
+        return line;
+    }
+
+    private boolean isFramework(String className) {
+        for (String frameworkPackage : frameworkPackages) {
+            if (className.startsWith(frameworkPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class CallSite {
+        private final Class<?> declaringClass;
+        private final String methodName;
+        private final String descriptor;
+        private final int byteCodeIndex;
+
+        private CallSite(Class<?> declaringClass, String methodName, String descriptor, int byteCodeIndex) {
+            this.declaringClass = declaringClass;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.byteCodeIndex = byteCodeIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CallSite)) {
+                return false;
+            }
+            CallSite other = (CallSite) o;
+            return byteCodeIndex == other.byteCodeIndex && declaringClass == other.declaringClass
+                    && methodName.equals(other.methodName) && descriptor.equals(other.descriptor);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(declaringClass, methodName, descriptor, byteCodeIndex);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import io.opentelemetry.api.trace.SpanContext;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free, multi-producer multi-consumer ring of logging events.
+ * Every slot carries a sequence number that tells producers and consumers whose turn it is, so claiming a
+ * slot costs a single CAS and no locks are taken on either side.
+ */
+final class EventRing {
+
+    interface EventHandler {
+        void onEvent(ILoggingEvent loggingEvent, SpanContext spanContext, String callerLine);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final ILoggingEvent[] events;
+    private final SpanContext[] spanContexts;
+    private final String[] callerLines;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    EventRing(int requestedCapacity) {
+        capacity = capacityFor(requestedCapacity);
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        events = new ILoggingEvent[capacity];
+        spanContexts = new SpanContext[capacity];
+        callerLines = new String[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    static int capacityFor(int requestedCapacity) {
+        int capacity = 2;
+        while (capacity < requestedCapacity && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(ILoggingEvent loggingEvent, SpanContext spanContext, String callerLine) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events[index] = loggingEvent;
+                    spanContexts[index] = spanContext;
+                    callerLines[index] = callerLine;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Publishes as many of the events as there are free slots for, starting at the given index, claiming all of
+     * their slots with a single CAS
+     *
+     * @param callerLines the caller line of each event, at the same index, or null if none has one
+     * @return the number of events published, 0 if the ring is full
+     */
+    int offerBatch(List<? extends ILoggingEvent> loggingEvents, int from, SpanContext spanContext, String[] callerLines) {
+        int wanted = loggingEvents.size() - from;
+        if (wanted <= 0) {
+            return 0;
+        }
+        while (true) {
+            long position = tail.get();
+            int free = 0;
+            while (free < wanted && sequences.get((int) ((position + free) & mask)) == position + free) {
+                free++;
+            }
+            if (free == 0) {
+                if (sequences.get((int) (position & mask)) < position) {
+                    return 0;
+                }
+                // Another producer moved the tail meanwhile
+                continue;
+            }
+            if (tail.compareAndSet(position, position + free)) {
+                for (int i = 0; i < free; i++) {
+                    int index = (int) ((position + i) & mask);
+                    events[index] = loggingEvents.get(from + i);
+                    spanContexts[index] = spanContext;
+                    this.callerLines[index] = callerLines == null ? null : callerLines[from + i];
+                    sequences.lazySet(index, position + i + 1);
+                }
+                return free;
+            }
+        }
+    }
+
+    /**
+     * Takes up to maxEvents of the oldest published events out of the ring, claiming them with a single CAS,
+     * and hands them to the handler one by one, on the calling thread. If the handler throws, the rest of the
+     * claimed events are dropped.
+     *
+     * @return the number of events handled, 0 if the ring is empty
+     */
+    int drain(EventHandler handler, int maxEvents) {
+        while (true) {
+            long position = head.get();
+            int available = 0;
+            while (available < maxEvents && sequences.get((int) ((position + available) & mask)) == position + available + 1) {
+                available++;
+            }
+            if (available == 0) {
+                if (sequences.get((int) (position & mask)) < position + 1) {
+                    return 0;
+                }
+                // Another consumer moved the head meanwhile
+                continue;
+            }
+            if (head.compareAndSet(position, position + available)) {
+                int handled = 0;
+                try {
+                    while (handled < available) {
+                        int index = (int) ((position + handled) & mask);
+                        ILoggingEvent loggingEvent = events[index];
+                        SpanContext spanContext = spanContexts[index];
+                        String callerLine = callerLines[index];
+                        release(index, position + handled);
+                        handled++;
+                        handler.onEvent(loggingEvent, spanContext, callerLine);
+                    }
+                } finally {
+                    // A failing handler drops the rest of the batch, the slots still have to be handed back
+                    for (; handled < available; handled++) {
+                        release((int) ((position + handled) & mask), position + handled);
+                    }
+                }
+                return available;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest event out of the ring and hands it to the handler, on the calling thread
+     *
+     * @return false if the ring is empty
+     */
+    boolean poll(EventHandler handler) {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    ILoggingEvent loggingEvent = events[index];
+                    SpanContext spanContext = spanContexts[index];
+                    String callerLine = callerLines[index];
+                    release(index, position);
+                    handler.onEvent(loggingEvent, spanContext, callerLine);
+                    return true;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    private void release(int index, long position) {
+        events[index] = null;
+        spanContexts[index] = null;
+        callerLines[index] = null;
+        sequences.lazySet(index, position + capacity);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,229 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Renders the exception of an event, reusing the rendering of an identical exception chain seen recently.
+ * The same exception thrown in a loop renders to the same multi-kilobyte string every time, comparing its class
+ * names, messages and frames to a cached one is much cheaper than rendering it again.
+ * <p>
+ * Optionally deduplicates repeated exceptions: within a window, only the first exception with a given fingerprint,
+ * a hash of the class names and frames of the chain, is sent in full. The following ones are sent as their first
+ * line along with the fingerprint and how many times it was seen in the window.
+ */
+final class ExceptionRenderer {
+
+    static final String EXCEPTION_FINGERPRINT = "exception_fingerprint";
+    static final String EXCEPTION_COUNT = "exception_count";
+
+    private final ThrowableProxyConverter throwableProxyConverter;
+    private final int cacheSize;
+    private final long dedupWindowMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<ChainKey, Rendered> renderings;
+    private final Map<String, Window> windows;
+
+    /**
+     * @param cacheSize         number of renderings kept, 0 to render every exception
+     * @param dedupWindowMillis how long after sending an exception in full the same fingerprint is only referenced,
+     *                          0 to always send exceptions in full
+     */
+    ExceptionRenderer(ThrowableProxyConverter throwableProxyConverter, int cacheSize, long dedupWindowMillis) {
+        this.throwableProxyConverter = throwableProxyConverter;
+        this.cacheSize = cacheSize;
+        this.dedupWindowMillis = dedupWindowMillis;
+        this.renderings = lruMap(cacheSize);
+        this.windows = lruMap(Math.max(cacheSize, 1));
+    }
+
+    boolean isDeduplicating() {
+        return dedupWindowMillis > 0;
+    }
+
+    /**
+     * @return the rendering of the exception of an event that has one
+     */
+    Rendering render(ILoggingEvent loggingEvent) {
+        IThrowableProxy throwableProxy = loggingEvent.getThrowableProxy();
+        if (cacheSize == 0 && !isDeduplicating()) {
+            return new Rendering(throwableProxyConverter.convert(loggingEvent), null, 0);
+        }
+
+        ChainKey key = ChainKey.of(throwableProxy);
+        Rendered rendered = cachedRendering(key);
+        if (rendered == null) {
+            rendered = new Rendered(throwableProxyConverter.convert(loggingEvent), key.fingerprint());
+            if (cacheSize > 0) {
+                lock.lock();
+                try {
+                    renderings.put(key, rendered);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (!isDeduplicating()) {
+            return new Rendering(rendered.text, null, 0);
+        }
+
+        long count = countInWindow(rendered.fingerprint, loggingEvent.getTimeStamp());
+        String text = count == 1 ? rendered.text : firstLine(throwableProxy);
+        return new Rendering(text, rendered.fingerprint, count);
+    }
+
+    private Rendered cachedRendering(ChainKey key) {
+        if (cacheSize == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            return renderings.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long countInWindow(String fingerprint, long timestamp) {
+        lock.lock();
+        try {
+            Window window = windows.get(fingerprint);
+            if (window == null || timestamp - window.start >= dedupWindowMillis || timestamp < window.start) {
+                window = new Window(timestamp);
+                windows.put(fingerprint, window);
+            }
+            return ++window.count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String firstLine(IThrowableProxy throwableProxy) {
+        String message = throwableProxy.getMessage();
+        return message == null ? throwableProxy.getClassName() : throwableProxy.getClassName() + ": " + message;
+    }
+
+    private static <K, V> Map<K, V> lruMap(int maxEntries) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static final class Rendering {
+        final String exception;
+        // Null unless deduplicating
+        final String fingerprint;
+        final long count;
+
+        private Rendering(String exception, String fingerprint, long count) {
+            this.exception = exception;
+            this.fingerprint = fingerprint;
+            this.count = count;
+        }
+    }
+
+    private static final class Rendered {
+        private final String text;
+        private final String fingerprint;
+
+        private Rendered(String text, String fingerprint) {
+            this.text = text;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static final class Window {
+        private final long start;
+        private long count;
+
+        private Window(long start) {
+            this.start = start;
+        }
+    }
+
+    /**
+     * Everything the rendering of an exception chain depends on, flattened: for each throwable, its class name,
+     * message and number of frames in common with its enclosing one, then its frames.
+     */
+    private static final class ChainKey {
+        private final Object[] parts;
+        private final int hash;
+        private final long structuralHash;
+
+        private ChainKey(Object[] parts, long structuralHash) {
+            this.parts = parts;
+            this.hash = Arrays.hashCode(parts);
+            this.structuralHash = structuralHash;
+        }
+
+        static ChainKey of(IThrowableProxy throwableProxy) {
+            List<Object> parts = new ArrayList<>();
+            long structuralHash = flatten(throwableProxy, parts, 17);
+            return new ChainKey(parts.toArray(), structuralHash);
+        }
+
+        /**
+         * @return the structural hash updated with the class names and frames of the throwable and its children.
+         * It only uses String hash codes, whose values are specified, so a fingerprint is the same on every JVM.
+         */
+        private static long flatten(IThrowableProxy throwableProxy, List<Object> parts, long structuralHash) {
+            parts.add(throwableProxy.getClassName());
+            parts.add(throwableProxy.getMessage());
+            parts.add(throwableProxy.getCommonFrames());
+            structuralHash = mix(structuralHash, throwableProxy.getClassName().hashCode());
+            StackTraceElementProxy[] frames = throwableProxy.getStackTraceElementProxyArray();
+            parts.add(frames == null ? 0 : frames.length);
+            if (frames != null) {
+                for (StackTraceElementProxy frame : frames) {
+                    StackTraceElement element = frame.getStackTraceElement();
+                    parts.add(element);
+                    structuralHash = mix(structuralHash, element.getClassName().hashCode());
+                    structuralHash = mix(structuralHash, element.getMethodName().hashCode());
+                    structuralHash = mix(structuralHash, element.getLineNumber());
+                }
+            }
+            IThrowableProxy[] suppressed = throwableProxy.getSuppressed();
+            parts.add(suppressed == null ? 0 : suppressed.length);
+            if (suppressed != null) {
+                for (IThrowableProxy child : suppressed) {
+                    structuralHash = flatten(child, parts, structuralHash);
+                }
+            }
+            IThrowableProxy cause = throwableProxy.getCause();
+            if (cause != null && !throwableProxy.isCyclic()) {
+                structuralHash = flatten(cause, parts, structuralHash);
+            }
+            return structuralHash;
+        }
+
+        private static long mix(long hash, int value) {
+            return hash * 1000003L ^ value;
+        }
+
+        String fingerprint() {
+            return String.format("%016x", structuralHash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ChainKey && hash == ((ChainKey) o).hash && Arrays.equals(parts, ((ChainKey) o).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
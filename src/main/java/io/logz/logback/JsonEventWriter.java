@@ -0,0 +1,431 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import io.logz.sender.com.google.gson.Gson;
+import io.logz.sender.com.google.gson.JsonElement;
+import io.logz.sender.com.google.gson.JsonObject;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.sdk.resources.Resource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static io.logz.logback.ExceptionRenderer.EXCEPTION_COUNT;
+import static io.logz.logback.ExceptionRenderer.EXCEPTION_FINGERPRINT;
+import static io.logz.logback.LogzioLogbackAppender.EXCEPTION;
+import static io.logz.logback.LogzioLogbackAppender.LINE;
+import static io.logz.logback.LogzioLogbackAppender.LOGGER;
+import static io.logz.logback.LogzioLogbackAppender.LOGLEVEL;
+import static io.logz.logback.LogzioLogbackAppender.MARKER;
+import static io.logz.logback.LogzioLogbackAppender.MESSAGE;
+import static io.logz.logback.LogzioLogbackAppender.THREAD;
+import static io.logz.logback.LogzioLogbackAppender.TIMESTAMP;
+
+/**
+ * Writes a logging event as a JSON document straight into a per-thread byte buffer, producing the same
+ * document {@link LogzioLogbackAppender} builds as a {@link JsonObject}, without the intermediate tree.
+ * When a key is set by more than one source, the value of the source the JsonObject path writes last wins.
+ */
+final class JsonEventWriter {
+
+    // Limits LogzioSender enforces on JsonObject logs, documents that cross them take the JsonObject path
+    static final int MAX_MESSAGE_LENGTH = 32700;
+    static final int MAX_LOG_SIZE_IN_BYTES = 500000;
+
+    private static final String TRACE_ID = "trace_id";
+    private static final String SPAN_ID = "span_id";
+    private static final String SERVICE_NAME = "service_name";
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final Gson gson = new Gson();
+
+    private static final byte[] MESSAGE_KEY = fieldName(MESSAGE);
+    private static final byte[] TIMESTAMP_KEY = fieldName(TIMESTAMP);
+    private static final byte[] LOGLEVEL_KEY = fieldName(LOGLEVEL);
+    private static final byte[] MARKER_KEY = fieldName(MARKER);
+    private static final byte[] LOGGER_KEY = fieldName(LOGGER);
+    private static final byte[] THREAD_KEY = fieldName(THREAD);
+    private static final byte[] LINE_KEY = fieldName(LINE);
+    private static final byte[] EXCEPTION_KEY = fieldName(EXCEPTION);
+    private static final byte[] EXCEPTION_FINGERPRINT_KEY = fieldName(EXCEPTION_FINGERPRINT);
+    private static final byte[] EXCEPTION_COUNT_KEY = fieldName(EXCEPTION_COUNT);
+    private static final byte[] TRACE_ID_KEY = fieldName(TRACE_ID);
+    private static final byte[] SPAN_ID_KEY = fieldName(SPAN_ID);
+    private static final byte[] SERVICE_NAME_KEY = fieldName(SERVICE_NAME);
+
+    private final ThreadLocal<ByteArrayBuilder> buffers = ThreadLocal.withInitial(() -> new ByteArrayBuilder(INITIAL_BUFFER_SIZE));
+    private final ThreadLocal<JsonMessageScanner> scanners = ThreadLocal.withInitial(JsonMessageScanner::new);
+    private final boolean jsonFormat;
+    private final boolean spliceJsonMessages;
+    private final boolean structuredArguments;
+    private final boolean formatMessage;
+    private final boolean line;
+    private final boolean addOpentelemetryContext;
+    private final CallerLineResolver callerLineResolver;
+    private final ExceptionRenderer exceptionRenderer;
+    private final TimestampEncoder timestampEncoder;
+    private final Map<String, String> additionalFields;
+    private final MdcProjection mdcProjection;
+    private final boolean lineShadowedByAdditionalFields;
+    private final boolean exceptionFingerprintShadowedByAdditionalFields;
+    private final boolean exceptionCountShadowedByAdditionalFields;
+    // The additional fields never change after start, they are encoded once and copied into every document.
+    // With a span, the fields LogzioSender adds for it win over additional fields of the same name.
+    private final byte[] additionalFieldsBlock;
+    private final byte[] additionalFieldsBlockWithSpan;
+    private final String serviceName;
+
+    /**
+     * @param structuredArguments adds the {@link StructuredFields} of the event, for the text format
+     * @param formatMessage       false to ship the message template as the message, for the text format
+     */
+    JsonEventWriter(boolean jsonFormat, boolean spliceJsonMessages, boolean structuredArguments, boolean formatMessage,
+                    boolean line, boolean addOpentelemetryContext, CallerLineResolver callerLineResolver, ExceptionRenderer exceptionRenderer,
+                    TimestampEncoder timestampEncoder, Map<String, String> additionalFields, MdcProjection mdcProjection) {
+        this.jsonFormat = jsonFormat;
+        this.spliceJsonMessages = spliceJsonMessages;
+        this.structuredArguments = structuredArguments;
+        this.formatMessage = formatMessage;
+        this.line = line;
+        this.addOpentelemetryContext = addOpentelemetryContext;
+        this.callerLineResolver = callerLineResolver;
+        this.exceptionRenderer = exceptionRenderer;
+        this.timestampEncoder = timestampEncoder;
+        this.additionalFields = additionalFields;
+        this.mdcProjection = mdcProjection;
+        this.lineShadowedByAdditionalFields = additionalFields.containsKey(LINE);
+        this.exceptionFingerprintShadowedByAdditionalFields = additionalFields.containsKey(EXCEPTION_FINGERPRINT);
+        this.exceptionCountShadowedByAdditionalFields = additionalFields.containsKey(EXCEPTION_COUNT);
+        this.additionalFieldsBlock = encodeAdditionalFields(additionalFields, false);
+        this.additionalFieldsBlockWithSpan = encodeAdditionalFields(additionalFields, true);
+        this.serviceName = addOpentelemetryContext
+                ? Resource.getDefault().getAttributes().get(AttributeKey.stringKey("service.name"))
+                : null;
+    }
+
+    /**
+     * Must be called on the thread that logged the event when the line is enabled
+     */
+    byte[] write(ILoggingEvent loggingEvent) {
+        return write(loggingEvent, null, line ? callerLineResolver.resolve(loggingEvent) : null);
+    }
+
+    /**
+     * @param capturedSpanContext span context captured on the logging thread, null to use the current one
+     * @param callerLine          line resolved on the logging thread, null to leave it out
+     * @return the encoded document, or null if the event is too large to be streamed and has to go through
+     * the sender's JsonObject size handling
+     */
+    byte[] write(ILoggingEvent loggingEvent, SpanContext capturedSpanContext, String callerLine) {
+        Map<String, String> mdc = loggingEvent.getMDCPropertyMap();
+        boolean hasMarker = loggingEvent.getMarker() != null;
+        boolean hasException = loggingEvent.getThrowableProxy() != null;
+        boolean hasLine = line && callerLine != null;
+        SpanContext spanContext = capturedSpanContext != null ? capturedSpanContext : currentSpanContext();
+        boolean hasSpan = spanContext != null;
+
+        ByteArrayBuilder out = buffers.get();
+        out.reset();
+        out.write('{');
+
+        if (!writeMessageFields(out, loggingEvent, mdc, hasMarker, hasLine, hasException, hasSpan)) {
+            return null;
+        }
+
+        if (structuredArguments) {
+            StructuredFields.write(out, loggingEvent, formatMessage, name -> mdcProjection.containsField(mdc, name)
+                    || isShadowedAfterMdc(name, hasMarker, hasLine, hasException, hasSpan));
+        }
+
+        if (mdc != null) {
+            for (Map.Entry<String, String> entry : mdc.entrySet()) {
+                MdcProjection.Field field = mdcProjection.field(entry.getKey(), mdc);
+                if (field != null && !isShadowedAfterMdc(field.name, hasMarker, hasLine, hasException, hasSpan)) {
+                    separator(out);
+                    out.write(field.encodedName);
+                    writeNullableString(out, entry.getValue());
+                }
+            }
+        }
+
+        separator(out);
+        out.write(TIMESTAMP_KEY);
+        timestampEncoder.write(out, loggingEvent);
+        out.write(',');
+        out.write(LOGLEVEL_KEY);
+        out.writeJsonString(loggingEvent.getLevel().levelStr);
+
+        if (hasMarker) {
+            out.write(',');
+            out.write(MARKER_KEY);
+            out.writeJsonString(loggingEvent.getMarker().toString());
+        }
+
+        out.write(',');
+        out.write(LOGGER_KEY);
+        writeNullableString(out, loggingEvent.getLoggerName());
+        out.write(',');
+        out.write(THREAD_KEY);
+        writeNullableString(out, loggingEvent.getThreadName());
+
+        if (hasLine && !lineShadowedByAdditionalFields) {
+            out.write(',');
+            out.write(LINE_KEY);
+            out.writeJsonString(callerLine);
+        }
+
+        if (hasException) {
+            out.write(',');
+            out.write(EXCEPTION_KEY);
+            ExceptionRenderer.Rendering rendering = exceptionRenderer.render(loggingEvent);
+            writeNullableString(out, rendering.exception);
+            if (rendering.fingerprint != null) {
+                if (!exceptionFingerprintShadowedByAdditionalFields) {
+                    out.write(',');
+                    out.write(EXCEPTION_FINGERPRINT_KEY);
+                    out.writeJsonString(rendering.fingerprint);
+                }
+                if (!exceptionCountShadowedByAdditionalFields) {
+                    out.write(',');
+                    out.write(EXCEPTION_COUNT_KEY);
+                    out.writeAscii(Long.toString(rendering.count));
+                }
+            }
+        }
+
+        out.write(hasSpan ? additionalFieldsBlockWithSpan : additionalFieldsBlock);
+
+        if (hasSpan) {
+            out.write(',');
+            out.write(TRACE_ID_KEY);
+            out.writeJsonString(spanContext.getTraceId());
+            out.write(',');
+            out.write(SPAN_ID_KEY);
+            out.writeJsonString(spanContext.getSpanId());
+            out.write(',');
+            out.write(SERVICE_NAME_KEY);
+            writeNullableString(out, serviceName);
+        }
+
+        out.write('}');
+        if (out.size() > MAX_LOG_SIZE_IN_BYTES) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the additional fields as JSON members, each one preceded by a comma
+     */
+    private static byte[] encodeAdditionalFields(Map<String, String> additionalFields, boolean withSpan) {
+        ByteArrayBuilder out = new ByteArrayBuilder(INITIAL_BUFFER_SIZE);
+        for (Map.Entry<String, String> entry : additionalFields.entrySet()) {
+            String key = entry.getKey();
+            if (!withSpan || !isOpentelemetryField(key)) {
+                out.write(',');
+                out.writeJsonString(key);
+                out.write(':');
+                writeNullableString(out, entry.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return false if the message is too long to be streamed
+     */
+    private boolean writeMessage(ByteArrayBuilder out, ILoggingEvent loggingEvent, Map<String, String> mdc) {
+        if (mdcProjection.containsField(mdc, MESSAGE)) {
+            // The MDC value overrides the message, it is written along with the rest of the MDC
+            return !isTooLong(mdcProjection.fieldValue(mdc, MESSAGE));
+        }
+        String message = formatMessage ? loggingEvent.getFormattedMessage() : loggingEvent.getMessage();
+        if (isTooLong(message)) {
+            return false;
+        }
+        out.write(MESSAGE_KEY);
+        writeNullableString(out, message);
+        return true;
+    }
+
+    /**
+     * @return false if the message is too long to be streamed
+     */
+    private boolean writeMessageFields(ByteArrayBuilder out, ILoggingEvent loggingEvent, Map<String, String> mdc,
+                                       boolean hasMarker, boolean hasLine, boolean hasException, boolean hasSpan) {
+        if (jsonFormat) {
+            String message = loggingEvent.getFormattedMessage();
+            if (spliceJsonMessages) {
+                JsonMessageScanner scanner = scanners.get();
+                if (!scanner.scan(message)) {
+                    return writeMessage(out, loggingEvent, mdc);
+                }
+                if (!mayHoldTooLongMessage(scanner, mdcProjection.containsField(mdc, MESSAGE))) {
+                    return spliceJsonMessage(out, message, scanner, mdc, hasMarker, hasLine, hasException, hasSpan);
+                }
+            }
+            JsonObject jsonMessage = parseJsonMessage(message);
+            if (jsonMessage != null) {
+                return writeJsonMessage(out, jsonMessage, mdc, hasMarker, hasLine, hasException, hasSpan);
+            }
+        }
+        return writeMessage(out, loggingEvent, mdc);
+    }
+
+    /**
+     * Copies the members of a scanned JSON formatted message as they are, following {@code format=json} semantics
+     *
+     * @return false if the message is too long to be streamed
+     */
+    private boolean spliceJsonMessage(ByteArrayBuilder out, String message, JsonMessageScanner scanner,
+                                      Map<String, String> mdc, boolean hasMarker, boolean hasLine, boolean hasException,
+                                      boolean hasSpan) {
+        if (mdcProjection.containsField(mdc, MESSAGE) && isTooLong(mdcProjection.fieldValue(mdc, MESSAGE))) {
+            return false;
+        }
+        for (int i = 0; i < scanner.memberCount(); i++) {
+            String key = scanner.key(i);
+            if (!mdcProjection.containsField(mdc, key) && !isShadowedAfterMdc(key, hasMarker, hasLine, hasException, hasSpan)) {
+                separator(out);
+                out.writeJsonString(key);
+                out.write(':');
+                out.writeUtf8(message, scanner.valueStart(i), scanner.valueEnd(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the message member may cross the length limit once unescaped, only a full parse can tell
+     */
+    private static boolean mayHoldTooLongMessage(JsonMessageScanner scanner, boolean mdcMessage) {
+        if (mdcMessage) {
+            return false;
+        }
+        for (int i = 0; i < scanner.memberCount(); i++) {
+            if (MESSAGE.equals(scanner.key(i))) {
+                // The quotes aside, a JSON string never unescapes to more characters than it is written with
+                return scanner.valueEnd(i) - scanner.valueStart(i) - 2 >= MAX_MESSAGE_LENGTH;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the members of a JSON formatted message, following {@code format=json} semantics
+     *
+     * @return false if the message is too long to be streamed
+     */
+    private boolean writeJsonMessage(ByteArrayBuilder out, JsonObject jsonMessage, Map<String, String> mdc,
+                                     boolean hasMarker, boolean hasLine, boolean hasException, boolean hasSpan) {
+        if (mdcProjection.containsField(mdc, MESSAGE)) {
+            if (isTooLong(mdcProjection.fieldValue(mdc, MESSAGE))) {
+                return false;
+            }
+        } else {
+            JsonElement message = jsonMessage.get(MESSAGE);
+            if (message != null && message.isJsonPrimitive() && isTooLong(message.getAsString())) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<String, JsonElement> member : jsonMessage.entrySet()) {
+            String key = member.getKey();
+            if (!mdcProjection.containsField(mdc, key) && !isShadowedAfterMdc(key, hasMarker, hasLine, hasException, hasSpan)) {
+                separator(out);
+                out.writeJsonString(key);
+                out.write(':');
+                out.write(member.getValue().toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a message of the json format is shipped as the members of its object. With spliceJsonMessages,
+     * only the objects the scan accepts are, anything else is shipped as text without being parsed
+     */
+    boolean mayBeJsonMessage(String message) {
+        return spliceJsonMessages ? scanners.get().scan(message) : JsonMessageScanner.startsLikeObject(message);
+    }
+
+    private static JsonObject parseJsonMessage(String message) {
+        if (!JsonMessageScanner.startsLikeObject(message)) {
+            return null;
+        }
+        try {
+            return gson.fromJson(message, JsonElement.class).getAsJsonObject();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean isTooLong(String message) {
+        return message != null && message.length() >= MAX_MESSAGE_LENGTH;
+    }
+
+    private boolean isShadowedAfterMdc(String key, boolean hasMarker, boolean hasLine, boolean hasException,
+                                       boolean hasSpan) {
+        switch (key) {
+            case TIMESTAMP:
+            case LOGLEVEL:
+            case LOGGER:
+            case THREAD:
+                return true;
+            case MARKER:
+                return hasMarker;
+            case LINE:
+                return hasLine || lineShadowedByAdditionalFields;
+            case EXCEPTION:
+                return hasException;
+            case EXCEPTION_FINGERPRINT:
+            case EXCEPTION_COUNT:
+                return (hasException && exceptionRenderer.isDeduplicating()) || additionalFields.containsKey(key);
+            default:
+                return (hasSpan && isOpentelemetryField(key)) || additionalFields.containsKey(key);
+        }
+    }
+
+    /**
+     * @return the valid span context of the current thread, or null if there is none or it shouldn't be added
+     */
+    SpanContext currentSpanContext() {
+        if (!addOpentelemetryContext) {
+            return null;
+        }
+        SpanContext spanContext = Span.current().getSpanContext();
+        return spanContext.isValid() ? spanContext : null;
+    }
+
+    /**
+     * Adds the fields LogzioSender adds for the current span, for a span captured on another thread
+     */
+    void addOpentelemetryContext(JsonObject logMessage, SpanContext spanContext) {
+        logMessage.addProperty(TRACE_ID, spanContext.getTraceId());
+        logMessage.addProperty(SPAN_ID, spanContext.getSpanId());
+        logMessage.addProperty(SERVICE_NAME, serviceName);
+    }
+
+    private static boolean isOpentelemetryField(String key) {
+        return TRACE_ID.equals(key) || SPAN_ID.equals(key) || SERVICE_NAME.equals(key);
+    }
+
+    private static void writeNullableString(ByteArrayBuilder out, String value) {
+        if (value == null) {
+            out.writeAscii("null");
+        } else {
+            out.writeJsonString(value);
+        }
+    }
+
+    static void separator(ByteArrayBuilder out) {
+        if (out.size() > 1) {
+            out.write(',');
+        }
+    }
+
+    private static byte[] fieldName(String name) {
+        return ("\"" + name + "\":").getBytes(StandardCharsets.UTF_8);
+    }
+}
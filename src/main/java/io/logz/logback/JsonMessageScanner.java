@@ -0,0 +1,348 @@
+package io.logz.logback;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Strict, allocation light JSON object validator for {@code format=json} messages.
+ * It only checks the structure of the document and records where each top level member is, so a message that
+ * passes can be copied into the log document as is, without being parsed into a tree and serialized again.
+ * Not thread safe, every thread is expected to hold its own instance.
+ */
+final class JsonMessageScanner {
+
+    // Deeper documents are left to Gson rather than risking the stack of the logging thread
+    private static final int MAX_DEPTH = 128;
+    // Up to this many members duplicate keys are looked for one by one, past it in a set
+    private static final int KEY_SET_THRESHOLD = 16;
+
+    private String json;
+    private int length;
+    private int pos;
+    private int memberCount;
+    private boolean stringHadEscapes;
+    private String[] keys = new String[8];
+    private int[] valueStarts = new int[8];
+    private int[] valueEnds = new int[8];
+    // The keys of a message with more than KEY_SET_THRESHOLD members, empty otherwise
+    private final HashSet<String> keySet = new HashSet<>();
+
+    /**
+     * @return true if the first non whitespace character is an opening brace, the only way a message can hold
+     * a JSON object. Lets plain text messages skip parsing, and the exception that comes with it, altogether.
+     */
+    static boolean startsLikeObject(String message) {
+        if (message == null) {
+            return false;
+        }
+        for (int i = 0; i < message.length(); i++) {
+            char ch = message.charAt(i);
+            if (!isWhitespace(ch)) {
+                return ch == '{';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans the message and records its top level members
+     *
+     * @return true if the message is a single, strictly valid JSON object whose top level keys are unique and
+     * hold no escape sequences, false if it can't be copied as it is
+     */
+    boolean scan(String message) {
+        Arrays.fill(keys, 0, memberCount, null);
+        if (!keySet.isEmpty()) {
+            keySet.clear();
+        }
+        json = message;
+        length = message == null ? 0 : message.length();
+        pos = 0;
+        memberCount = 0;
+        if (!startsLikeObject(message)) {
+            return false;
+        }
+        skipWhitespace();
+        if (!topLevelObject()) {
+            return false;
+        }
+        skipWhitespace();
+        return pos == length;
+    }
+
+    int memberCount() {
+        return memberCount;
+    }
+
+    String key(int member) {
+        return keys[member];
+    }
+
+    /**
+     * @return index in the message of the first character of the member's value
+     */
+    int valueStart(int member) {
+        return valueStarts[member];
+    }
+
+    /**
+     * @return index in the message right after the last character of the member's value
+     */
+    int valueEnd(int member) {
+        return valueEnds[member];
+    }
+
+    private boolean topLevelObject() {
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return true;
+        }
+        while (true) {
+            if (peek() != '"') {
+                return false;
+            }
+            int keyStart = pos + 1;
+            if (!string()) {
+                return false;
+            }
+            int keyEnd = pos - 1;
+            if (stringHadEscapes) {
+                return false;
+            }
+            String key = json.substring(keyStart, keyEnd);
+            if (isDuplicate(key)) {
+                return false;
+            }
+            skipWhitespace();
+            if (peek() != ':') {
+                return false;
+            }
+            pos++;
+            skipWhitespace();
+            int valueStart = pos;
+            if (!value(1)) {
+                return false;
+            }
+            addMember(key, valueStart, pos);
+            skipWhitespace();
+            char ch = peek();
+            pos++;
+            if (ch == '}') {
+                return true;
+            }
+            if (ch != ',') {
+                return false;
+            }
+            skipWhitespace();
+        }
+    }
+
+    private boolean value(int depth) {
+        switch (peek()) {
+            case '{':
+                return object(depth + 1);
+            case '[':
+                return array(depth + 1);
+            case '"':
+                return string();
+            case 't':
+                return literal("true");
+            case 'f':
+                return literal("false");
+            case 'n':
+                return literal("null");
+            default:
+                return number();
+        }
+    }
+
+    private boolean object(int depth) {
+        if (depth > MAX_DEPTH) {
+            return false;
+        }
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return true;
+        }
+        while (true) {
+            if (peek() != '"' || !string()) {
+                return false;
+            }
+            skipWhitespace();
+            if (peek() != ':') {
+                return false;
+            }
+            pos++;
+            skipWhitespace();
+            if (!value(depth)) {
+                return false;
+            }
+            skipWhitespace();
+            char ch = peek();
+            pos++;
+            if (ch == '}') {
+                return true;
+            }
+            if (ch != ',') {
+                return false;
+            }
+            skipWhitespace();
+        }
+    }
+
+    private boolean array(int depth) {
+        if (depth > MAX_DEPTH) {
+            return false;
+        }
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return true;
+        }
+        while (true) {
+            if (!value(depth)) {
+                return false;
+            }
+            skipWhitespace();
+            char ch = peek();
+            pos++;
+            if (ch == ']') {
+                return true;
+            }
+            if (ch != ',') {
+                return false;
+            }
+            skipWhitespace();
+        }
+    }
+
+    private boolean string() {
+        pos++;
+        stringHadEscapes = false;
+        while (pos < length) {
+            char ch = json.charAt(pos++);
+            if (ch == '"') {
+                return true;
+            }
+            if (ch < 0x20) {
+                return false;
+            }
+            if (ch == '\\') {
+                stringHadEscapes = true;
+                if (pos >= length) {
+                    return false;
+                }
+                char escaped = json.charAt(pos++);
+                if (escaped == 'u') {
+                    if (pos + 4 > length) {
+                        return false;
+                    }
+                    for (int i = 0; i < 4; i++) {
+                        if (!isHexDigit(json.charAt(pos++))) {
+                            return false;
+                        }
+                    }
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean literal(String literal) {
+        if (!json.startsWith(literal, pos)) {
+            return false;
+        }
+        pos += literal.length();
+        return true;
+    }
+
+    private boolean number() {
+        if (peek() == '-') {
+            pos++;
+        }
+        if (peek() == '0') {
+            pos++;
+        } else if (!digits()) {
+            return false;
+        }
+        if (peek() == '.') {
+            pos++;
+            if (!digits()) {
+                return false;
+            }
+        }
+        char ch = peek();
+        if (ch == 'e' || ch == 'E') {
+            pos++;
+            ch = peek();
+            if (ch == '+' || ch == '-') {
+                pos++;
+            }
+            return digits();
+        }
+        return true;
+    }
+
+    private boolean digits() {
+        int start = pos;
+        while (pos < length && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    private char peek() {
+        return pos < length ? json.charAt(pos) : 0;
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isHexDigit(char ch) {
+        return (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F');
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r';
+    }
+
+    /**
+     * Adds the key to the set once there are enough members for it, a scan stays linear in the number of members
+     */
+    private boolean isDuplicate(String key) {
+        if (memberCount < KEY_SET_THRESHOLD) {
+            for (int i = 0; i < memberCount; i++) {
+                if (keys[i].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (keySet.isEmpty()) {
+            keySet.addAll(Arrays.asList(keys).subList(0, memberCount));
+        }
+        return !keySet.add(key);
+    }
+
+    private void addMember(String key, int valueStart, int valueEnd) {
+        if (memberCount == keys.length) {
+            keys = Arrays.copyOf(keys, memberCount * 2);
+            valueStarts = Arrays.copyOf(valueStarts, memberCount * 2);
+            valueEnds = Arrays.copyOf(valueEnds, memberCount * 2);
+        }
+        keys[memberCount] = key;
+        valueStarts[memberCount] = valueStart;
+        valueEnds[memberCount] = valueEnd;
+        memberCount++;
+    }
+}
@@ -0,0 +1,43 @@
+package io.logz.logback;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the value of the longest logger name prefix covering a logger. Prefixes follow the logger hierarchy,
+ * com.acme covers com.acme.Service but not com.acmeco.
+ */
+final class LoggerPrefixMatcher<T> {
+
+    // Longest prefix first
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<T> values = new ArrayList<>();
+    private final T fallback;
+
+    /**
+     * @param valuesByPrefix the value of each logger name prefix
+     * @param fallback       the value of the loggers no prefix covers
+     */
+    LoggerPrefixMatcher(Map<String, T> valuesByPrefix, T fallback) {
+        this.fallback = fallback;
+        List<Map.Entry<String, T>> entries = new ArrayList<>(valuesByPrefix.entrySet());
+        entries.sort(Comparator.comparingInt((Map.Entry<String, T> entry) -> entry.getKey().length()).reversed());
+        for (Map.Entry<String, T> entry : entries) {
+            prefixes.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+    }
+
+    T match(String loggerName) {
+        for (int i = 0; i < prefixes.size(); i++) {
+            String prefix = prefixes.get(i);
+            if (loggerName.startsWith(prefix)
+                    && (loggerName.length() == prefix.length() || loggerName.charAt(prefix.length()) == '.')) {
+                return values.get(i);
+            }
+        }
+        return fallback;
+    }
+}
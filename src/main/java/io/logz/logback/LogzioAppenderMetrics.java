@@ -0,0 +1,227 @@
+package io.logz.logback;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms of an appender, from {@link LogzioLogbackAppender#getMetrics()}, to bridge to
+ * a metrics system, or over JMX with {@code jmxMetrics} enabled.
+ * <p>
+ * Counters are striped across cores, counting an event costs an uncontended increment. Only one in every
+ * {@value #FORMAT_TIME_SAMPLE_RATE} events is timed, reading the clock twice per event would cost more than
+ * the counters together. Values are kept since the appender was created, across restarts.
+ */
+public final class LogzioAppenderMetrics implements LogzioAppenderMetricsMBean {
+
+    static final int FORMAT_TIME_SAMPLE_RATE = 16;
+
+    final LongAdder eventsAppended = new LongAdder();
+    final LongAdder eventsSent = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder eventsRateLimited = new LongAdder();
+    final LongAdder eventsDroppedByBackpressure = new LongAdder();
+    final LongAdder eventsDroppedByAsyncQueue = new LongAdder();
+    final LongAdder formatFailures = new LongAdder();
+    final LongAdder sendRetries = new LongAdder();
+    private final LatencyHistogram formatTime = new LatencyHistogram();
+    private final LatencyHistogram drainTime = new LatencyHistogram();
+    private final LatencyHistogram bulkSendTime = new LatencyHistogram();
+    private final LongSupplier queueSize;
+    private final IntSupplier queueFillPercent;
+    private final IntSupplier asyncQueueSize;
+    private final LongSupplier sendFailures;
+
+    /**
+     * @param queueSize        number of logs in the queue, -1 if it can't be measured
+     * @param queueFillPercent how full the queue is, -1 if it can't be measured
+     * @param asyncQueueSize   number of events waiting for the async workers
+     * @param sendFailures     number of errors the sender reported
+     */
+    LogzioAppenderMetrics(LongSupplier queueSize, IntSupplier queueFillPercent, IntSupplier asyncQueueSize,
+                          LongSupplier sendFailures) {
+        this.queueSize = queueSize;
+        this.queueFillPercent = queueFillPercent;
+        this.asyncQueueSize = asyncQueueSize;
+        this.sendFailures = sendFailures;
+    }
+
+    /**
+     * @return true if the formatting of the current event should be timed
+     */
+    boolean sampleFormatTime() {
+        return ThreadLocalRandom.current().nextInt(FORMAT_TIME_SAMPLE_RATE) == 0;
+    }
+
+    void recordFormatTime(long nanos) {
+        formatTime.record(nanos);
+    }
+
+    void recordDrainTime(long nanos) {
+        drainTime.record(nanos);
+    }
+
+    void recordBulkSendTime(long nanos) {
+        bulkSendTime.record(nanos);
+    }
+
+    /**
+     * @return the time taken to turn a sample of the events into logs, JSON or encoded
+     */
+    public LatencyHistogram getFormatTime() {
+        return formatTime;
+    }
+
+    /**
+     * @return the time taken by each drain of the queue, sending all it held and retrying. Filled with every queue:
+     * the sender drains its own queue one bulk after the other, the appender ships the off-heap and memory-mapped
+     * queues with bulks in flight at once. The sender's last drain, on stop, is not measured.
+     */
+    public LatencyHistogram getDrainTime() {
+        return drainTime;
+    }
+
+    /**
+     * @return the time taken to ship each bulk, from its compression to the listener's last response, retries
+     * included. Filled only with the off-heap and memory-mapped queues, which the appender ships itself: the sender
+     * does not time the bulks of its own queue.
+     */
+    public LatencyHistogram getBulkSendTime() {
+        return bulkSendTime;
+    }
+
+    /**
+     * @return events that reached the appender, before its rate limits and backpressure
+     */
+    @Override
+    public long getEventsAppended() {
+        return eventsAppended.sum();
+    }
+
+    /**
+     * @return logs handed to the queue
+     */
+    @Override
+    public long getEventsSent() {
+        return eventsSent.sum();
+    }
+
+    /**
+     * @return size of the logs handed to the queue, except the ones too large to be streamed, which the sender
+     * gets as JSON objects
+     */
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getEventsRateLimited() {
+        return eventsRateLimited.sum();
+    }
+
+    @Override
+    public long getEventsDroppedByBackpressure() {
+        return eventsDroppedByBackpressure.sum();
+    }
+
+    @Override
+    public long getEventsDroppedByAsyncQueue() {
+        return eventsDroppedByAsyncQueue.sum();
+    }
+
+    @Override
+    public long getFormatFailures() {
+        return formatFailures.sum();
+    }
+
+    @Override
+    public long getQueueSize() {
+        return queueSize.getAsLong();
+    }
+
+    @Override
+    public int getQueueFillPercent() {
+        return queueFillPercent.getAsInt();
+    }
+
+    @Override
+    public int getAsyncQueueSize() {
+        return asyncQueueSize.getAsInt();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.getAsLong();
+    }
+
+    /**
+     * @return bulks sent again after a failed attempt
+     */
+    @Override
+    public long getSendRetries() {
+        return sendRetries.sum();
+    }
+
+    @Override
+    public long getFormatTimeMeanNanos() {
+        return formatTime.getMeanNanos();
+    }
+
+    @Override
+    public long getFormatTimeP50Nanos() {
+        return formatTime.getValueAtPercentileNanos(50);
+    }
+
+    @Override
+    public long getFormatTimeP99Nanos() {
+        return formatTime.getValueAtPercentileNanos(99);
+    }
+
+    @Override
+    public long getFormatTimeMaxNanos() {
+        return formatTime.getMaxNanos();
+    }
+
+    @Override
+    public long getDrainCount() {
+        return drainTime.getCount();
+    }
+
+    @Override
+    public long getDrainTimeP50Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(drainTime.getValueAtPercentileNanos(50));
+    }
+
+    @Override
+    public long getDrainTimeP99Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(drainTime.getValueAtPercentileNanos(99));
+    }
+
+    @Override
+    public long getDrainTimeMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(drainTime.getMaxNanos());
+    }
+
+    @Override
+    public long getBulkSendCount() {
+        return bulkSendTime.getCount();
+    }
+
+    @Override
+    public long getBulkSendTimeP50Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(bulkSendTime.getValueAtPercentileNanos(50));
+    }
+
+    @Override
+    public long getBulkSendTimeP99Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(bulkSendTime.getValueAtPercentileNanos(99));
+    }
+
+    @Override
+    public long getBulkSendTimeMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(bulkSendTime.getMaxNanos());
+    }
+}
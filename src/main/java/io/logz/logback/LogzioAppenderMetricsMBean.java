@@ -0,0 +1,56 @@
+package io.logz.logback;
+
+/**
+ * The appender's metrics as JMX attributes, registered with {@code jmxMetrics} enabled under
+ * {@code io.logz.logback:type=LogzioLogbackAppender,context=<context name>,name=<appender name>}
+ */
+public interface LogzioAppenderMetricsMBean {
+
+    long getEventsAppended();
+
+    long getEventsSent();
+
+    long getBytesSent();
+
+    long getEventsRateLimited();
+
+    long getEventsDroppedByBackpressure();
+
+    long getEventsDroppedByAsyncQueue();
+
+    long getFormatFailures();
+
+    long getQueueSize();
+
+    int getQueueFillPercent();
+
+    int getAsyncQueueSize();
+
+    long getSendFailures();
+
+    long getSendRetries();
+
+    long getFormatTimeMeanNanos();
+
+    long getFormatTimeP50Nanos();
+
+    long getFormatTimeP99Nanos();
+
+    long getFormatTimeMaxNanos();
+
+    long getDrainCount();
+
+    long getDrainTimeP50Millis();
+
+    long getDrainTimeP99Millis();
+
+    long getDrainTimeMaxMillis();
+
+    long getBulkSendCount();
+
+    long getBulkSendTimeP50Millis();
+
+    long getBulkSendTimeP99Millis();
+
+    long getBulkSendTimeMaxMillis();
+}
@@ -1,56 +1,108 @@
 package io.logz.logback;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.pattern.LineOfCallerConverter;
 import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.spi.FilterReply;
 import com.google.common.base.Splitter;
 import io.logz.sender.HttpsRequestConfiguration;
+import io.logz.sender.LogsQueue;
 import io.logz.sender.LogzioSender;
 import io.logz.sender.SenderStatusReporter;
 import io.logz.sender.com.google.gson.Gson;
 import io.logz.sender.com.google.gson.JsonElement;
 import io.logz.sender.com.google.gson.JsonObject;
 import io.logz.sender.exceptions.LogzioParameterErrorException;
+import io.opentelemetry.api.trace.SpanContext;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 public class LogzioLogbackAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
     private static final Gson gson = new Gson();
-    private static final String TIMESTAMP = "@timestamp";
-    private static final String LOGLEVEL = "loglevel";
-    private static final String MARKER = "marker";
-    private static final String MESSAGE = "message";
-    private static final String LOGGER = "logger";
-    private static final String LINE = "line";
-    private static final String THREAD = "thread";
-    private static final String EXCEPTION = "exception";
+    // The suffix the sender appends to the messages it cuts
+    private static final String TRUNCATED_MESSAGE_SUFFIX = "...truncated";
+    static final String TIMESTAMP = "@timestamp";
+    static final String LOGLEVEL = "loglevel";
+    static final String MARKER = "marker";
+    static final String MESSAGE = "message";
+    static final String LOGGER = "logger";
+    static final String LINE = "line";
+    static final String THREAD = "thread";
+    static final String EXCEPTION = "exception";
     private static final String FORMAT_TEXT = "text";
     private static final String FORMAT_JSON = "json";
-    private static final int DONT_LIMIT_CAPACITY = -1;
+    private static final String SHIPPING_EXECUTOR_CONTEXT = "context";
+    private static final String SHIPPING_EXECUTOR_VIRTUAL = "virtual";
+    private static final long SHIPPING_EXECUTOR_SHUTDOWN_TIMEOUT_SEC = 30;
+    static final int DONT_LIMIT_CAPACITY = -1;
     private static final int LOWER_PERCENTAGE_FS_SPACE = 1;
     private static final int UPPER_PERCENTAGE_FS_SPACE = 100;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT_MS = 5000;
 
     private static final Set<String> reservedFields = new HashSet<>(
             Arrays.asList(TIMESTAMP, LOGLEVEL, MARKER, MESSAGE, LOGGER, THREAD, EXCEPTION));
 
-    private LogzioSender logzioSender;
+    // LogzioSender 2.4.0 reports each retry of a bulk with this warning and does not count them, the count of its
+    // retries relies on the wording
+    private static final String SENDER_RETRY_WARNING = "Could not send log to logz.io, retry";
+
+    // Ships the events of the appender's token and type, and the events no shard route matches
+    private Pipeline pipeline;
+    // The default pipeline first, then one per token and type the shards route to
+    private List<Pipeline> pipelines = Collections.emptyList();
+    // Null unless shards are configured
+    private ShardRouter<Pipeline> shardRouter;
+    private final AtomicLong senderErrors = new AtomicLong();
+    private final LogzioAppenderMetrics metrics = new LogzioAppenderMetrics(this::queueSize, this::getQueueFillPercent,
+            this::asyncQueueSize, senderErrors::get);
+    private ObjectName metricsObjectName;
     private ThrowableProxyConverter throwableProxyConverter;
-    private LineOfCallerConverter lineOfCallerConverter;
+    private ExceptionRenderer exceptionRenderer;
+    private CallerLineResolver callerLineResolver;
+    private JsonEventWriter jsonEventWriter;
+    private AsyncDispatcher asyncDispatcher;
+    private SelfLoggingFilter selfLoggingFilter = new SelfLoggingFilter(Collections.emptyList());
+    // Null when no rate limit is configured
+    private RateLimiter rateLimiter;
+    private ScheduledFuture<?> rateLimitSummaryTask;
+    // Null unless backpressure is enabled and the fill level can be measured
     private Map<String, String> additionalFieldsMap = new HashMap<>();
+    private List<String> mdcIncludeKeys = Collections.emptyList();
+    private List<String> mdcExcludeKeys = Collections.emptyList();
+    private Map<String, String> mdcRenames = new LinkedHashMap<>();
+    private MdcProjection mdcProjection = MdcProjection.identity();
 
     // User controlled variables
     private String logzioToken;
@@ -64,16 +116,69 @@ public class LogzioLogbackAppender extends UnsynchronizedAppenderBase<ILoggingEv
     private boolean debug = false;
     private boolean addHostname = false;
     private boolean line = false;
+    private boolean lineStackWalker = false;
+    private int lineMaxDepth = 64;
+    private int lineSampleRate = 1;
+    private Level lineMinLevel = null;
     private boolean compressRequests = false;
+    // Null to follow compressRequests
+    private BulkCompressor.Codec compression = null;
+    private int compressionLevel = BulkCompressor.DEFAULT_LEVEL;
     private boolean inMemoryQueue = false;
+    private boolean inMemoryQueueOffHeap = false;
     private long inMemoryQueueCapacityBytes = 100 * 1024 * 1024;
     private long inMemoryLogsCountCapacity = DONT_LIMIT_CAPACITY;
     private int gcPersistedQueueFilesIntervalSeconds = 30;
+    private boolean diskQueueMemoryMapped = false;
+    private MappedSegmentLogsQueue.SyncPolicy diskQueueSyncPolicy = MappedSegmentLogsQueue.SyncPolicy.INTERVAL;
+    private int diskQueueSyncIntervalMs = 1000;
+    private int diskQueueSyncEveryLogs = 1000;
+    private long diskQueueCapacityBytes = DONT_LIMIT_CAPACITY;
+    // 0 to replay at full speed
+    private long diskQueueReplayBytesPerSec = 0;
+    private int maxInFlightBulks = 1;
+    private BulkTransport.Type transport = BulkTransport.Type.URLCONNECTION;
+    private boolean adaptiveBatching = false;
+    private int bulkMinBytes = 64 * 1024;
+    private int bulkMaxBytes = ParallelBulkShipper.BULK_BYTES;
+    private int bulkMaxLingerMs = 1000;
     private String format = FORMAT_TEXT;
     private Encoder<ILoggingEvent> encoder = null;
+    private StreamingEncoderWriter streamingEncoderWriter;
     private String exceedMaxSizeAction = "cut";
     private boolean addOpentelemetryContext = true;
     private ScheduledExecutorService customExecutorService = null;
+    private String shippingExecutor = SHIPPING_EXECUTOR_CONTEXT;
+    // Null unless the appender runs its own executor, created on start and shut down on stop
+    private ShippingExecutor shippingExecutorService;
+    private boolean streamingJson = true;
+    private boolean spliceJsonMessages = false;
+    private boolean structuredArguments = false;
+    private boolean formatMessage = true;
+    private boolean async = false;
+    private int asyncQueueSize = 8192;
+    private int asyncWorkers = 1;
+    private AsyncDispatcher.WaitStrategy asyncWaitStrategy = AsyncDispatcher.WaitStrategy.SLEEPING;
+    private boolean asyncDropInfoWhenFull = true;
+    private TimestampEncoder.Precision timestampPrecision = TimestampEncoder.Precision.MILLIS;
+    private List<String> excludedLoggerPrefixes = Collections.emptyList();
+    private int exceptionCacheSize = 256;
+    private int exceptionDedupWindowSec = 0;
+    private Map<Level, Integer> levelRateLimits = new LinkedHashMap<>();
+    private Map<String, Integer> loggerRateLimits = new LinkedHashMap<>();
+    private int rateLimitSummaryIntervalSec = 60;
+    private boolean backpressure = false;
+    private int backpressureShedPercent = 70;
+    private Level backpressureShedLevel = Level.INFO;
+    private int backpressureBlockPercent = 90;
+    private int backpressureBlockTimeoutMs = 100;
+    private boolean jmxMetrics = false;
+    // Null unless shards are configured
+    private ShardRouter.Key shardBy = null;
+    private String shardByMdcKey;
+    private Map<String, String> shardTypes = new LinkedHashMap<>();
+    private Map<String, String> shardTokens = new HashMap<>();
+    private TimestampEncoder timestampEncoder;
 
     public LogzioLogbackAppender() {
         super();
@@ -159,6 +264,14 @@ public class LogzioLogbackAppender extends UnsynchronizedAppenderBase<ILoggingEv
         return inMemoryQueue;
     }
 
+    public boolean isInMemoryQueueOffHeap() {
+        return inMemoryQueueOffHeap;
+    }
+
+    public void setInMemoryQueueOffHeap(boolean inMemoryQueueOffHeap) {
+        this.inMemoryQueueOffHeap = inMemoryQueueOffHeap;
+    }
+
     public void setInMemoryQueueCapacityBytes(long inMemoryQueueCapacityBytes) {
         this.inMemoryQueueCapacityBytes = inMemoryQueueCapacityBytes;
     }
@@ -188,6 +301,27 @@ public class LogzioLogbackAppender extends UnsynchronizedAppenderBase<ILoggingEv
         this.compressRequests = compressRequests;
     }
 
+    public String getCompression() {
+        return compression == null ? null : compression.name().toLowerCase();
+    }
+
+    public void setCompression(String compression) {
+        try {
+            this.compression = BulkCompressor.Codec.fromString(compression);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            addWarn("The value for parameter compression is invalid, using compressRequests");
+            this.compression = null;
+        }
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     public void setAdditionalFields(String additionalFields) {
         if (additionalFields != null) {
             Splitter.on(';').omitEmptyStrings().withKeyValueSeparator('=').split(additionalFields).forEach((k, v) -> {
@@ -205,6 +339,59 @@ public class LogzioLogbackAppender extends UnsynchronizedAppenderBase<ILoggingEv
         }
     }
 
+    public String getMdcIncludeKeys() {
+        return String.join(",", mdcIncludeKeys);
+    }
+
+    public void setMdcIncludeKeys(String mdcIncludeKeys) {
+        if (mdcIncludeKeys != null) {
+            this.mdcIncludeKeys = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(mdcIncludeKeys);
+        }
+    }
+
+    public String getMdcExcludeKeys() {
+        return String.join(",", mdcExcludeKeys);
+    }
+
+    public void setMdcExcludeKeys(String mdcExcludeKeys) {
+        if (mdcExcludeKeys != null) {
+            this.mdcExcludeKeys = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(mdcExcludeKeys);
+        }
+    }
+
+    public String getMdcRenames() {
+        StringBuilder formatted = new StringBuilder();
+        mdcRenames.forEach((key, name) -> {
+            if (formatted.length() > 0) {
+                formatted.append(';');
+            }
+            formatted.append(key).append('=').append(name);
+        });
+        return formatted.toString();
+    }
+
+    /**
+     * @param mdcRenames entries of the form mdcKey=fieldName, separated by ';'
+     */
+    public void setMdcRenames(String mdcRenames) {
+        this.mdcRenames = new LinkedHashMap<>();
+        if (mdcRenames == null) {
+            return;
+        }
+        for (String entry : Splitter.on(';').trimResults().omitEmptyStrings().split(mdcRenames)) {
+            int separator = entry.indexOf('=');
+            String key = separator > 0 ? entry.substring(0, separator).trim() : "";
+            String name = separator > 0 ? entry.substring(separator + 1).trim() : "";
+            if (key.isEmpty() || name.isEmpty()) {
+                addWarn("Ignoring the entry '" + entry + "' of mdcRenames, it should be mdcKey=fieldName");
+            } else if (this.mdcRenames.containsValue(name)) {
+                addWarn("Ignoring the entry '" + entry + "' of mdcRenames, another MDC key is already renamed to " + name);
+            } else {
+                this.mdcRenames.put(key, name);
+            }
+        }
+    }
+
     public boolean isAddHostname() {
         return addHostname;
     }
@@ -221,284 +408,1590 @@ public class LogzioLogbackAppender extends UnsynchronizedAppenderBase<ILoggingEv
         this.line = line;
     }
 
-    public void setGcPersistedQueueFilesIntervalSeconds(int gcPersistedQueueFilesIntervalSeconds) {
-        this.gcPersistedQueueFilesIntervalSeconds = gcPersistedQueueFilesIntervalSeconds;
+    public boolean isLineStackWalker() {
+        return lineStackWalker;
     }
 
-    public void setExceedMaxSizeAction(String exceedMaxSizeAction) {
-        if (!Arrays.asList("cut", "drop").contains(exceedMaxSizeAction.toLowerCase())) {
-            addWarn("The value for parameter ExceedMaxSizeAction is invalid, using default: cut");
-            this.exceedMaxSizeAction = "cut";
-        } else {
-
-            this.exceedMaxSizeAction = exceedMaxSizeAction;
-        }
+    public void setLineStackWalker(boolean lineStackWalker) {
+        this.lineStackWalker = lineStackWalker;
     }
 
-    public boolean isAddOpentelemetryContext() {
-        return addOpentelemetryContext;
+    public int getLineMaxDepth() {
+        return lineMaxDepth;
     }
 
-    public void setAddOpentelemetryContext(boolean addOpentelemetryContext) {
-        this.addOpentelemetryContext = addOpentelemetryContext;
+    public void setLineMaxDepth(int lineMaxDepth) {
+        if (lineMaxDepth < 1) {
+            addWarn("lineMaxDepth must be at least 1, using default: 64");
+            this.lineMaxDepth = 64;
+        } else {
+            this.lineMaxDepth = lineMaxDepth;
+        }
     }
 
-    public void setExecutor(ScheduledExecutorService executor) {
-        addInfo("Setting custom ScheduledExecutorService provided via configuration: " + executor);
-        this.customExecutorService = executor;
+    public int getLineSampleRate() {
+        return lineSampleRate;
     }
 
-    @Override
-    public void start() {
-        setHostname();
-        HttpsRequestConfiguration conf;
-        try {
-            conf = getHttpsRequestConfiguration();
-        } catch (LogzioParameterErrorException e) {
-            addError("Some of the configuration parameters of logz.io are wrong: " + e.getMessage(), e);
-            return;
-        }
-        LogzioSender.Builder logzioSenderBuilder = getSenderBuilder(conf);
-        if (inMemoryQueue) {
-            if (!validateInMemoryThresholds()) {
-                return;
-            }
-            logzioSenderBuilder
-                    .withInMemoryQueue()
-                    .setCapacityInBytes(inMemoryQueueCapacityBytes)
-                    .setLogsCountLimit(inMemoryLogsCountCapacity)
-                    .endInMemoryQueue();
+    public void setLineSampleRate(int lineSampleRate) {
+        if (lineSampleRate < 1) {
+            addWarn("lineSampleRate must be at least 1, using default: 1");
+            this.lineSampleRate = 1;
         } else {
-            if (!validateFsPercentThreshold()) {
-                return;
-            }
-            File queueDirFile = getQueueFile();
-            if (queueDirFile == null) {
-                return;
-            }
-            logzioSenderBuilder
-                    .withDiskQueue()
-                    .setQueueDir(queueDirFile)
-                    .setGcPersistedQueueFilesIntervalSeconds(gcPersistedQueueFilesIntervalSeconds)
-                    .setFsPercentThreshold(fileSystemFullPercentThreshold)
-                    .endDiskQueue();
+            this.lineSampleRate = lineSampleRate;
         }
-        try {
-            logzioSender = logzioSenderBuilder.build();
-        } catch (LogzioParameterErrorException | IOException e) {
-            addError("Could not create logzio sender", e);
-            return;
+    }
+
+    public String getLineMinLevel() {
+        return lineMinLevel == null ? null : lineMinLevel.levelStr;
+    }
+
+    public void setLineMinLevel(String lineMinLevel) {
+        this.lineMinLevel = Level.toLevel(lineMinLevel, null);
+        if (this.lineMinLevel == null) {
+            addWarn("The value for parameter lineMinLevel is invalid, adding the line to events of every level");
         }
+    }
 
-        logzioSender.start();
-        throwableProxyConverter = new ThrowableProxyConverter();
-        lineOfCallerConverter = new LineOfCallerConverter();
-        throwableProxyConverter.setOptionList(Collections.singletonList("full"));
-        throwableProxyConverter.start();
-        super.start();
+    public void setGcPersistedQueueFilesIntervalSeconds(int gcPersistedQueueFilesIntervalSeconds) {
+        this.gcPersistedQueueFilesIntervalSeconds = gcPersistedQueueFilesIntervalSeconds;
     }
 
-    private LogzioSender.Builder getSenderBuilder(HttpsRequestConfiguration conf) {
-        LogzioSender.Builder builder = LogzioSender
-                .builder()
-                .setDebug(debug)
-                .setDrainTimeoutSec(drainTimeoutSec)
-                .setHttpsRequestConfiguration(conf)
-                .setReporter(new StatusReporter())
-                .setWithOpentelemetryContext(addOpentelemetryContext)
-                .setExceedMaxSizeAction(exceedMaxSizeAction);
+    public boolean isDiskQueueMemoryMapped() {
+        return diskQueueMemoryMapped;
+    }
 
-        if (this.customExecutorService != null) {
-            addInfo("Using custom ScheduledExecutorService for LogzioSender task execution.");
-            builder.setTasksExecutor(this.customExecutorService);
-        } else {
-            addInfo("No custom ScheduledExecutorService provided, using default Logback context ExecutorService.");
-            builder.setTasksExecutor(context.getScheduledExecutorService());
+    public void setDiskQueueMemoryMapped(boolean diskQueueMemoryMapped) {
+        this.diskQueueMemoryMapped = diskQueueMemoryMapped;
+    }
+
+    public String getDiskQueueSyncPolicy() {
+        return diskQueueSyncPolicy.name().toLowerCase();
+    }
+
+    public void setDiskQueueSyncPolicy(String diskQueueSyncPolicy) {
+        try {
+            this.diskQueueSyncPolicy = MappedSegmentLogsQueue.SyncPolicy.fromString(diskQueueSyncPolicy);
+        } catch (IllegalArgumentException e) {
+            addWarn("The value for parameter diskQueueSyncPolicy is invalid, using default: interval");
+            this.diskQueueSyncPolicy = MappedSegmentLogsQueue.SyncPolicy.INTERVAL;
         }
+    }
 
-        return builder;
+    public int getDiskQueueSyncIntervalMs() {
+        return diskQueueSyncIntervalMs;
     }
 
-    private File getQueueFile() {
-        if (queueDir != null) {
-            queueDir += File.separator + logzioType;
-            File queueFile = new File(queueDir);
-            if (queueFile.exists()) {
-                if (!queueFile.canWrite()) {
-                    addError("We cant write to your queueDir location: " + queueFile.getAbsolutePath());
-                    return null;
-                }
-            } else {
-                if (!queueFile.mkdirs()) {
-                    addError("We cant create your queueDir location: " + queueFile.getAbsolutePath());
-                    return null;
-                }
-            }
+    public void setDiskQueueSyncIntervalMs(int diskQueueSyncIntervalMs) {
+        if (diskQueueSyncIntervalMs <= 0) {
+            addWarn("diskQueueSyncIntervalMs should be a positive number, using default: 1000");
+            this.diskQueueSyncIntervalMs = 1000;
         } else {
-            queueDir = System.getProperty("java.io.tmpdir") + File.separator + "logzio-logback-queue" + File.separator
-                    + logzioType;
+            this.diskQueueSyncIntervalMs = diskQueueSyncIntervalMs;
         }
-        return new File(queueDir, "logzio-logback-appender");
     }
 
-    private boolean validateInMemoryThresholds() {
-        if (inMemoryQueueCapacityBytes <= 0 && inMemoryQueueCapacityBytes != DONT_LIMIT_CAPACITY) {
-            addError("inMemoryQueueCapacityBytes should be a non zero integer or " + DONT_LIMIT_CAPACITY);
-            return false;
-        }
-        if (inMemoryLogsCountCapacity <= 0 && inMemoryLogsCountCapacity != DONT_LIMIT_CAPACITY) {
-            addError("inMemoryLogsCountCapacity should be a non zero integer or " + DONT_LIMIT_CAPACITY);
-            return false;
-        }
-        return true;
+    public int getDiskQueueSyncEveryLogs() {
+        return diskQueueSyncEveryLogs;
     }
 
-    private boolean validateFsPercentThreshold() {
-        if (!(fileSystemFullPercentThreshold >= LOWER_PERCENTAGE_FS_SPACE
-                && fileSystemFullPercentThreshold <= UPPER_PERCENTAGE_FS_SPACE)) {
-            if (fileSystemFullPercentThreshold != DONT_LIMIT_CAPACITY) {
-                addError("fileSystemFullPercentThreshold should be a number between 1 and 100, or "
-                        + DONT_LIMIT_CAPACITY);
-                return false;
-            }
+    public void setDiskQueueSyncEveryLogs(int diskQueueSyncEveryLogs) {
+        if (diskQueueSyncEveryLogs <= 0) {
+            addWarn("diskQueueSyncEveryLogs should be a positive number, using default: 1000");
+            this.diskQueueSyncEveryLogs = 1000;
+        } else {
+            this.diskQueueSyncEveryLogs = diskQueueSyncEveryLogs;
         }
-        return true;
     }
 
-    private void setHostname() {
-        try {
-            if (addHostname) {
-                String hostname = InetAddress.getLocalHost().getHostName();
-                additionalFieldsMap.put("hostname", hostname);
-            }
-        } catch (UnknownHostException e) {
-            addWarn("The configuration addHostName was specified but the host could not be resolved, thus the field 'hostname' will not be added",
-                    e);
-        }
+    public long getDiskQueueCapacityBytes() {
+        return diskQueueCapacityBytes;
     }
 
-    private HttpsRequestConfiguration getHttpsRequestConfiguration() throws LogzioParameterErrorException {
-        return HttpsRequestConfiguration
-                .builder()
-                .setLogzioListenerUrl(logzioUrl)
-                .setSocketTimeout(socketTimeout)
-                .setLogzioType(logzioType)
-                .setLogzioToken(logzioToken)
-                .setConnectTimeout(connectTimeout)
-                .setCompressRequests(compressRequests)
-                .build();
+    public void setDiskQueueCapacityBytes(long diskQueueCapacityBytes) {
+        this.diskQueueCapacityBytes = diskQueueCapacityBytes;
     }
 
-    /**
-     * Flush buffers and send accumulated messages to server
-     */
-    public void drainQueueAndSend() {
-        if (logzioSender != null)
-            logzioSender.drainQueueAndSend();
+    public long getDiskQueueReplayBytesPerSec() {
+        return diskQueueReplayBytesPerSec;
     }
 
-    @Override
-    public void stop() {
-        if (logzioSender != null)
-            logzioSender.stop();
-        if (throwableProxyConverter != null)
-            throwableProxyConverter.stop();
-        super.stop();
+    public void setDiskQueueReplayBytesPerSec(long diskQueueReplayBytesPerSec) {
+        if (diskQueueReplayBytesPerSec < 0) {
+            addWarn("diskQueueReplayBytesPerSec should be a non negative number, using default: 0");
+            this.diskQueueReplayBytesPerSec = 0;
+        } else {
+            this.diskQueueReplayBytesPerSec = diskQueueReplayBytesPerSec;
+        }
     }
 
-    private String getValueFromSystemEnvironmentIfNeeded(String value) {
-        if (value != null && value.startsWith("$")) {
-            String variableName = value.replace("$", "");
-            String envVariable = System.getenv(variableName);
+    public int getMaxInFlightBulks() {
+        return maxInFlightBulks;
+    }
 
-            if (envVariable == null || envVariable.isEmpty()) {
-                envVariable = System.getProperty(variableName);
-            }
-            return envVariable;
+    public void setMaxInFlightBulks(int maxInFlightBulks) {
+        if (maxInFlightBulks < 1) {
+            addWarn("maxInFlightBulks should be a positive number, using default: 1");
+            this.maxInFlightBulks = 1;
+        } else {
+            this.maxInFlightBulks = maxInFlightBulks;
         }
-        return value;
     }
 
-    private void formatMessageAndSend(ILoggingEvent loggingEvent) {
+    public String getTransport() {
+        return transport.name().toLowerCase();
+    }
+
+    public void setTransport(String transport) {
         try {
-            if (encoder == null) {
-                logzioSender.send(formatMessageAsJsonInternal(loggingEvent));
-            } else {
-                logzioSender.send(encoder.encode(loggingEvent));
-            }
-        } catch (Exception e) {
-            addWarn("Failed to format and send message", e);
+            this.transport = BulkTransport.Type.fromString(transport);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            addWarn("The value for parameter transport is invalid, using default: urlconnection");
+            this.transport = BulkTransport.Type.URLCONNECTION;
         }
+    }
 
+    public boolean isAdaptiveBatching() {
+        return adaptiveBatching;
     }
 
-    private JsonObject formatMessageAsJsonInternal(ILoggingEvent loggingEvent) {
-        JsonObject logMessage;
+    public void setAdaptiveBatching(boolean adaptiveBatching) {
+        this.adaptiveBatching = adaptiveBatching;
+    }
 
-        if (format.equals(FORMAT_JSON)) {
-            try {
-                JsonElement jsonElement = gson.fromJson(loggingEvent.getFormattedMessage(), JsonElement.class);
-                logMessage = jsonElement.getAsJsonObject();
-            } catch (Exception e) {
-                logMessage = new JsonObject();
-                logMessage.addProperty(MESSAGE, loggingEvent.getFormattedMessage());
-            }
+    public int getBulkMinBytes() {
+        return bulkMinBytes;
+    }
+
+    public void setBulkMinBytes(int bulkMinBytes) {
+        if (bulkMinBytes <= 0) {
+            addWarn("bulkMinBytes should be a positive number, using default: " + 64 * 1024);
+            this.bulkMinBytes = 64 * 1024;
         } else {
-            logMessage = new JsonObject();
-            logMessage.addProperty(MESSAGE, loggingEvent.getFormattedMessage());
+            this.bulkMinBytes = bulkMinBytes;
         }
+    }
 
-        // Adding MDC first, as I dont want it to collide with any one of the following
-        // fields
-        if (loggingEvent.getMDCPropertyMap() != null) {
-            loggingEvent.getMDCPropertyMap().forEach(logMessage::addProperty);
+    public int getBulkMaxBytes() {
+        return bulkMaxBytes;
+    }
+
+    public void setBulkMaxBytes(int bulkMaxBytes) {
+        if (bulkMaxBytes <= 0) {
+            addWarn("bulkMaxBytes should be a positive number, using default: " + ParallelBulkShipper.BULK_BYTES);
+            this.bulkMaxBytes = ParallelBulkShipper.BULK_BYTES;
+        } else {
+            this.bulkMaxBytes = bulkMaxBytes;
         }
+    }
 
-        logMessage.addProperty(TIMESTAMP, new Date(loggingEvent.getTimeStamp()).toInstant().toString());
-        logMessage.addProperty(LOGLEVEL, loggingEvent.getLevel().levelStr);
+    public int getBulkMaxLingerMs() {
+        return bulkMaxLingerMs;
+    }
 
-        if (loggingEvent.getMarker() != null) {
-            logMessage.addProperty(MARKER, loggingEvent.getMarker().toString());
+    public void setBulkMaxLingerMs(int bulkMaxLingerMs) {
+        if (bulkMaxLingerMs <= 0) {
+            addWarn("bulkMaxLingerMs should be a positive number, using default: 1000");
+            this.bulkMaxLingerMs = 1000;
+        } else {
+            this.bulkMaxLingerMs = bulkMaxLingerMs;
         }
+    }
 
-        logMessage.addProperty(LOGGER, loggingEvent.getLoggerName());
-        logMessage.addProperty(THREAD, loggingEvent.getThreadName());
-        if (line) {
-            logMessage.addProperty(LINE, lineOfCallerConverter.convert(loggingEvent));
-        }
+    public void setExceedMaxSizeAction(String exceedMaxSizeAction) {
+        if (!Arrays.asList("cut", "drop").contains(exceedMaxSizeAction.toLowerCase())) {
+            addWarn("The value for parameter ExceedMaxSizeAction is invalid, using default: cut");
+            this.exceedMaxSizeAction = "cut";
+        } else {
 
-        if (loggingEvent.getThrowableProxy() != null) {
-            logMessage.addProperty(EXCEPTION, throwableProxyConverter.convert(loggingEvent));
+            this.exceedMaxSizeAction = exceedMaxSizeAction;
         }
+    }
 
-        if (additionalFieldsMap != null) {
-            additionalFieldsMap.forEach(logMessage::addProperty);
-        }
+    public boolean isAddOpentelemetryContext() {
+        return addOpentelemetryContext;
+    }
 
-        return logMessage;
+    public void setAddOpentelemetryContext(boolean addOpentelemetryContext) {
+        this.addOpentelemetryContext = addOpentelemetryContext;
     }
 
-    @Override
-    protected void append(ILoggingEvent loggingEvent) {
-        if (!loggingEvent.getLoggerName().contains("io.logz.sender")) {
-            formatMessageAndSend(loggingEvent);
-        }
+    public boolean isStreamingJson() {
+        return streamingJson;
     }
 
-    private class StatusReporter implements SenderStatusReporter {
+    public void setStreamingJson(boolean streamingJson) {
+        this.streamingJson = streamingJson;
+    }
 
-        @Override
-        public void error(String msg) {
-            addError(msg);
-        }
+    public boolean isSpliceJsonMessages() {
+        return spliceJsonMessages;
+    }
 
-        @Override
-        public void error(String msg, Throwable e) {
-            addError(msg, e);
-        }
+    public void setSpliceJsonMessages(boolean spliceJsonMessages) {
+        this.spliceJsonMessages = spliceJsonMessages;
+    }
 
-        @Override
-        public void warning(String msg) {
+    public boolean isStructuredArguments() {
+        return structuredArguments;
+    }
+
+    public void setStructuredArguments(boolean structuredArguments) {
+        this.structuredArguments = structuredArguments;
+    }
+
+    public boolean isFormatMessage() {
+        return formatMessage;
+    }
+
+    public void setFormatMessage(boolean formatMessage) {
+        this.formatMessage = formatMessage;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        if (asyncQueueSize < 2) {
+            addWarn("asyncQueueSize must be at least 2, using default: " + this.asyncQueueSize);
+        } else {
+            this.asyncQueueSize = asyncQueueSize;
+        }
+    }
+
+    public int getAsyncWorkers() {
+        return asyncWorkers;
+    }
+
+    public void setAsyncWorkers(int asyncWorkers) {
+        if (asyncWorkers < 1) {
+            addWarn("asyncWorkers must be at least 1, using default: " + this.asyncWorkers);
+        } else {
+            this.asyncWorkers = asyncWorkers;
+        }
+    }
+
+    public void setAsyncWaitStrategy(String asyncWaitStrategy) {
+        try {
+            this.asyncWaitStrategy = AsyncDispatcher.WaitStrategy.fromString(asyncWaitStrategy);
+        } catch (IllegalArgumentException e) {
+            addWarn("The value for parameter asyncWaitStrategy is invalid, using default: sleeping");
+            this.asyncWaitStrategy = AsyncDispatcher.WaitStrategy.SLEEPING;
+        }
+    }
+
+    public boolean isAsyncDropInfoWhenFull() {
+        return asyncDropInfoWhenFull;
+    }
+
+    public void setAsyncDropInfoWhenFull(boolean asyncDropInfoWhenFull) {
+        this.asyncDropInfoWhenFull = asyncDropInfoWhenFull;
+    }
+
+    public String getTimestampPrecision() {
+        return timestampPrecision.name().toLowerCase();
+    }
+
+    public void setTimestampPrecision(String timestampPrecision) {
+        try {
+            this.timestampPrecision = TimestampEncoder.Precision.fromString(timestampPrecision);
+        } catch (IllegalArgumentException e) {
+            addWarn("The value for parameter timestampPrecision is invalid, using default: millis");
+            this.timestampPrecision = TimestampEncoder.Precision.MILLIS;
+        }
+    }
+
+    public int getExceptionCacheSize() {
+        return exceptionCacheSize;
+    }
+
+    public void setExceptionCacheSize(int exceptionCacheSize) {
+        if (exceptionCacheSize < 0) {
+            addWarn("exceptionCacheSize should be a non negative number, using default: 256");
+            this.exceptionCacheSize = 256;
+        } else {
+            this.exceptionCacheSize = exceptionCacheSize;
+        }
+    }
+
+    public int getExceptionDedupWindowSec() {
+        return exceptionDedupWindowSec;
+    }
+
+    public void setExceptionDedupWindowSec(int exceptionDedupWindowSec) {
+        if (exceptionDedupWindowSec < 0) {
+            addWarn("exceptionDedupWindowSec should be a non negative number, using default: 0");
+            this.exceptionDedupWindowSec = 0;
+        } else {
+            this.exceptionDedupWindowSec = exceptionDedupWindowSec;
+        }
+    }
+
+    public String getLevelRateLimits() {
+        return formatRateLimits(levelRateLimits);
+    }
+
+    public void setLevelRateLimits(String levelRateLimits) {
+        this.levelRateLimits = new LinkedHashMap<>();
+        parseRateLimits("levelRateLimits", levelRateLimits).forEach((levelName, rate) -> {
+            Level level = Level.toLevel(levelName, null);
+            if (level == null) {
+                addWarn("Ignoring levelRateLimits for the unknown level '" + levelName + "'");
+            } else {
+                this.levelRateLimits.put(level, rate);
+            }
+        });
+    }
+
+    public String getLoggerRateLimits() {
+        return formatRateLimits(loggerRateLimits);
+    }
+
+    public void setLoggerRateLimits(String loggerRateLimits) {
+        this.loggerRateLimits = parseRateLimits("loggerRateLimits", loggerRateLimits);
+    }
+
+    public int getRateLimitSummaryIntervalSec() {
+        return rateLimitSummaryIntervalSec;
+    }
+
+    public void setRateLimitSummaryIntervalSec(int rateLimitSummaryIntervalSec) {
+        if (rateLimitSummaryIntervalSec < 0) {
+            addWarn("rateLimitSummaryIntervalSec should be a non negative number, using default: 60");
+            this.rateLimitSummaryIntervalSec = 60;
+        } else {
+            this.rateLimitSummaryIntervalSec = rateLimitSummaryIntervalSec;
+        }
+    }
+
+    public boolean isBackpressure() {
+        return backpressure;
+    }
+
+    public void setBackpressure(boolean backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    public int getBackpressureShedPercent() {
+        return backpressureShedPercent;
+    }
+
+    public void setBackpressureShedPercent(int backpressureShedPercent) {
+        if (backpressureShedPercent < 1 || backpressureShedPercent > 100) {
+            addWarn("backpressureShedPercent should be a number between 1 and 100, using default: 70");
+            this.backpressureShedPercent = 70;
+        } else {
+            this.backpressureShedPercent = backpressureShedPercent;
+        }
+    }
+
+    public String getBackpressureShedLevel() {
+        return backpressureShedLevel.levelStr;
+    }
+
+    public void setBackpressureShedLevel(String backpressureShedLevel) {
+        this.backpressureShedLevel = Level.toLevel(backpressureShedLevel, null);
+        if (this.backpressureShedLevel == null) {
+            addWarn("The value for parameter backpressureShedLevel is invalid, using default: INFO");
+            this.backpressureShedLevel = Level.INFO;
+        }
+    }
+
+    public int getBackpressureBlockPercent() {
+        return backpressureBlockPercent;
+    }
+
+    public void setBackpressureBlockPercent(int backpressureBlockPercent) {
+        if (backpressureBlockPercent < 1 || backpressureBlockPercent > 100) {
+            addWarn("backpressureBlockPercent should be a number between 1 and 100, using default: 90");
+            this.backpressureBlockPercent = 90;
+        } else {
+            this.backpressureBlockPercent = backpressureBlockPercent;
+        }
+    }
+
+    public int getBackpressureBlockTimeoutMs() {
+        return backpressureBlockTimeoutMs;
+    }
+
+    public void setBackpressureBlockTimeoutMs(int backpressureBlockTimeoutMs) {
+        if (backpressureBlockTimeoutMs < 0) {
+            addWarn("backpressureBlockTimeoutMs should be a non negative number, using default: 100");
+            this.backpressureBlockTimeoutMs = 100;
+        } else {
+            this.backpressureBlockTimeoutMs = backpressureBlockTimeoutMs;
+        }
+    }
+
+    public boolean isJmxMetrics() {
+        return jmxMetrics;
+    }
+
+    public void setJmxMetrics(boolean jmxMetrics) {
+        this.jmxMetrics = jmxMetrics;
+    }
+
+    public String getShardBy() {
+        if (shardBy == null) {
+            return null;
+        }
+        return shardBy == ShardRouter.Key.MDC ? "mdc:" + shardByMdcKey : shardBy.name().toLowerCase();
+    }
+
+    public void setShardBy(String shardBy) {
+        String key = shardBy == null ? "" : shardBy.trim();
+        if (key.regionMatches(true, 0, "mdc:", 0, 4) && key.length() > 4) {
+            this.shardBy = ShardRouter.Key.MDC;
+            this.shardByMdcKey = key.substring(4).trim();
+        } else if (key.equalsIgnoreCase("logger") || key.equalsIgnoreCase("level")) {
+            this.shardBy = ShardRouter.Key.valueOf(key.toUpperCase());
+            this.shardByMdcKey = null;
+        } else {
+            addWarn("Got unsupported shardBy " + shardBy + ", it should be logger, level or mdc:<key>. "
+                    + "Events are not sharded");
+            this.shardBy = null;
+        }
+    }
+
+    public String getShards() {
+        StringBuilder formatted = new StringBuilder();
+        shardTypes.forEach((key, type) -> {
+            if (formatted.length() > 0) {
+                formatted.append(';');
+            }
+            formatted.append(key).append('=').append(type);
+            if (shardTokens.containsKey(key)) {
+                formatted.append(',').append(shardTokens.get(key));
+            }
+        });
+        return formatted.toString();
+    }
+
+    /**
+     * @param shards entries of the form key=type or key=type,token, separated by ';'
+     */
+    public void setShards(String shards) {
+        this.shardTypes = new LinkedHashMap<>();
+        this.shardTokens = new HashMap<>();
+        if (shards == null) {
+            return;
+        }
+        for (String entry : Splitter.on(';').trimResults().omitEmptyStrings().split(shards)) {
+            int separator = entry.indexOf('=');
+            List<String> target = Splitter.on(',').trimResults().splitToList(entry.substring(separator + 1));
+            if (separator <= 0 || target.size() > 2 || target.get(0).isEmpty()
+                    || (target.size() == 2 && target.get(1).isEmpty())) {
+                addWarn("Ignoring the entry '" + entry + "' of shards, it should be key=type or key=type,token");
+                continue;
+            }
+            String key = entry.substring(0, separator).trim();
+            shardTypes.put(key, target.get(0));
+            if (target.size() == 2) {
+                shardTokens.put(key, getValueFromSystemEnvironmentIfNeeded(target.get(1)));
+            }
+        }
+    }
+
+    public LogzioAppenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how full the fullest queue is, in percent of the limit from which it drops logs, or -1 if it can't be
+     * measured, as for the sender's in-memory queue
+     */
+    public int getQueueFillPercent() {
+        DoubleSupplier fillLevel = queueFillLevel(pipelines);
+        return fillLevel == null ? -1 : (int) Math.round(fillLevel.getAsDouble() * 100);
+    }
+
+    /**
+     * @return the fill level of the fullest queue, null if one can't be measured
+     */
+    private static DoubleSupplier queueFillLevel(List<Pipeline> pipelines) {
+        if (pipelines.isEmpty() || pipelines.stream().anyMatch(pipeline -> pipeline.queueFillLevel == null)) {
+            return null;
+        }
+        if (pipelines.size() == 1) {
+            return pipelines.get(0).queueFillLevel;
+        }
+        return () -> {
+            double fillLevel = 0;
+            for (Pipeline pipeline : pipelines) {
+                fillLevel = Math.max(fillLevel, pipeline.queueFillLevel.getAsDouble());
+            }
+            return fillLevel;
+        };
+    }
+
+    private long queueSize() {
+        long size = -1;
+        for (Pipeline pipeline : pipelines) {
+            long pipelineSize = pipeline.queueSize();
+            if (pipelineSize >= 0) {
+                size = Math.max(size, 0) + pipelineSize;
+            }
+        }
+        return size;
+    }
+
+    private int asyncQueueSize() {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        return dispatcher == null ? 0 : dispatcher.size();
+    }
+
+    /**
+     * @param rateLimits entries of the form name=eventsPerSecond, separated by ';'
+     */
+    private Map<String, Integer> parseRateLimits(String parameter, String rateLimits) {
+        Map<String, Integer> rates = new LinkedHashMap<>();
+        if (rateLimits == null) {
+            return rates;
+        }
+        for (String entry : Splitter.on(';').trimResults().omitEmptyStrings().split(rateLimits)) {
+            int separator = entry.indexOf('=');
+            try {
+                int rate = Integer.parseInt(entry.substring(separator + 1).trim());
+                if (separator > 0 && rate > 0) {
+                    rates.put(entry.substring(0, separator).trim(), rate);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            addWarn("Ignoring the entry '" + entry + "' of " + parameter + ", it should be name=eventsPerSecond, "
+                    + "with at least 1 event per second");
+        }
+        return rates;
+    }
+
+    private static String formatRateLimits(Map<?, Integer> rateLimits) {
+        StringBuilder formatted = new StringBuilder();
+        rateLimits.forEach((name, rate) -> {
+            if (formatted.length() > 0) {
+                formatted.append(';');
+            }
+            formatted.append(name).append('=').append(rate);
+        });
+        return formatted.toString();
+    }
+
+    public String getExcludedLoggerPrefixes() {
+        return String.join(",", excludedLoggerPrefixes);
+    }
+
+    public void setExcludedLoggerPrefixes(String excludedLoggerPrefixes) {
+        if (excludedLoggerPrefixes != null) {
+            this.excludedLoggerPrefixes = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(excludedLoggerPrefixes);
+        }
+    }
+
+    public void setExecutor(ScheduledExecutorService executor) {
+        addInfo("Setting custom ScheduledExecutorService provided via configuration: " + executor);
+        this.customExecutorService = executor;
+    }
+
+    public String getShippingExecutor() {
+        return shippingExecutor;
+    }
+
+    public void setShippingExecutor(String shippingExecutor) {
+        if (SHIPPING_EXECUTOR_CONTEXT.equalsIgnoreCase(shippingExecutor)
+                || SHIPPING_EXECUTOR_VIRTUAL.equalsIgnoreCase(shippingExecutor)) {
+            this.shippingExecutor = shippingExecutor.toLowerCase();
+        } else {
+            addWarn("Got unsupported shippingExecutor " + shippingExecutor + ", using default: context");
+            this.shippingExecutor = SHIPPING_EXECUTOR_CONTEXT;
+        }
+    }
+
+    @Override
+    public void start() {
+        setHostname();
+        BulkCompressor.Codec codec = compression != null ? compression
+                : compressRequests ? BulkCompressor.Codec.GZIP : BulkCompressor.Codec.NONE;
+        if (codec == BulkCompressor.Codec.ZSTD && !BulkCompressor.isZstdAvailable()) {
+            addWarn("compression zstd needs zstd-jni on the classpath, using gzip");
+            codec = BulkCompressor.Codec.GZIP;
+        }
+        int level = compressionLevel;
+        if (!BulkCompressor.isValidLevel(codec, level)) {
+            addWarn("compressionLevel " + level + " is out of range for " + codec.name().toLowerCase()
+                    + ", using its default level");
+            level = BulkCompressor.DEFAULT_LEVEL;
+        }
+        if (inMemoryQueue ? !validateInMemoryThresholds() : !validateFsPercentThreshold()) {
+            return;
+        }
+        if (SHIPPING_EXECUTOR_VIRTUAL.equals(shippingExecutor)) {
+            if (customExecutorService != null) {
+                addWarn("shippingExecutor virtual is ignored, a custom executor was set");
+            } else {
+                shippingExecutorService = ShippingExecutor.create(String.valueOf(getName()));
+                addInfo(shippingExecutorService.isVirtual()
+                        ? "Shipping on virtual threads"
+                        : "Virtual threads need Java 21, shipping on the appender's own platform threads");
+            }
+        }
+        pipeline = startPipeline(logzioToken, logzioType, codec, level, String.valueOf(getName()));
+        if (pipeline == null) {
+            shutdownShippingExecutor();
+            return;
+        }
+        List<Pipeline> started = new ArrayList<>();
+        started.add(pipeline);
+        if (!startShards(started, codec, level)) {
+            started.forEach(Pipeline::stop);
+            pipeline = null;
+            shutdownShippingExecutor();
+            return;
+        }
+        pipelines = started;
+        if (inMemoryQueue && inMemoryQueueOffHeap && inMemoryQueueCapacityBytes != DONT_LIMIT_CAPACITY) {
+            long maxDirectMemory = OffHeapLogsQueue.maxDirectMemory();
+            // Each pipeline has its own queue
+            long offHeapBytes = inMemoryQueueCapacityBytes * started.size();
+            if (maxDirectMemory > 0 && offHeapBytes > maxDirectMemory) {
+                addWarn("The off-heap queues can hold " + offHeapBytes + " bytes, more than the " + maxDirectMemory
+                        + " bytes of direct memory the JVM allows. Logs are dropped once it runs out, "
+                        + "raise -XX:MaxDirectMemorySize or lower inMemoryQueueCapacityBytes");
+            }
+        }
+        if (diskQueueReplayBytesPerSec > 0 && (inMemoryQueue || !diskQueueMemoryMapped)) {
+            addWarn("diskQueueReplayBytesPerSec needs diskQueueMemoryMapped. The backlog is replayed at full speed");
+        }
+        if (pipeline.appenderQueue == null) {
+            if (maxInFlightBulks > 1) {
+                addWarn("maxInFlightBulks needs a queue kept by the appender, an off-heap in-memory queue or a "
+                        + "memory-mapped disk queue. Bulks are shipped one at a time");
+            }
+            if (transport != BulkTransport.Type.URLCONNECTION) {
+                addWarn("transport " + getTransport() + " needs a queue kept by the appender, an off-heap in-memory "
+                        + "queue or a memory-mapped disk queue. The sender's transport is used");
+            }
+            if (adaptiveBatching) {
+                addWarn("adaptiveBatching needs a queue kept by the appender, an off-heap in-memory queue or a "
+                        + "memory-mapped disk queue. The queue is drained every drainTimeoutSec");
+            }
+            if (codec == BulkCompressor.Codec.ZSTD || level != BulkCompressor.DEFAULT_LEVEL) {
+                addWarn("compression other than gzip at its default level needs a queue kept by the appender, an "
+                        + "off-heap in-memory queue or a memory-mapped disk queue. Requests are gzipped");
+            }
+        }
+        throwableProxyConverter = new ThrowableProxyConverter();
+        List<String> frameworkPackages = context instanceof LoggerContext
+                ? ((LoggerContext) context).getFrameworkPackages()
+                : Collections.emptyList();
+        callerLineResolver = new CallerLineResolver(new LineOfCallerConverter(), lineMinLevel, lineSampleRate,
+                lineStackWalker, lineMaxDepth, frameworkPackages);
+        throwableProxyConverter.setOptionList(Collections.singletonList("full"));
+        throwableProxyConverter.start();
+        exceptionRenderer = new ExceptionRenderer(throwableProxyConverter, exceptionCacheSize,
+                TimeUnit.SECONDS.toMillis(exceptionDedupWindowSec));
+        selfLoggingFilter = new SelfLoggingFilter(excludedLoggerPrefixes);
+        if (backpressure) {
+            if (queueFillLevel(pipelines) == null) {
+                addWarn("backpressure needs a queue whose fill level can be measured, an off-heap in-memory queue or "
+                        + "a memory-mapped disk queue with diskQueueCapacityBytes. It is disabled");
+            } else {
+                if (backpressureShedPercent > backpressureBlockPercent) {
+                    addWarn("backpressureShedPercent is above backpressureBlockPercent, events only get shed");
+                }
+                // One per pipeline, a shard's full queue only holds back the events routed to it
+                for (Pipeline target : pipelines) {
+                    target.backpressurePolicy = new BackpressurePolicy(target.queueFillLevel,
+                            backpressureShedPercent / 100.0, backpressureShedLevel, backpressureBlockPercent / 100.0,
+                            TimeUnit.MILLISECONDS.toNanos(backpressureBlockTimeoutMs), new StatusReporter());
+                }
+            }
+        }
+        if (!levelRateLimits.isEmpty() || !loggerRateLimits.isEmpty()) {
+            rateLimiter = new RateLimiter(levelRateLimits, loggerRateLimits, System::nanoTime);
+            if (rateLimitSummaryIntervalSec > 0) {
+                rateLimitSummaryTask = getTasksExecutor().scheduleWithFixedDelay(this::reportSuppressedEvents,
+                        rateLimitSummaryIntervalSec, rateLimitSummaryIntervalSec, TimeUnit.SECONDS);
+            }
+        }
+        streamingEncoderWriter = StreamingEncoderWriter.forEncoder(encoder);
+        timestampEncoder = new TimestampEncoder(timestampPrecision);
+        if (structuredArguments && encoder != null) {
+            addWarn("structuredArguments is ignored when an encoder formats the logs");
+        } else if (structuredArguments && FORMAT_JSON.equals(format)) {
+            addWarn("structuredArguments is ignored with format json, the members of JSON messages are shipped as fields");
+        }
+        if (!formatMessage && !shipsStructuredArguments()) {
+            addWarn("formatMessage false needs structuredArguments and the text format. The message is formatted");
+        }
+        mdcProjection = new MdcProjection(mdcIncludeKeys, mdcExcludeKeys, mdcRenames);
+        jsonEventWriter = new JsonEventWriter(FORMAT_JSON.equals(format), spliceJsonMessages, shipsStructuredArguments(),
+                shipsFormattedMessage(), line, addOpentelemetryContext, callerLineResolver, exceptionRenderer,
+                timestampEncoder, additionalFieldsMap, mdcProjection);
+        if (async) {
+            asyncDispatcher = new AsyncDispatcher(asyncQueueSize, asyncWorkers, asyncWaitStrategy, asyncDropInfoWhenFull,
+                    ASYNC_SHUTDOWN_TIMEOUT_MS, String.valueOf(getName()), this::formatMessageAndSend, new StatusReporter());
+            asyncDispatcher.start();
+        }
+        if (jmxMetrics) {
+            registerMetrics();
+        }
+        super.start();
+    }
+
+    /**
+     * Creates the sender for a token and a type, with its queue, and starts shipping it
+     *
+     * @param name names the threads shipping the queue
+     * @return null if it could not be created, the error was reported
+     */
+    private Pipeline startPipeline(String token, String type, BulkCompressor.Codec codec, int level, String name) {
+        HttpsRequestConfiguration conf;
+        try {
+            conf = getHttpsRequestConfiguration(token, type, codec != BulkCompressor.Codec.NONE);
+        } catch (LogzioParameterErrorException e) {
+            addError("Some of the configuration parameters of logz.io are wrong: " + e.getMessage(), e);
+            return null;
+        }
+        Pipeline pipeline = new Pipeline(token, type);
+        LogzioSender.Builder logzioSenderBuilder = getSenderBuilder(conf, pipeline.senderReporter);
+        if (inMemoryQueue) {
+            if (inMemoryQueueOffHeap) {
+                // The limits apply to the off-heap queue, the sender's queue only ever holds what is being sent
+                OffHeapLogsQueue offHeapQueue = new OffHeapLogsQueue(inMemoryQueueCapacityBytes, inMemoryLogsCountCapacity,
+                        pipeline.reporter);
+                pipeline.appenderQueue = offHeapQueue;
+                pipeline.queueFillLevel = offHeapQueue::fillLevel;
+                logzioSenderBuilder
+                        .withInMemoryQueue()
+                        .setCapacityInBytes(DONT_LIMIT_CAPACITY)
+                        .setLogsCountLimit(DONT_LIMIT_CAPACITY)
+                        .endInMemoryQueue();
+            } else {
+                logzioSenderBuilder
+                        .withInMemoryQueue()
+                        .setCapacityInBytes(inMemoryQueueCapacityBytes)
+                        .setLogsCountLimit(inMemoryLogsCountCapacity)
+                        .endInMemoryQueue();
+            }
+        } else {
+            File queueDirFile = getQueueFile(type);
+            if (queueDirFile == null) {
+                return null;
+            }
+            if (diskQueueMemoryMapped) {
+                try {
+                    MappedSegmentLogsQueue mappedQueue = new MappedSegmentLogsQueue(queueDirFile,
+                            MappedSegmentLogsQueue.DEFAULT_SEGMENT_SIZE, diskQueueSyncPolicy, diskQueueSyncEveryLogs,
+                            fileSystemFullPercentThreshold, diskQueueCapacityBytes, pipeline.reporter);
+                    pipeline.appenderQueue = mappedQueue;
+                    if (mappedQueue.replayLogs() > 0) {
+                        addInfo("Replaying " + mappedQueue.replayLogs() + " logs left in " + queueDirFile.getAbsolutePath()
+                                + " by the previous run");
+                    }
+                    if (diskQueueCapacityBytes != DONT_LIMIT_CAPACITY) {
+                        // The disk space is shared with everything else on the file system, the queue's own size is not
+                        pipeline.queueFillLevel = mappedQueue::fillLevel;
+                    }
+                } catch (IOException e) {
+                    addError("Could not open the memory-mapped disk queue in " + queueDirFile.getAbsolutePath(), e);
+                    return null;
+                }
+                // The sender's queue only ever holds the bulk being sent, the logs stay on disk until it was shipped
+                logzioSenderBuilder
+                        .withInMemoryQueue()
+                        .setCapacityInBytes(DONT_LIMIT_CAPACITY)
+                        .setLogsCountLimit(DONT_LIMIT_CAPACITY)
+                        .endInMemoryQueue();
+            } else {
+                logzioSenderBuilder
+                        .withDiskQueue()
+                        .setQueueDir(queueDirFile)
+                        .setGcPersistedQueueFilesIntervalSeconds(gcPersistedQueueFilesIntervalSeconds)
+                        .setFsPercentThreshold(fileSystemFullPercentThreshold)
+                        .endDiskQueue();
+            }
+        }
+        try {
+            pipeline.logzioSender = logzioSenderBuilder.build();
+        } catch (LogzioParameterErrorException | IOException e) {
+            addError("Could not create logzio sender", e);
+            pipeline.closeAppenderQueue();
+            return null;
+        }
+
+        if (pipeline.appenderQueue != null) {
+            // The appender ships its queues itself: the sender does not tell which bulks the listener acknowledged,
+            // and would take the whole backlog onto the heap on stop
+            long shippingIntervalMs = TimeUnit.SECONDS.toMillis(drainTimeoutSec);
+            if (adaptiveBatching) {
+                if (bulkMinBytes > bulkMaxBytes) {
+                    addWarn("bulkMinBytes is above bulkMaxBytes, bulks are up to bulkMaxBytes");
+                }
+                pipeline.adaptiveBatcher = new AdaptiveBatcher(Math.min(bulkMinBytes, bulkMaxBytes), bulkMaxBytes,
+                        pipeline::requestFlush, System::nanoTime);
+                shippingIntervalMs = bulkMaxLingerMs;
+            }
+            pipeline.bulkShipper = new ParallelBulkShipper(pipeline.appenderQueue, conf,
+                    BulkTransport.create(transport, conf, pipeline.reporter), codec, level, maxInFlightBulks,
+                    pipeline.adaptiveBatcher, newConnectionPool(name), metrics, pipeline.reporter);
+            pipeline.bulkShipperTask = getTasksExecutor().scheduleWithFixedDelay(pipeline.bulkShipper,
+                    shippingIntervalMs, shippingIntervalMs, TimeUnit.MILLISECONDS);
+            if (pipeline.appenderQueue instanceof MappedSegmentLogsQueue && diskQueueReplayBytesPerSec > 0) {
+                // Spread over the shipping runs, a run never waits for the rate
+                ((MappedSegmentLogsQueue) pipeline.appenderQueue).throttleReplay(diskQueueReplayBytesPerSec,
+                        diskQueueReplayBytesPerSec * shippingIntervalMs / 1000, System::nanoTime);
+            }
+            if (pipeline.appenderQueue instanceof MappedSegmentLogsQueue && diskQueueSyncPolicy == MappedSegmentLogsQueue.SyncPolicy.INTERVAL) {
+                pipeline.diskQueueSyncTask = getTasksExecutor().scheduleWithFixedDelay(
+                        ((MappedSegmentLogsQueue) pipeline.appenderQueue)::sync,
+                        diskQueueSyncIntervalMs, diskQueueSyncIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        } else {
+            // What LogzioSender.start() schedules, with each drain timed
+            pipeline.senderDrainTask = getTasksExecutor().scheduleWithFixedDelay(pipeline::drainQueueAndSend,
+                    0, drainTimeoutSec, TimeUnit.SECONDS);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Starts a pipeline for each token and type the shards route to, the ones the default pipeline ships excepted
+     *
+     * @return false if one could not be created, the error was reported
+     */
+    private boolean startShards(List<Pipeline> started, BulkCompressor.Codec codec, int level) {
+        if (shardBy == null || shardTypes.isEmpty()) {
+            if (shardBy != null || !shardTypes.isEmpty()) {
+                addWarn("Sharding needs both shardBy and shards. Events are not sharded");
+            }
+            return true;
+        }
+        Map<String, Pipeline> routes = new HashMap<>();
+        for (Map.Entry<String, String> shard : shardTypes.entrySet()) {
+            String type = shard.getValue();
+            String token = shardTokens.getOrDefault(shard.getKey(), logzioToken);
+            Pipeline target = started.stream()
+                    .filter(candidate -> candidate.ships(token, type))
+                    .findFirst()
+                    .orElse(null);
+            if (target == null) {
+                if (!inMemoryQueue && started.stream().anyMatch(candidate -> candidate.logzioType.equals(type))) {
+                    // The disk queue directory is named after the type, its logs would ship under either token
+                    addError("The shard " + shard.getKey() + " has the type " + type
+                            + ", which already has a disk queue for another token. Give it a type of its own");
+                    return false;
+                }
+                target = startPipeline(token, type, codec, level, getName() + "-" + type);
+                if (target == null) {
+                    return false;
+                }
+                started.add(target);
+            }
+            routes.put(shard.getKey(), target);
+        }
+        shardRouter = new ShardRouter<>(shardBy, shardByMdcKey, routes, pipeline);
+        return true;
+    }
+
+    private void registerMetrics() {
+        try {
+            ObjectName objectName = new ObjectName("io.logz.logback:type=LogzioLogbackAppender,context="
+                    + ObjectName.quote(String.valueOf(context.getName())) + ",name=" + ObjectName.quote(String.valueOf(getName())));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            metricsObjectName = objectName;
+        } catch (JMException e) {
+            addWarn("Could not register the appender metrics MBean", e);
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsObjectName != null) {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                mBeanServer.unregisterMBean(metricsObjectName);
+            } catch (JMException e) {
+                addWarn("Could not unregister the appender metrics MBean", e);
+            }
+            metricsObjectName = null;
+        }
+    }
+
+    private LogzioSender.Builder getSenderBuilder(HttpsRequestConfiguration conf, SenderStatusReporter reporter) {
+        LogzioSender.Builder builder = LogzioSender
+                .builder()
+                .setDebug(debug)
+                .setDrainTimeoutSec(drainTimeoutSec)
+                .setHttpsRequestConfiguration(conf)
+                .setReporter(reporter)
+                .setWithOpentelemetryContext(addOpentelemetryContext)
+                .setExceedMaxSizeAction(exceedMaxSizeAction);
+
+        if (this.customExecutorService != null) {
+            addInfo("Using custom ScheduledExecutorService for LogzioSender task execution.");
+        } else if (shippingExecutorService != null) {
+            addInfo("Using the appender's own ExecutorService for LogzioSender task execution.");
+        } else {
+            addInfo("No custom ScheduledExecutorService provided, using default Logback context ExecutorService.");
+        }
+        builder.setTasksExecutor(getTasksExecutor());
+
+        return builder;
+    }
+
+    private ScheduledExecutorService getTasksExecutor() {
+        if (this.customExecutorService != null) {
+            return this.customExecutorService;
+        }
+        return shippingExecutorService != null ? shippingExecutorService : context.getScheduledExecutorService();
+    }
+
+    /**
+     * @return the threads running the bulks in flight of a pipeline, virtual ones along with the virtual executor
+     */
+    private ExecutorService newConnectionPool(String name) {
+        ExecutorService connections = shippingExecutorService != null && shippingExecutorService.isVirtual()
+                ? ShippingExecutor.newVirtualThreadPerTaskExecutor("logzio-bulk-" + name + "-")
+                : null;
+        return connections != null ? connections : ParallelBulkShipper.newConnectionPool(maxInFlightBulks, name);
+    }
+
+    private File getQueueFile(String logzioType) {
+        String queueDir;
+        if (this.queueDir != null) {
+            // Each type has its own directory, and so does each shard
+            queueDir = this.queueDir + File.separator + logzioType;
+            File queueFile = new File(queueDir);
+            if (queueFile.exists()) {
+                if (!queueFile.canWrite()) {
+                    addError("We cant write to your queueDir location: " + queueFile.getAbsolutePath());
+                    return null;
+                }
+            } else {
+                if (!queueFile.mkdirs()) {
+                    addError("We cant create your queueDir location: " + queueFile.getAbsolutePath());
+                    return null;
+                }
+            }
+        } else {
+            queueDir = System.getProperty("java.io.tmpdir") + File.separator + "logzio-logback-queue" + File.separator
+                    + logzioType;
+        }
+        return new File(queueDir, "logzio-logback-appender");
+    }
+
+    private boolean validateInMemoryThresholds() {
+        if (inMemoryQueueCapacityBytes <= 0 && inMemoryQueueCapacityBytes != DONT_LIMIT_CAPACITY) {
+            addError("inMemoryQueueCapacityBytes should be a non zero integer or " + DONT_LIMIT_CAPACITY);
+            return false;
+        }
+        if (inMemoryLogsCountCapacity <= 0 && inMemoryLogsCountCapacity != DONT_LIMIT_CAPACITY) {
+            addError("inMemoryLogsCountCapacity should be a non zero integer or " + DONT_LIMIT_CAPACITY);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean validateFsPercentThreshold() {
+        if (!(fileSystemFullPercentThreshold >= LOWER_PERCENTAGE_FS_SPACE
+                && fileSystemFullPercentThreshold <= UPPER_PERCENTAGE_FS_SPACE)) {
+            if (fileSystemFullPercentThreshold != DONT_LIMIT_CAPACITY) {
+                addError("fileSystemFullPercentThreshold should be a number between 1 and 100, or "
+                        + DONT_LIMIT_CAPACITY);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setHostname() {
+        try {
+            if (addHostname) {
+                String hostname = InetAddress.getLocalHost().getHostName();
+                additionalFieldsMap.put("hostname", hostname);
+            }
+        } catch (UnknownHostException e) {
+            addWarn("The configuration addHostName was specified but the host could not be resolved, thus the field 'hostname' will not be added",
+                    e);
+        }
+    }
+
+    private HttpsRequestConfiguration getHttpsRequestConfiguration(String logzioToken, String logzioType,
+                                                                   boolean compressRequests)
+            throws LogzioParameterErrorException {
+        return HttpsRequestConfiguration
+                .builder()
+                .setLogzioListenerUrl(logzioUrl)
+                .setSocketTimeout(socketTimeout)
+                .setLogzioType(logzioType)
+                .setLogzioToken(logzioToken)
+                .setConnectTimeout(connectTimeout)
+                .setCompressRequests(compressRequests)
+                .build();
+    }
+
+    /**
+     * Flush buffers and send accumulated messages to server
+     */
+    public void drainQueueAndSend() {
+        for (Pipeline pipeline : pipelines) {
+            pipeline.drainQueueAndSend();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (asyncDispatcher != null) {
+            asyncDispatcher.stop();
+            asyncDispatcher = null;
+        }
+        if (rateLimitSummaryTask != null) {
+            rateLimitSummaryTask.cancel(false);
+            rateLimitSummaryTask = null;
+            reportSuppressedEvents();
+        }
+        rateLimiter = null;
+        long shed = 0;
+        long dropped = 0;
+        for (Pipeline pipeline : pipelines) {
+            if (pipeline.backpressurePolicy != null) {
+                shed += pipeline.backpressurePolicy.getShedEvents();
+                dropped += pipeline.backpressurePolicy.getDroppedEvents();
+            }
+        }
+        if (shed > 0 || dropped > 0) {
+            addWarn("Backpressure shed " + shed + " events at " + backpressureShedLevel + " and below, and dropped "
+                    + dropped + " events on a full queue since start");
+        }
+        for (Pipeline pipeline : pipelines) {
+            pipeline.stop();
+        }
+        pipelines = Collections.emptyList();
+        pipeline = null;
+        shardRouter = null;
+        shutdownShippingExecutor();
+        unregisterMetrics();
+        if (throwableProxyConverter != null)
+            throwableProxyConverter.stop();
+        super.stop();
+    }
+
+    /**
+     * Waits for the tasks still running on the appender's own executor, if any, a custom one is left running
+     */
+    private void shutdownShippingExecutor() {
+        ShippingExecutor executor = shippingExecutorService;
+        if (executor == null) {
+            return;
+        }
+        shippingExecutorService = null;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHIPPING_EXECUTOR_SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                addWarn("Shipping tasks still running after " + SHIPPING_EXECUTOR_SHUTDOWN_TIMEOUT_SEC
+                        + " seconds, interrupting them");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends an event counting the events the rate limits suppressed since the last one, if any
+     */
+    private void reportSuppressedEvents() {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return;
+        }
+        Map<String, Long> suppressed = limiter.drainSuppressed();
+        if (suppressed.isEmpty()) {
+            return;
+        }
+        long total = suppressed.values().stream().mapToLong(Long::longValue).sum();
+        StringBuilder message = new StringBuilder("Rate limits suppressed ").append(total).append(" events:");
+        suppressed.forEach((bucket, count) -> message.append(' ').append(bucket).append('=').append(count));
+
+        LoggingEvent summary = new LoggingEvent();
+        summary.setLoggerName(LogzioLogbackAppender.class.getName());
+        summary.setLevel(Level.WARN);
+        summary.setMessage(message.toString());
+        summary.setThreadName(Thread.currentThread().getName());
+        summary.setInstant(Instant.now());
+        summary.setMDCPropertyMap(Collections.singletonMap(RateLimiter.SUPPRESSED_EVENTS, Long.toString(total)));
+        if (context instanceof LoggerContext) {
+            summary.setLoggerContext((LoggerContext) context);
+        }
+        // Not rate limited itself, and without a caller line, it is not logged from the application
+        formatMessageAndSend(summary, route(summary), null, null);
+    }
+
+    JsonEventWriter getJsonEventWriter() {
+        return jsonEventWriter;
+    }
+
+    /**
+     * The structured arguments of a JSON formatted message would compete with its members, they are text format only
+     */
+    private boolean shipsStructuredArguments() {
+        return structuredArguments && !FORMAT_JSON.equals(format);
+    }
+
+    /**
+     * The template alone is shipped only when the arguments are, the JSON format has to parse the formatted message
+     */
+    private boolean shipsFormattedMessage() {
+        return formatMessage || !shipsStructuredArguments();
+    }
+
+    private String getValueFromSystemEnvironmentIfNeeded(String value) {
+        if (value != null && value.startsWith("$")) {
+            String variableName = value.replace("$", "");
+            String envVariable = System.getenv(variableName);
+
+            if (envVariable == null || envVariable.isEmpty()) {
+                envVariable = System.getProperty(variableName);
+            }
+            return envVariable;
+        }
+        return value;
+    }
+
+    /**
+     * @param spanContext span context captured on the logging thread when formatting on another thread, or null
+     * @param callerLine  line resolved on the logging thread, null to leave it out
+     */
+    private void formatMessageAndSend(ILoggingEvent loggingEvent, SpanContext spanContext, String callerLine) {
+        // On an async worker, routed again, the MDC it is routed on was captured with the event
+        formatMessageAndSend(loggingEvent, route(loggingEvent), spanContext, callerLine);
+    }
+
+    /**
+     * @param target the pipeline the event was routed to
+     */
+    private void formatMessageAndSend(ILoggingEvent loggingEvent, Pipeline target, SpanContext spanContext,
+                                      String callerLine) {
+        boolean timed = metrics.sampleFormatTime();
+        long start = timed ? System.nanoTime() : 0;
+        try {
+            if (encoder == null) {
+                byte[] log = streamingJson ? jsonEventWriter.write(loggingEvent, spanContext, callerLine) : null;
+                if (log != null) {
+                    send(target, log);
+                } else {
+                    send(target, formatMessageAsJsonInternal(loggingEvent, callerLine), spanContext);
+                }
+            } else if (streamingEncoderWriter != null) {
+                send(target, streamingEncoderWriter.write(loggingEvent));
+            } else {
+                send(target, encoder.encode(loggingEvent));
+            }
+        } catch (Exception e) {
+            metrics.formatFailures.increment();
+            addWarn("Failed to format and send message", e);
+        }
+        if (timed) {
+            metrics.recordFormatTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Applies exceedMaxSizeAction to a log the appender queues, as the sender does to the logs it queues itself
+     *
+     * @return the log, with its message cut if it had to be, or null to drop it
+     */
+    private byte[] fitToMaxLogSize(byte[] log) {
+        if (log.length <= JsonEventWriter.MAX_LOG_SIZE_IN_BYTES) {
+            return log;
+        }
+        if ("cut".equalsIgnoreCase(exceedMaxSizeAction)) {
+            try {
+                JsonObject logMessage = gson.fromJson(new String(log, StandardCharsets.UTF_8), JsonElement.class).getAsJsonObject();
+                String message = logMessage.get(MESSAGE).getAsString();
+                int excess = log.length - JsonEventWriter.MAX_LOG_SIZE_IN_BYTES;
+                int length = Math.min(JsonEventWriter.MAX_MESSAGE_LENGTH - TRUNCATED_MESSAGE_SUFFIX.length(),
+                        message.getBytes(StandardCharsets.UTF_8).length - excess - TRUNCATED_MESSAGE_SUFFIX.length());
+                if (length > 0) {
+                    logMessage.addProperty(MESSAGE, message.substring(0, Math.min(length, message.length())) + TRUNCATED_MESSAGE_SUFFIX);
+                    return logMessage.toString().getBytes(StandardCharsets.UTF_8);
+                }
+            } catch (RuntimeException e) {
+                // Not a JSON object with a message, there is nothing to cut
+            }
+        }
+        if (debug) {
+            addInfo("Dropping oversized log of " + log.length + " bytes");
+        }
+        return null;
+    }
+
+    private void send(Pipeline pipeline, byte[] log) {
+        metrics.eventsSent.increment();
+        metrics.bytesSent.add(log.length);
+        if (pipeline.appenderQueue != null) {
+            pipeline.enqueue(log);
+        } else {
+            pipeline.logzioSender.send(log);
+        }
+    }
+
+    private void send(Pipeline pipeline, JsonObject logMessage, SpanContext spanContext) {
+        metrics.eventsSent.increment();
+        if (pipeline.appenderQueue != null) {
+            // The sender adds the span fields when it gets a JsonObject, on the logging thread. Logs queued
+            // by the appender reach it as bytes from another thread, so the span has to be added here.
+            SpanContext span = spanContext != null ? spanContext : jsonEventWriter.currentSpanContext();
+            if (span != null) {
+                jsonEventWriter.addOpentelemetryContext(logMessage, span);
+            }
+            byte[] log = logMessage.toString().getBytes(StandardCharsets.UTF_8);
+            metrics.bytesSent.add(log.length);
+            pipeline.enqueue(log);
+        } else {
+            if (spanContext != null) {
+                jsonEventWriter.addOpentelemetryContext(logMessage, spanContext);
+            }
+            pipeline.logzioSender.send(logMessage);
+        }
+    }
+
+    JsonObject formatMessageAsJsonInternal(ILoggingEvent loggingEvent) {
+        return formatMessageAsJsonInternal(loggingEvent, callerLine(loggingEvent));
+    }
+
+    private JsonObject formatMessageAsJsonInternal(ILoggingEvent loggingEvent, String callerLine) {
+        JsonObject logMessage;
+
+        if (format.equals(FORMAT_JSON) && jsonEventWriter.mayBeJsonMessage(loggingEvent.getFormattedMessage())) {
+            try {
+                JsonElement jsonElement = gson.fromJson(loggingEvent.getFormattedMessage(), JsonElement.class);
+                logMessage = jsonElement.getAsJsonObject();
+            } catch (Exception e) {
+                logMessage = new JsonObject();
+                logMessage.addProperty(MESSAGE, loggingEvent.getFormattedMessage());
+            }
+        } else {
+            logMessage = new JsonObject();
+            boolean formatted = shipsFormattedMessage();
+            logMessage.addProperty(MESSAGE, formatted ? loggingEvent.getFormattedMessage() : loggingEvent.getMessage());
+            if (shipsStructuredArguments()) {
+                StructuredFields.add(logMessage, loggingEvent, formatted);
+            }
+        }
+
+        // Adding MDC first, as I dont want it to collide with any one of the following
+        // fields
+        Map<String, String> mdc = loggingEvent.getMDCPropertyMap();
+        if (mdc != null) {
+            for (Map.Entry<String, String> entry : mdc.entrySet()) {
+                String fieldName = mdcProjection.fieldName(entry.getKey(), mdc);
+                if (fieldName != null) {
+                    logMessage.addProperty(fieldName, entry.getValue());
+                }
+            }
+        }
+
+        logMessage.addProperty(TIMESTAMP, timestampEncoder.format(loggingEvent));
+        logMessage.addProperty(LOGLEVEL, loggingEvent.getLevel().levelStr);
+
+        if (loggingEvent.getMarker() != null) {
+            logMessage.addProperty(MARKER, loggingEvent.getMarker().toString());
+        }
+
+        logMessage.addProperty(LOGGER, loggingEvent.getLoggerName());
+        logMessage.addProperty(THREAD, loggingEvent.getThreadName());
+        if (line && callerLine != null) {
+            logMessage.addProperty(LINE, callerLine);
+        }
+
+        if (loggingEvent.getThrowableProxy() != null) {
+            ExceptionRenderer.Rendering rendering = exceptionRenderer.render(loggingEvent);
+            logMessage.addProperty(EXCEPTION, rendering.exception);
+            if (rendering.fingerprint != null) {
+                logMessage.addProperty(ExceptionRenderer.EXCEPTION_FINGERPRINT, rendering.fingerprint);
+                logMessage.addProperty(ExceptionRenderer.EXCEPTION_COUNT, rendering.count);
+            }
+        }
+
+        if (additionalFieldsMap != null) {
+            additionalFieldsMap.forEach(logMessage::addProperty);
+        }
+
+        return logMessage;
+    }
+
+    @Override
+    protected void append(ILoggingEvent loggingEvent) {
+        metrics.eventsAppended.increment();
+        Pipeline target = accept(loggingEvent);
+        if (target != null) {
+            AsyncDispatcher dispatcher = asyncDispatcher;
+            if (dispatcher != null) {
+                dispatchAsync(dispatcher, loggingEvent);
+            } else {
+                formatMessageAndSend(loggingEvent, target, null, callerLine(loggingEvent));
+            }
+        }
+    }
+
+    /**
+     * Appends several events in one call, applying the appender's filters to each of them.
+     * In async mode the batch is handed to the workers claiming ring slots for many events at once,
+     * instead of once per event.
+     */
+    public void appendBatch(List<? extends ILoggingEvent> loggingEvents) {
+        if (!isStarted()) {
+            // Let logback report the appender is not started, the way it does for a single event
+            loggingEvents.forEach(this::doAppend);
+            return;
+        }
+        List<ILoggingEvent> accepted = new ArrayList<>(loggingEvents.size());
+        List<Pipeline> targets = new ArrayList<>(loggingEvents.size());
+        for (ILoggingEvent loggingEvent : loggingEvents) {
+            if (getFilterChainDecision(loggingEvent) != FilterReply.DENY) {
+                metrics.eventsAppended.increment();
+                Pipeline target = accept(loggingEvent);
+                if (target != null) {
+                    accepted.add(loggingEvent);
+                    targets.add(target);
+                }
+            }
+        }
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            String[] callerLines = line ? new String[accepted.size()] : null;
+            for (int i = 0; i < accepted.size(); i++) {
+                String callerLine = captureThreadBoundState(accepted.get(i));
+                if (callerLines != null) {
+                    callerLines[i] = callerLine;
+                }
+            }
+            int dropped = dispatcher.dispatchBatch(accepted, jsonEventWriter.currentSpanContext(), callerLines);
+            metrics.eventsDroppedByAsyncQueue.add(dropped);
+        } else {
+            for (int i = 0; i < accepted.size(); i++) {
+                formatMessageAndSend(accepted.get(i), targets.get(i), null, callerLine(accepted.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Routes the event, then applies the backpressure of the pipeline it is routed to
+     *
+     * @return the pipeline the event is routed to, null if it is dropped
+     */
+    private Pipeline accept(ILoggingEvent loggingEvent) {
+        if (selfLoggingFilter.isExcluded(loggingEvent.getLoggerName()) || !isWithinRateLimits(loggingEvent)) {
+            return null;
+        }
+        Pipeline target = route(loggingEvent);
+        return target != null && isAdmittedByBackpressure(target, loggingEvent) ? target : null;
+    }
+
+    private Pipeline route(ILoggingEvent loggingEvent) {
+        ShardRouter<Pipeline> router = shardRouter;
+        return router != null ? router.route(loggingEvent) : pipeline;
+    }
+
+    private boolean isWithinRateLimits(ILoggingEvent loggingEvent) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null || limiter.tryAcquire(loggingEvent)) {
+            return true;
+        }
+        metrics.eventsRateLimited.increment();
+        return false;
+    }
+
+    private boolean isAdmittedByBackpressure(Pipeline target, ILoggingEvent loggingEvent) {
+        BackpressurePolicy policy = target.backpressurePolicy;
+        if (policy == null || policy.admit(loggingEvent)) {
+            return true;
+        }
+        metrics.eventsDroppedByBackpressure.increment();
+        return false;
+    }
+
+    private void dispatchAsync(AsyncDispatcher dispatcher, ILoggingEvent loggingEvent) {
+        String callerLine = captureThreadBoundState(loggingEvent);
+        if (!dispatcher.dispatch(loggingEvent, jsonEventWriter.currentSpanContext(), callerLine)) {
+            metrics.eventsDroppedByAsyncQueue.increment();
+        }
+    }
+
+    /**
+     * Thread bound state has to be captured before the event is handed over to a worker thread, and the message
+     * formatted while its arguments are as they were logged, as Logback's own async appender does.
+     *
+     * @return the caller line, which can only be found on the logging thread
+     */
+    private String captureThreadBoundState(ILoggingEvent loggingEvent) {
+        loggingEvent.prepareForDeferredProcessing();
+        return callerLine(loggingEvent);
+    }
+
+    private String callerLine(ILoggingEvent loggingEvent) {
+        return line ? callerLineResolver.resolve(loggingEvent) : null;
+    }
+
+    /**
+     * A sender for one token and type, with the queue the appender keeps for it, if any, and what ships that queue.
+     * There is one for the appender's own token and type, and one for each other the shards route to.
+     */
+    private final class Pipeline {
+        private final String logzioToken;
+        private final String logzioType;
+        private final StatusReporter reporter = new StatusReporter();
+        // Counts the retries the sender reports, the bulk shipper counts its own
+        private final StatusReporter senderReporter = new StatusReporter(true);
+        private LogzioSender logzioSender;
+        // Set when the appender keeps the queue itself, off-heap or memory-mapped, and ships it
+        private LogsQueue appenderQueue;
+        private ParallelBulkShipper bulkShipper;
+        // Null unless adaptive batching is enabled and the appender keeps the queue
+        private volatile AdaptiveBatcher adaptiveBatcher;
+        private ScheduledFuture<?> bulkShipperTask;
+        private ScheduledFuture<?> diskQueueSyncTask;
+        // Set when the sender ships its own queue
+        private ScheduledFuture<?> senderDrainTask;
+        // Null when the fill level of the queue can't be measured, as for the sender's own queues
+        private DoubleSupplier queueFillLevel;
+        // Null unless backpressure is enabled
+        private BackpressurePolicy backpressurePolicy;
+
+        private Pipeline(String logzioToken, String logzioType) {
+            this.logzioToken = logzioToken;
+            this.logzioType = logzioType;
+        }
+
+        private boolean ships(String token, String type) {
+            return logzioType.equals(type) && Objects.equals(logzioToken, token);
+        }
+
+        private void enqueue(byte[] log) {
+            log = fitToMaxLogSize(log);
+            if (log == null) {
+                return;
+            }
+            appenderQueue.enqueue(log);
+            AdaptiveBatcher batcher = adaptiveBatcher;
+            if (batcher != null) {
+                batcher.onEnqueued(log.length);
+            }
+        }
+
+        private long queueSize() {
+            LogsQueue queue = appenderQueue;
+            if (queue instanceof OffHeapLogsQueue) {
+                return ((OffHeapLogsQueue) queue).size();
+            }
+            if (queue instanceof MappedSegmentLogsQueue) {
+                return ((MappedSegmentLogsQueue) queue).size();
+            }
+            return -1;
+        }
+
+        private void drainQueueAndSend() {
+            if (bulkShipper != null) {
+                bulkShipper.run();
+            } else if (logzioSender != null) {
+                long start = System.nanoTime();
+                logzioSender.drainQueueAndSend();
+                metrics.recordDrainTime(System.nanoTime() - start);
+            }
+        }
+
+        private void stop() {
+            if (bulkShipperTask != null) {
+                bulkShipperTask.cancel(false);
+                bulkShipperTask = null;
+                // No more flush requests
+                adaptiveBatcher = null;
+                // Bounded, acknowledges what it shipped to the queue itself and reports what is left
+                bulkShipper.stop();
+            }
+            if (diskQueueSyncTask != null) {
+                diskQueueSyncTask.cancel(false);
+                diskQueueSyncTask = null;
+            }
+            if (senderDrainTask != null) {
+                senderDrainTask.cancel(false);
+                senderDrainTask = null;
+            }
+            if (logzioSender != null)
+                logzioSender.stop();
+            closeAppenderQueue();
+        }
+
+        /**
+         * Ships the appender queue on a tasks thread, once the adaptive batcher saw a bulk worth of logs enqueued
+         */
+        private void requestFlush() {
+            ParallelBulkShipper shipper = bulkShipper;
+            if (shipper == null) {
+                return;
+            }
+            try {
+                getTasksExecutor().execute(shipper::runIfIdle);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the final drain ships it
+            }
+        }
+
+        private void closeAppenderQueue() {
+            if (appenderQueue != null) {
+                try {
+                    appenderQueue.close();
+                } catch (IOException e) {
+                    addWarn("Could not close the appender queue", e);
+                }
+                appenderQueue = null;
+                bulkShipper = null;
+                adaptiveBatcher = null;
+            }
+        }
+    }
+
+    private class StatusReporter implements SenderStatusReporter {
+        private final boolean countsSenderRetries;
+
+        private StatusReporter() {
+            this(false);
+        }
+
+        private StatusReporter(boolean countsSenderRetries) {
+            this.countsSenderRetries = countsSenderRetries;
+        }
+
+        @Override
+        public void error(String msg) {
+            countError();
+            addError(msg);
+        }
+
+        @Override
+        public void error(String msg, Throwable e) {
+            countError();
+            addError(msg, e);
+        }
+
+        private void countError() {
+            senderErrors.incrementAndGet();
+        }
+
+        @Override
+        public void warning(String msg) {
+            if (countsSenderRetries && msg != null && msg.startsWith(SENDER_RETRY_WARNING)) {
+                metrics.sendRetries.increment();
+            }
             addWarn(msg);
         }
 
@@ -0,0 +1,919 @@
+package io.logz.logback;
+
+import io.logz.sender.LogsQueue;
+import io.logz.sender.SenderStatusReporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Disk queue made of fixed size memory-mapped segment files, so enqueueing a log is a copy into the page cache.
+ * <p>
+ * A segment starts with a header: a magic number, the segment sequence and the committed read offset. Records follow
+ * as length, the low bits of the segment sequence, and the log bytes. A recycled segment still holds the records of
+ * its previous use, the sequence stamp is what tells them apart from the current ones when the queue is reopened.
+ * <p>
+ * Dequeued logs are only consumed on disk once {@link #commitRead()} is called, after they were shipped, so logs that
+ * were in flight when the process died are shipped again on the next start. How much of the queue survives a machine
+ * crash is up to the {@link SyncPolicy}.
+ * <p>
+ * Reopening the queue reads the segment headers, and an index of where each full segment ends, so only the head and
+ * the tail segments have their records scanned however large the backlog. The logs left from the previous run are
+ * never written to again: they are read from their own segments, interleaved with the logs enqueued since, and can be
+ * replayed at a limited rate, see {@link #throttleReplay(long, long, LongSupplier)}.
+ */
+final class MappedSegmentLogsQueue implements LogsQueue {
+
+    enum SyncPolicy {
+        // Leave writing the pages back to the OS
+        NONE,
+        // Force the segments every diskQueueSyncIntervalMs, from a scheduled task calling sync()
+        INTERVAL,
+        // Force the segments every syncEveryLogs logs, on the logging thread that enqueued the last of them
+        EVERY;
+
+        static SyncPolicy fromString(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final String SEGMENT_FILE_PREFIX = "segment-";
+    static final String SEGMENT_FILE_SUFFIX = ".mmq";
+    static final String INDEX_FILE = "segments.idx";
+    private static final int MAGIC = 0x4C5A4D51;
+    private static final long FREE_SEGMENT = -1;
+    private static final int SEQUENCE_OFFSET = Integer.BYTES;
+    private static final int READ_OFFSET_OFFSET = SEQUENCE_OFFSET + Long.BYTES;
+    private static final int HEADER_SIZE = READ_OFFSET_OFFSET + Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    // Consumed segments kept mapped to be written again, instead of deleting and creating files
+    private static final int MAX_SPARE_SEGMENTS = 2;
+
+    private final File dir;
+    private final int segmentSize;
+    private final SyncPolicy syncPolicy;
+    private final int syncEveryLogs;
+    private final int fsPercentThreshold;
+    private final long capacityInBytes;
+    private final SenderStatusReporter reporter;
+    private final ReentrantLock lock = new ReentrantLock();
+    // The segments left from the previous run, and the ones written since the queue was opened
+    private final Cursor replay = new Cursor();
+    private final Cursor live = new Cursor();
+    private final ArrayDeque<Segment> spareSegments = new ArrayDeque<>();
+    // Entries of the segments that filled up since the last sync, indexed once sync() forced them
+    private final List<IndexEntry> unindexed = new ArrayList<>();
+    private long nextSequence = 1;
+    private long nextFileId;
+    // Written under the lock, read without it, so measuring the queue never waits for a producer
+    private volatile long logsCount;
+    private volatile long sizeInBytes;
+    private int unsyncedLogs;
+    private boolean dropping;
+    private SegmentIndex index;
+    // Logs left from the previous run not dequeued yet
+    private long replayLogs;
+    // Dequeue alternates between the cursors while both have logs
+    private boolean preferReplay = true;
+    // 0 to replay at full speed
+    private long replayBytesPerSecond;
+    private long replayBurstBytes;
+    private LongSupplier nanoClock;
+    private double replayTokens;
+    private long replayRefillNanos;
+
+    /**
+     * Opens the queue in dir, picking up the logs left by a previous run.
+     *
+     * @param fsPercentThreshold used disk space percentage from which logs are dropped,
+     *                           or {@link LogzioLogbackAppender#DONT_LIMIT_CAPACITY}
+     * @param capacityInBytes    limit on the size of the queued logs, or {@link LogzioLogbackAppender#DONT_LIMIT_CAPACITY}
+     */
+    MappedSegmentLogsQueue(File dir, int segmentSize, SyncPolicy syncPolicy, int syncEveryLogs, int fsPercentThreshold,
+                           long capacityInBytes, SenderStatusReporter reporter) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncPolicy = syncPolicy;
+        this.syncEveryLogs = Math.max(1, syncEveryLogs);
+        this.fsPercentThreshold = fsPercentThreshold;
+        this.capacityInBytes = capacityInBytes;
+        this.reporter = reporter;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the queue directory " + dir.getAbsolutePath());
+        }
+        recover();
+    }
+
+    @Override
+    public void enqueue(byte[] log) {
+        boolean syncNow = false;
+        lock.lock();
+        try {
+            if (capacityInBytes != LogzioLogbackAppender.DONT_LIMIT_CAPACITY && sizeInBytes + log.length > capacityInBytes) {
+                reportDropping(String.format("Logz.io: Dropping logs - we crossed the disk queue threshold of %d MB",
+                        capacityInBytes / (1024 * 1024)), null);
+                return;
+            }
+            int recordSize = RECORD_HEADER_SIZE + log.length;
+            Segment tail = live.tail();
+            if (tail == null || tail.remaining() < recordSize) {
+                Segment segment = newSegment(recordSize);
+                if (segment == null) {
+                    return;
+                }
+                if (tail != null && syncPolicy != SyncPolicy.NONE) {
+                    // Full, it is never written again. Indexed by the next sync, once forced, so an entry never points
+                    // past its logs. Left to the OS, the entry could reach the disk before them, the segment is scanned
+                    unindexed.add(tail.indexEntry());
+                }
+                live.segments.add(segment);
+                tail = segment;
+            }
+            tail.append(log);
+            logsCount++;
+            sizeInBytes += log.length;
+            dropping = false;
+            syncNow = syncPolicy == SyncPolicy.EVERY && ++unsyncedLogs >= syncEveryLogs;
+        } catch (IOException e) {
+            reportDropping("Logz.io: Dropping logs - could not write to the queue directory " + dir.getAbsolutePath(), e);
+        } finally {
+            lock.unlock();
+        }
+        if (syncNow) {
+            sync();
+        }
+    }
+
+    @Override
+    public byte[] dequeue() {
+        lock.lock();
+        try {
+            while (logsCount > 0) {
+                boolean liveLogs = logsCount > replayLogs;
+                // The replay rate never holds back the live logs
+                boolean fromReplay = replayLogs > 0 && (preferReplay || !liveLogs) && hasReplayTokens();
+                if (!fromReplay && !liveLogs) {
+                    return null;
+                }
+                byte[] log = (fromReplay ? replay : live).read();
+                if (log == null) {
+                    // The damaged records were dropped, the counts changed
+                    continue;
+                }
+                logsCount--;
+                sizeInBytes -= log.length;
+                if (fromReplay) {
+                    replayLogs--;
+                    replayTokens -= log.length;
+                }
+                preferReplay = !fromReplay;
+                return log;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dropDamagedRecords(Segment segment, boolean replayed) {
+        long lostLogs = segment.unreadLogs;
+        long lostBytes = segment.unreadBytes;
+        segment.endAtRead();
+        logsCount -= lostLogs;
+        sizeInBytes -= lostBytes;
+        if (replayed) {
+            replayLogs -= lostLogs;
+        }
+        reporter.warning("Logz.io: Dropping " + lostLogs + " logs - the queue segment " + segment.file.getAbsolutePath()
+                + " ends before its index entry says");
+    }
+
+    /**
+     * Limits how fast the logs left from the previous run are dequeued, so replaying a large backlog leaves room for
+     * the live logs, of this queue and of the other queues shipping on the same threads. The live logs are dequeued
+     * in turn with the backlog, and at full speed: past the limit dequeue only returns live logs, null once there are
+     * none, until the rate allows more of the backlog.
+     *
+     * @param bytesPerSecond 0 to replay at full speed
+     * @param burstBytes     how much may be dequeued at once after an idle time, one shipping interval worth
+     */
+    void throttleReplay(long bytesPerSecond, long burstBytes, LongSupplier nanoClock) {
+        lock.lock();
+        try {
+            this.replayBytesPerSecond = bytesPerSecond;
+            this.replayBurstBytes = Math.max(bytesPerSecond, burstBytes);
+            this.nanoClock = nanoClock;
+            this.replayTokens = replayBurstBytes;
+            this.replayRefillNanos = nanoClock.getAsLong();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of logs left from the previous run that were not dequeued yet
+     */
+    long replayLogs() {
+        lock.lock();
+        try {
+            return replayLogs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasReplayTokens() {
+        if (replayBytesPerSecond <= 0) {
+            return true;
+        }
+        long now = nanoClock.getAsLong();
+        double refill = (now - replayRefillNanos) * (double) replayBytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        replayTokens = Math.min(replayBurstBytes, replayTokens + refill);
+        replayRefillNanos = now;
+        // The last log may overdraw the tokens, the next ones wait for them to be paid back
+        return replayTokens > 0;
+    }
+
+    /**
+     * Marks everything dequeued so far as consumed on disk, recycling the segments that were read through.
+     */
+    void commitRead() {
+        lock.lock();
+        try {
+            replay.commitRead();
+            live.commitRead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the position after the last log dequeued, for {@link #commitRead(ReadMark)}, null if the queue is empty
+     */
+    ReadMark readMark() {
+        lock.lock();
+        try {
+            if (replay.segments.isEmpty() && live.segments.isEmpty()) {
+                return null;
+            }
+            return new ReadMark(replay.readSequence(), replay.readPosition(), live.readSequence(), live.readPosition());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the logs dequeued before the mark as consumed on disk, the ones dequeued after it are read again after a
+     * crash. Marks must be committed in the order they were taken, a mark older than the last one committed is ignored.
+     */
+    void commitRead(ReadMark mark) {
+        if (mark == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            replay.commitRead(mark.replaySequence, mark.replayPosition);
+            live.commitRead(mark.liveSequence, mark.livePosition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the written logs and the committed read offset to disk, then indexes the segments that filled up.
+     * The segments are forced outside the queue lock, a force runs alongside the logs being enqueued and dequeued.
+     */
+    void sync() {
+        List<Segment> toForce = new ArrayList<>();
+        List<IndexEntry> toIndex;
+        lock.lock();
+        try {
+            toIndex = new ArrayList<>(unindexed);
+            unindexed.clear();
+            for (IndexEntry entry : toIndex) {
+                toForce.add(entry.segment);
+            }
+            // The committed read offsets are in the heads
+            if (!replay.segments.isEmpty()) {
+                toForce.add(replay.segments.get(0));
+            }
+            if (!live.segments.isEmpty()) {
+                toForce.add(live.segments.get(0));
+                if (live.segments.size() > 1) {
+                    toForce.add(live.tail());
+                }
+            }
+            unsyncedLogs = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : toForce) {
+            segment.force();
+        }
+        // A segment recycled in the meantime has a new sequence, its entry is ignored on the next start
+        index.append(toIndex);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return logsCount == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            replay.clear();
+            live.clear();
+            unindexed.clear();
+            logsCount = 0;
+            sizeInBytes = 0;
+            replayLogs = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (syncPolicy != SyncPolicy.NONE) {
+                sync();
+            }
+            index.close();
+            replay.segments.clear();
+            live.segments.clear();
+            spareSegments.clear();
+            logsCount = 0;
+            sizeInBytes = 0;
+            replayLogs = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long size() {
+        return logsCount;
+    }
+
+    long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX));
+        if (files == null) {
+            throw new IOException("Could not list the queue directory " + dir.getAbsolutePath());
+        }
+        List<Segment> recovered = replay.segments;
+        for (File file : files) {
+            nextFileId = Math.max(nextFileId, fileId(file) + 1);
+            Segment segment = Segment.open(file);
+            if (segment.sequence == FREE_SEGMENT) {
+                recycle(segment);
+            } else {
+                recovered.add(segment);
+            }
+        }
+        recovered.sort(Comparator.comparingLong(segment -> segment.sequence));
+        File indexFile = new File(dir, INDEX_FILE);
+        Map<Long, IndexEntry> entries = SegmentIndex.read(indexFile, reporter);
+        for (int i = 0; i < recovered.size(); i++) {
+            Segment segment = recovered.get(i);
+            // The tail may have been written after it was indexed, before it was reopened and appended to
+            IndexEntry entry = i < recovered.size() - 1 ? entries.get(segment.sequence) : null;
+            if (entry != null && segment.committedReadOffset() == HEADER_SIZE) {
+                segment.restore(entry);
+            } else {
+                // The head of each cursor may have consumed records, a segment written since has none committed
+                segment.scan();
+            }
+            logsCount += segment.unreadLogs;
+            sizeInBytes += segment.unreadBytes;
+            nextSequence = segment.sequence + 1;
+        }
+        replayLogs = logsCount;
+        // Only the full segments, the entries of recycled ones and of the tail are dropped
+        index = SegmentIndex.rewrite(indexFile, recovered.subList(0, Math.max(0, recovered.size() - 1)), reporter);
+    }
+
+    private Segment newSegment(int recordSize) throws IOException {
+        if (HEADER_SIZE + recordSize <= segmentSize && !spareSegments.isEmpty()) {
+            Segment segment = spareSegments.pollFirst();
+            segment.reuse(nextSequence++);
+            return segment;
+        }
+        if (isFileSystemFull()) {
+            reportDropping(String.format("Logz.io: Dropping logs - the used space of %s crossed %d%%",
+                    dir.getAbsolutePath(), fsPercentThreshold), null);
+            return null;
+        }
+        File file = new File(dir, SEGMENT_FILE_PREFIX + nextFileId++ + SEGMENT_FILE_SUFFIX);
+        Segment segment = Segment.create(file, Math.max(segmentSize, HEADER_SIZE + recordSize));
+        segment.reuse(nextSequence++);
+        return segment;
+    }
+
+    private void recycle(Segment segment) {
+        if (segment.capacity() == segmentSize && spareSegments.size() < MAX_SPARE_SEGMENTS) {
+            segment.free();
+            spareSegments.addLast(segment);
+        } else if (!segment.file.delete()) {
+            reporter.warning("Could not delete the consumed queue segment " + segment.file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return how close the queued logs are to the queue's capacity, 1 when logs are dropped, 0 when unlimited
+     */
+    double fillLevel() {
+        if (capacityInBytes == LogzioLogbackAppender.DONT_LIMIT_CAPACITY) {
+            return 0;
+        }
+        return (double) sizeInBytes / capacityInBytes;
+    }
+
+    private boolean isFileSystemFull() {
+        if (fsPercentThreshold == LogzioLogbackAppender.DONT_LIMIT_CAPACITY) {
+            return false;
+        }
+        long totalSpace = dir.getTotalSpace();
+        return totalSpace > 0 && (totalSpace - dir.getUsableSpace()) * 100.0 / totalSpace >= fsPercentThreshold;
+    }
+
+    private void reportDropping(String message, Throwable e) {
+        // Once per episode, not once per dropped log
+        if (!dropping) {
+            dropping = true;
+            if (e == null) {
+                reporter.warning(message);
+            } else {
+                reporter.warning(message, e);
+            }
+        }
+    }
+
+    private static long fileId(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The read position of each cursor: the sequence of a segment and an offset in it
+     */
+    static final class ReadMark {
+        private final long replaySequence;
+        private final int replayPosition;
+        private final long liveSequence;
+        private final int livePosition;
+
+        private ReadMark(long replaySequence, int replayPosition, long liveSequence, int livePosition) {
+            this.replaySequence = replaySequence;
+            this.replayPosition = replayPosition;
+            this.liveSequence = liveSequence;
+            this.livePosition = livePosition;
+        }
+    }
+
+    /**
+     * Segments read in order, oldest first, until they are committed as consumed
+     */
+    private final class Cursor {
+        // Not committed as consumed yet. Reads from segments.get(readIndex)
+        private final List<Segment> segments = new ArrayList<>();
+        private int readIndex;
+
+        Segment tail() {
+            return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+
+        /**
+         * Must only be called while the cursor has unread logs
+         *
+         * @return the next log, null if the records left in its segment are damaged, they were dropped
+         */
+        byte[] read() {
+            Segment segment = segments.get(readIndex);
+            while (!segment.hasUnread()) {
+                // Records never span segments, the next one starts at the beginning of the following segment
+                segment = segments.get(++readIndex);
+            }
+            byte[] log = segment.read();
+            if (log == null) {
+                dropDamagedRecords(segment, this == replay);
+            }
+            return log;
+        }
+
+        long readSequence() {
+            return segments.isEmpty() ? FREE_SEGMENT : segments.get(readIndex).sequence;
+        }
+
+        int readPosition() {
+            return segments.isEmpty() ? HEADER_SIZE : segments.get(readIndex).readPosition;
+        }
+
+        void commitRead() {
+            if (!segments.isEmpty()) {
+                commitReadThrough(readIndex, segments.get(readIndex).readPosition);
+            }
+        }
+
+        void commitRead(long sequence, int position) {
+            for (int i = 0; i <= readIndex && i < segments.size(); i++) {
+                if (segments.get(i).sequence == sequence) {
+                    commitReadThrough(i, position);
+                    return;
+                }
+            }
+        }
+
+        private void commitReadThrough(int index, int position) {
+            Segment head = segments.get(index);
+            // The new head first: a crash in between leaves segments to read again, not logs missing
+            head.commitRead(position);
+            for (int i = 0; i < index; i++) {
+                recycle(segments.get(i));
+            }
+            segments.subList(0, index).clear();
+            readIndex -= index;
+            if (segments.size() == 1 && !head.hasUnread() && position == head.readPosition && position > HEADER_SIZE) {
+                if (this == live) {
+                    // Fully consumed, start it over rather than growing into the rest of the file
+                    head.reuse(nextSequence++);
+                } else {
+                    // The replay is over, its segments are never written again
+                    recycle(head);
+                    segments.clear();
+                    readIndex = 0;
+                }
+            }
+        }
+
+        void clear() {
+            for (Segment segment : segments) {
+                recycle(segment);
+            }
+            segments.clear();
+            readIndex = 0;
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // A view for the relative bulk puts and gets, Java 11 has no absolute ones
+        private final ByteBuffer view;
+        private long sequence;
+        private int writePosition;
+        private int readPosition;
+        // The records written with the current sequence
+        private long logs;
+        private long bytes;
+        // The records after the read position
+        private long unreadLogs;
+        private long unreadBytes;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.view = buffer.duplicate();
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                return new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        static Segment open(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < HEADER_SIZE) {
+                    raf.setLength(HEADER_SIZE);
+                }
+                Segment segment = new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+                // A file without the magic never got its header written, it holds nothing
+                segment.sequence = segment.buffer.getInt(0) == MAGIC ? segment.buffer.getLong(SEQUENCE_OFFSET) : FREE_SEGMENT;
+                return segment;
+            }
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        boolean hasUnread() {
+            return readPosition < writePosition;
+        }
+
+        void append(byte[] log) {
+            buffer.putInt(writePosition + Integer.BYTES, (int) sequence);
+            view.position(writePosition + RECORD_HEADER_SIZE);
+            view.put(log);
+            // The length goes last, a record is only there once it is complete
+            buffer.putInt(writePosition, log.length);
+            writePosition += RECORD_HEADER_SIZE + log.length;
+            logs++;
+            bytes += log.length;
+            unreadLogs++;
+            unreadBytes += log.length;
+        }
+
+        /**
+         * @return the record at the read position, null if there is none, as when an index entry was written
+         * before the records it counts reached the disk
+         */
+        byte[] read() {
+            int length = buffer.getInt(readPosition);
+            if (!isRecord(readPosition, length)) {
+                return null;
+            }
+            byte[] log = new byte[length];
+            view.position(readPosition + RECORD_HEADER_SIZE);
+            view.get(log);
+            readPosition += RECORD_HEADER_SIZE + length;
+            unreadLogs--;
+            unreadBytes -= length;
+            return log;
+        }
+
+        /**
+         * Drops the records from the read position on, the segment ends there
+         */
+        void endAtRead() {
+            writePosition = readPosition;
+            logs -= unreadLogs;
+            bytes -= unreadBytes;
+            unreadLogs = 0;
+            unreadBytes = 0;
+        }
+
+        private boolean isRecord(int position, int length) {
+            return position + RECORD_HEADER_SIZE <= buffer.capacity() && length >= 0
+                    && length <= buffer.capacity() - position - RECORD_HEADER_SIZE
+                    && buffer.getInt(position + Integer.BYTES) == (int) sequence;
+        }
+
+        void commitRead(int position) {
+            buffer.putInt(READ_OFFSET_OFFSET, position);
+        }
+
+        int committedReadOffset() {
+            return buffer.getInt(READ_OFFSET_OFFSET);
+        }
+
+        void reuse(long newSequence) {
+            sequence = newSequence;
+            writePosition = HEADER_SIZE;
+            readPosition = HEADER_SIZE;
+            logs = 0;
+            bytes = 0;
+            unreadLogs = 0;
+            unreadBytes = 0;
+            buffer.putInt(READ_OFFSET_OFFSET, HEADER_SIZE);
+            buffer.putLong(SEQUENCE_OFFSET, newSequence);
+            buffer.putInt(0, MAGIC);
+        }
+
+        void free() {
+            sequence = FREE_SEGMENT;
+            buffer.putLong(SEQUENCE_OFFSET, FREE_SEGMENT);
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        /**
+         * @return the index entry of the records written so far, taken once the segment is full
+         */
+        IndexEntry indexEntry() {
+            return new IndexEntry(this, sequence, writePosition, logs, bytes);
+        }
+
+        /**
+         * Finds the end of the records written with the current sequence, and the unread ones among them.
+         */
+        void scan() {
+            int position = HEADER_SIZE;
+            int readOffset = committedReadOffset();
+            long unread = 0;
+            long unreadSize = 0;
+            logs = 0;
+            bytes = 0;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (!isRecord(position, length)) {
+                    break;
+                }
+                if (position >= readOffset) {
+                    unread++;
+                    unreadSize += length;
+                }
+                logs++;
+                bytes += length;
+                position += RECORD_HEADER_SIZE + length;
+            }
+            writePosition = position;
+            readPosition = Math.max(HEADER_SIZE, Math.min(readOffset, position));
+            unreadLogs = unread;
+            unreadBytes = unreadSize;
+        }
+
+        /**
+         * Takes the end of the records and their count from the index instead of scanning them, none consumed.
+         * The records are checked as they are read, see {@link #read()}.
+         */
+        void restore(IndexEntry entry) {
+            if (entry.writePosition < HEADER_SIZE || entry.writePosition > buffer.capacity()) {
+                scan();
+                return;
+            }
+            writePosition = entry.writePosition;
+            readPosition = HEADER_SIZE;
+            logs = entry.logs;
+            bytes = entry.bytes;
+            unreadLogs = entry.logs;
+            unreadBytes = entry.bytes;
+        }
+    }
+
+    private static final class IndexEntry {
+        // Null for an entry read from the index
+        private final Segment segment;
+        private final long sequence;
+        private final int writePosition;
+        private final long logs;
+        private final long bytes;
+
+        private IndexEntry(Segment segment, long sequence, int writePosition, long logs, long bytes) {
+            this.segment = segment;
+            this.sequence = sequence;
+            this.writePosition = writePosition;
+            this.logs = logs;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Where each full segment ends and how many logs it holds, an entry appended by the sync after the segment filled
+     * up and was forced to disk. A full segment is only written again once recycled, with a new sequence, so an entry whose
+     * sequence matches the segment's spares scanning its records. A missing or damaged entry, caught by its CRC, only
+     * means that segment is scanned.
+     */
+    private static final class SegmentIndex {
+        // Sequence, write position, logs, bytes, CRC of the rest
+        private static final int ENTRY_SIZE = Long.BYTES + Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+        private static final int CRC_OFFSET = ENTRY_SIZE - Integer.BYTES;
+
+        private final File file;
+        private final SenderStatusReporter reporter;
+        private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        private final CRC32 crc = new CRC32();
+        // Null once it could not be written, the segments are scanned on the next start
+        private FileChannel channel;
+
+        private SegmentIndex(File file, FileChannel channel, SenderStatusReporter reporter) {
+            this.file = file;
+            this.channel = channel;
+            this.reporter = reporter;
+        }
+
+        /**
+         * @return the entries by segment sequence, empty if there is no index
+         */
+        static Map<Long, IndexEntry> read(File file, SenderStatusReporter reporter) {
+            Map<Long, IndexEntry> entries = new HashMap<>();
+            ByteBuffer content;
+            try {
+                content = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            } catch (NoSuchFileException e) {
+                return entries;
+            } catch (IOException e) {
+                reporter.warning("Could not read the queue index " + file.getAbsolutePath() + ", scanning the queue", e);
+                return entries;
+            }
+            CRC32 crc = new CRC32();
+            // A torn last entry is left out with the damaged ones
+            for (int position = 0; position + ENTRY_SIZE <= content.limit(); position += ENTRY_SIZE) {
+                crc.reset();
+                crc.update(content.array(), position, CRC_OFFSET);
+                if ((int) crc.getValue() != content.getInt(position + CRC_OFFSET)) {
+                    continue;
+                }
+                long sequence = content.getLong(position);
+                int writePosition = content.getInt(position + Long.BYTES);
+                long logs = content.getLong(position + Long.BYTES + Integer.BYTES);
+                long bytes = content.getLong(position + 2 * Long.BYTES + Integer.BYTES);
+                // Later entries win, a segment is indexed again if it was appended to after a restart
+                entries.put(sequence, new IndexEntry(null, sequence, writePosition, logs, bytes));
+            }
+            return entries;
+        }
+
+        /**
+         * Replaces the index with the entries of the given segments, and opens it for appending
+         */
+        static SegmentIndex rewrite(File file, List<Segment> sealed, SenderStatusReporter reporter) {
+            File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+            SegmentIndex index = new SegmentIndex(file, null, reporter);
+            try {
+                try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    index.channel = out;
+                    for (Segment segment : sealed) {
+                        index.write(segment.indexEntry());
+                    }
+                    out.force(false);
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                index.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                index.channel = null;
+                // Its entry for the tail would go stale once the tail is appended to
+                if (file.exists() && !file.delete()) {
+                    reporter.warning("Could not delete the queue index " + file.getAbsolutePath());
+                }
+                reporter.warning("Could not write the queue index " + file.getAbsolutePath()
+                        + ", the queue will be scanned on the next start", e);
+            }
+            return index;
+        }
+
+        // Synchronized, the sync appends outside the queue lock
+        synchronized void append(List<IndexEntry> entries) {
+            if (channel == null || entries.isEmpty()) {
+                return;
+            }
+            try {
+                for (IndexEntry sealed : entries) {
+                    write(sealed);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                reporter.warning("Could not write the queue index " + file.getAbsolutePath()
+                        + ", the queue will be scanned on the next start", e);
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Entries are written as segments fill up, nothing is lost
+                }
+                channel = null;
+            }
+        }
+
+        private void write(IndexEntry sealed) throws IOException {
+            entry.clear();
+            entry.putLong(sealed.sequence).putInt(sealed.writePosition).putLong(sealed.logs).putLong(sealed.bytes);
+            crc.reset();
+            crc.update(entry.array(), 0, CRC_OFFSET);
+            entry.putInt((int) crc.getValue());
+            entry.flip();
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.logz.logback;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which MDC entries become fields of the shipped document and under which name, and keeps each field name
+ * JSON-escaped once, so the streamed documents copy the encoded key instead of escaping it for every event.
+ * <p>
+ * Include and exclude rules match the MDC key as set by the application, a renamed key is matched by its MDC name.
+ * When an MDC key is renamed to the name of another MDC key, the renamed entry wins and the other one is left out.
+ */
+final class MdcProjection {
+
+    private static final Field DROPPED = new Field(null, null, null);
+
+    private final Set<String> includedKeys;
+    private final Set<String> excludedKeys;
+    private final Map<String, String> renames;
+    // The MDC key renamed to each field name, for the renames whose MDC key is kept
+    private final Map<String, String> renamedFrom = new HashMap<>();
+    private final boolean hasRules;
+    private final BoundedCache<String, Field> fieldsByKey = new BoundedCache<>();
+
+    /**
+     * @param includedKeys the only MDC keys shipped, all of them when empty
+     * @param excludedKeys MDC keys never shipped
+     * @param renames      the field name of MDC keys shipped under another name, no two of them the same
+     */
+    MdcProjection(Collection<String> includedKeys, Collection<String> excludedKeys, Map<String, String> renames) {
+        this.includedKeys = new HashSet<>(includedKeys);
+        this.excludedKeys = new HashSet<>(excludedKeys);
+        this.renames = new HashMap<>(renames);
+        renames.forEach((key, name) -> {
+            if (isKept(key)) {
+                renamedFrom.put(name, key);
+            }
+        });
+        this.hasRules = !includedKeys.isEmpty() || !excludedKeys.isEmpty() || !renames.isEmpty();
+    }
+
+    static MdcProjection identity() {
+        return new MdcProjection(Collections.emptySet(), Collections.emptySet(), Collections.emptyMap());
+    }
+
+    /**
+     * @return the field the entry of key is shipped as, or null if it is left out
+     */
+    Field field(String key, Map<String, String> mdc) {
+        Field field = fieldsByKey.get(key);
+        if (field == null) {
+            field = fieldsByKey.put(key, newField(key));
+        }
+        if (field == DROPPED || (field.shadowedBy != null && mdc.containsKey(field.shadowedBy))) {
+            return null;
+        }
+        return field;
+    }
+
+    /**
+     * @return the field name the entry of key is shipped as, or null if it is left out
+     */
+    String fieldName(String key, Map<String, String> mdc) {
+        Field field = field(key, mdc);
+        return field == null ? null : field.name;
+    }
+
+    /**
+     * @return true if one of the MDC entries is shipped as the field name
+     */
+    boolean containsField(Map<String, String> mdc, String name) {
+        if (mdc == null) {
+            return false;
+        }
+        if (!hasRules) {
+            return mdc.containsKey(name);
+        }
+        return sourceKey(mdc, name) != null;
+    }
+
+    /**
+     * @return the value of the MDC entry shipped as the field name, null if there is none
+     */
+    String fieldValue(Map<String, String> mdc, String name) {
+        if (mdc == null) {
+            return null;
+        }
+        if (!hasRules) {
+            return mdc.get(name);
+        }
+        String key = sourceKey(mdc, name);
+        return key == null ? null : mdc.get(key);
+    }
+
+    private String sourceKey(Map<String, String> mdc, String name) {
+        String renamed = renamedFrom.get(name);
+        if (renamed != null && mdc.containsKey(renamed)) {
+            return renamed;
+        }
+        if (mdc.containsKey(name) && isKept(name) && !renames.containsKey(name)) {
+            return name;
+        }
+        return null;
+    }
+
+    private Field newField(String key) {
+        if (!isKept(key)) {
+            return DROPPED;
+        }
+        String name = renames.getOrDefault(key, key);
+        // A key kept under its own name gives way to the key renamed to it
+        String shadowedBy = renames.containsKey(key) ? null : renamedFrom.get(key);
+        ByteArrayBuilder encoded = new ByteArrayBuilder(name.length() + 3);
+        encoded.writeJsonString(name);
+        encoded.write(':');
+        return new Field(name, encoded.toByteArray(), shadowedBy);
+    }
+
+    private boolean isKept(String key) {
+        return (includedKeys.isEmpty() || includedKeys.contains(key)) && !excludedKeys.contains(key);
+    }
+
+    static final class Field {
+        final String name;
+        // The JSON string of the name followed by ':'
+        final byte[] encodedName;
+        // The MDC key renamed to this name, which wins when both are set
+        private final String shadowedBy;
+
+        private Field(String name, byte[] encodedName, String shadowedBy) {
+            this.name = name;
+            this.encodedName = encodedName;
+            this.shadowedBy = shadowedBy;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package io.logz.logback;
+
+import io.logz.sender.LogsQueue;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import io.logz.sender.SenderStatusReporter;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Logs queue kept in direct memory, as length prefixed records appended to a chain of fixed size segments.
+ * A backlog held here is a handful of buffers to the garbage collector, however many logs it holds.
+ * Bounded the same way as the sender's in-memory queue, by bytes and by number of logs, dropping logs once full.
+ */
+final class OffHeapLogsQueue implements LogsQueue {
+
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES;
+    // Drained segments kept around to be written again, so a steady flow of logs does not allocate direct memory
+    private static final int MAX_SPARE_SEGMENTS = 2;
+
+    private final long capacityInBytes;
+    private final long logsCountLimit;
+    private final SenderStatusReporter reporter;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ArrayDeque<Segment> spareSegments = new ArrayDeque<>();
+    // Written under the lock, read without it, so measuring the queue never waits for a producer
+    private volatile long sizeInBytes;
+    private volatile long logsCount;
+    private boolean dropping;
+
+    /**
+     * @param capacityInBytes  limit on the size of the queued logs, or {@link LogzioLogbackAppender#DONT_LIMIT_CAPACITY}
+     * @param logsCountLimit   limit on the number of queued logs, or {@link LogzioLogbackAppender#DONT_LIMIT_CAPACITY}
+     */
+    OffHeapLogsQueue(long capacityInBytes, long logsCountLimit, SenderStatusReporter reporter) {
+        this.capacityInBytes = capacityInBytes;
+        this.logsCountLimit = logsCountLimit;
+        this.reporter = reporter;
+    }
+
+    @Override
+    public void enqueue(byte[] log) {
+        lock.lock();
+        try {
+            if (!isEnoughSpace(log.length)) {
+                return;
+            }
+            Segment tail = segments.peekLast();
+            int recordSize = RECORD_HEADER_SIZE + log.length;
+            if (tail == null || tail.write.remaining() < recordSize) {
+                tail = newSegment(recordSize);
+                if (tail == null) {
+                    return;
+                }
+                segments.addLast(tail);
+            }
+            tail.write.putInt(log.length);
+            tail.write.put(log);
+            sizeInBytes += log.length;
+            logsCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] dequeue() {
+        lock.lock();
+        try {
+            if (logsCount == 0) {
+                return null;
+            }
+            Segment head = segments.peekFirst();
+            if (head.read.position() == head.write.position()) {
+                // Records never span segments, the next one starts at the beginning of the following segment
+                recycle(segments.pollFirst());
+                head = segments.peekFirst();
+            }
+            byte[] log = new byte[head.read.getInt()];
+            head.read.get(log);
+            sizeInBytes -= log.length;
+            logsCount--;
+            if (logsCount == 0) {
+                while (segments.size() > 1) {
+                    recycle(segments.pollFirst());
+                }
+                segments.peekFirst().reset();
+                dropping = false;
+            } else if (dropping && hasSpaceLeft()) {
+                dropping = false;
+            }
+            return log;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return logsCount == 0;
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            while (!segments.isEmpty()) {
+                recycle(segments.pollFirst());
+            }
+            sizeInBytes = 0;
+            logsCount = 0;
+            dropping = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            clear();
+            spareSegments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    long size() {
+        return logsCount;
+    }
+
+    /**
+     * @return how close the queue is to its tightest limit, 1 when logs are dropped, 0 when unlimited
+     */
+    double fillLevel() {
+        double fillLevel = 0;
+        if (capacityInBytes != LogzioLogbackAppender.DONT_LIMIT_CAPACITY) {
+            fillLevel = (double) sizeInBytes / capacityInBytes;
+        }
+        if (logsCountLimit != LogzioLogbackAppender.DONT_LIMIT_CAPACITY) {
+            fillLevel = Math.max(fillLevel, (double) logsCount / logsCountLimit);
+        }
+        return fillLevel;
+    }
+
+    private boolean isEnoughSpace(int logSize) {
+        if (capacityInBytes != LogzioLogbackAppender.DONT_LIMIT_CAPACITY && sizeInBytes + logSize > capacityInBytes) {
+            reportDropping(String.format("Logz.io: Dropping logs - we crossed the off-heap memory threshold of %d MB",
+                    capacityInBytes / (1024 * 1024)));
+            return false;
+        }
+        if (logsCountLimit != LogzioLogbackAppender.DONT_LIMIT_CAPACITY && logsCount >= logsCountLimit) {
+            reportDropping(String.format("Logz.io: Dropping logs - we crossed the logs counter threshold of %d logs",
+                    logsCountLimit));
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasSpaceLeft() {
+        return (capacityInBytes == LogzioLogbackAppender.DONT_LIMIT_CAPACITY || sizeInBytes < capacityInBytes)
+                && (logsCountLimit == LogzioLogbackAppender.DONT_LIMIT_CAPACITY || logsCount < logsCountLimit);
+    }
+
+    private void reportDropping(String message) {
+        reportDropping(message, null);
+    }
+
+    private void reportDropping(String message, Throwable e) {
+        // Once per episode, not once per dropped log
+        if (!dropping) {
+            dropping = true;
+            if (e == null) {
+                reporter.warning(message);
+            } else {
+                reporter.warning(message, e);
+            }
+        }
+    }
+
+    /**
+     * @return null if the direct memory is exhausted, the log is dropped
+     */
+    private Segment newSegment(int recordSize) {
+        if (recordSize <= SEGMENT_SIZE && !spareSegments.isEmpty()) {
+            return spareSegments.pollFirst();
+        }
+        try {
+            return new Segment(Math.max(SEGMENT_SIZE, recordSize));
+        } catch (OutOfMemoryError e) {
+            // Direct buffer memory, past -XX:MaxDirectMemorySize. Thrown from here it would reach the logging call
+            reportDropping("Logz.io: Dropping logs - could not allocate direct memory for the off-heap queue, "
+                    + "raise -XX:MaxDirectMemorySize or lower inMemoryQueueCapacityBytes", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the direct memory limit of the JVM, -XX:MaxDirectMemorySize or else the max heap size, -1 if unknown
+     */
+    static long maxDirectMemory() {
+        try {
+            HotSpotDiagnosticMXBean diagnostic = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long configured = Long.parseLong(diagnostic.getVMOption("MaxDirectMemorySize").getValue());
+            return configured > 0 ? configured : Runtime.getRuntime().maxMemory();
+        } catch (RuntimeException | LinkageError e) {
+            return -1;
+        }
+    }
+
+    private void recycle(Segment segment) {
+        if (segment.capacity() == SEGMENT_SIZE && spareSegments.size() < MAX_SPARE_SEGMENTS) {
+            segment.reset();
+            spareSegments.addLast(segment);
+        }
+    }
+
+    private static final class Segment {
+        private final ByteBuffer write;
+        private final ByteBuffer read;
+
+        private Segment(int capacity) {
+            write = ByteBuffer.allocateDirect(capacity);
+            read = write.duplicate();
+        }
+
+        private int capacity() {
+            return write.capacity();
+        }
+
+        private void reset() {
+            write.clear();
+            read.clear();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package io.logz.logback;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.logz.sender.HttpsRequestConfiguration;
+import io.logz.sender.LogsQueue;
+import io.logz.sender.SenderStatusReporter;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ships a queue kept by the appender, an {@link OffHeapLogsQueue} or a {@link MappedSegmentLogsQueue}, with up to
+ * maxInFlightBulks bulk requests at once, each on its own connection. One bulk per round trip can't keep up with a
+ * busy host shipping to a far away listener, several in flight can.
+ * <p>
+ * Bulks are acknowledged to the queue in the order they were dequeued: the logs of a bulk are only committed on a
+ * memory-mapped queue once it and all the bulks dequeued before it were shipped, so a crash never skips over a bulk
+ * that was still in flight. A bulk that failed all its retries blocks the ones after it, it is sent again first on
+ * the next run, and nothing new is dequeued until it went through.
+ * <p>
+ * The requests are the sender's: the logs separated by new lines, retried with the same back off, and dropped if the
+ * listener rejects them with a 400 or a 401. They go through the {@link BulkTransport} set. They are compressed with the codec set, by a pool of compressors that
+ * keep their state and buffers between bulks, one per bulk in flight.
+ * Replaces the sender's own scheduled drain, it is meant to run with a fixed delay, and when an {@link AdaptiveBatcher}
+ * requests a flush.
+ * <p>
+ * Stopping never ships a memory-mapped queue to the end, what was not acknowledged stays on disk for the next start.
+ * Other queues are lost once the appender stopped, they are shipped until the stop timeout and what is left is reported.
+ */
+final class ParallelBulkShipper implements Runnable {
+
+    // LogzioSender sends up to 3MB per bulk
+    static final int BULK_BYTES = 3 * 1024 * 1024;
+    static final long STOP_TIMEOUT_SEC = 30;
+
+    private final LogsQueue queue;
+    // Null for a queue that consumes logs as they are dequeued
+    private final MappedSegmentLogsQueue mappedQueue;
+    private final HttpsRequestConfiguration configuration;
+    private final BulkTransport transport;
+    private final BulkCompressor.Codec codec;
+    private final int compressionLevel;
+    private final ConcurrentLinkedQueue<BulkCompressor> compressors = new ConcurrentLinkedQueue<>();
+    // Null for bulks of BULK_BYTES
+    private final AdaptiveBatcher batcher;
+    private final LogzioAppenderMetrics metrics;
+    private final SenderStatusReporter reporter;
+    private final Semaphore inFlight;
+    private final int maxInFlightBulks;
+    private final ExecutorService connections;
+    private final ReentrantLock running = new ReentrantLock();
+    // Bulks dequeued and not acknowledged yet, oldest first
+    private final ArrayDeque<Bulk> unacknowledged = new ArrayDeque<>();
+    private volatile boolean failing;
+    private volatile boolean stopping;
+    // System.nanoTime() past which a stopping shipper sends no more
+    private volatile long stopDeadlineNanos;
+
+    /**
+     * @param batcher     sizes the bulks, and learns the round trip times, null for bulks of {@link #BULK_BYTES}
+     * @param connections runs the bulks in flight, at most maxInFlightBulks at once, it is shut down on stop
+     * @param metrics     gets the time of each drain and of each bulk, and counts the retries
+     */
+    ParallelBulkShipper(LogsQueue queue, HttpsRequestConfiguration configuration, BulkTransport transport,
+                        BulkCompressor.Codec codec, int compressionLevel, int maxInFlightBulks, AdaptiveBatcher batcher,
+                        ExecutorService connections, LogzioAppenderMetrics metrics, SenderStatusReporter reporter) {
+        this.queue = queue;
+        this.mappedQueue = queue instanceof MappedSegmentLogsQueue ? (MappedSegmentLogsQueue) queue : null;
+        this.configuration = configuration;
+        this.transport = transport;
+        this.codec = codec;
+        this.compressionLevel = compressionLevel;
+        this.maxInFlightBulks = maxInFlightBulks;
+        this.batcher = batcher;
+        this.metrics = metrics;
+        this.reporter = reporter;
+        this.inFlight = new Semaphore(maxInFlightBulks);
+        this.connections = connections;
+    }
+
+    /**
+     * @return a pool of maxInFlightBulks daemon threads named logzio-bulk-name-n, for the connections
+     */
+    static ExecutorService newConnectionPool(int maxInFlightBulks, String name) {
+        return Executors.newFixedThreadPool(maxInFlightBulks, new ThreadFactoryBuilder()
+                .setNameFormat("logzio-bulk-" + name + "-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Ships everything in the queue, returns once no bulk is in flight
+     */
+    @Override
+    public void run() {
+        running.lock();
+        try {
+            shipQueue();
+        } finally {
+            running.unlock();
+        }
+    }
+
+    /**
+     * Ships everything in the queue unless a run already does, for a flush requested from the logging thread
+     */
+    void runIfIdle() {
+        if (running.tryLock()) {
+            try {
+                shipQueue();
+            } finally {
+                running.unlock();
+            }
+        }
+    }
+
+    private void shipQueue() {
+        long start = System.nanoTime();
+        if (batcher != null) {
+            batcher.onFlush();
+        }
+        try {
+            if (!resendFailed()) {
+                return;
+            }
+            while (!failing && mayDequeue()) {
+                inFlight.acquire();
+                List<byte[]> logs = dequeueBulk();
+                if (logs.isEmpty()) {
+                    inFlight.release();
+                    break;
+                }
+                Bulk bulk = new Bulk(logs, mappedQueue == null ? null : mappedQueue.readMark());
+                synchronized (unacknowledged) {
+                    unacknowledged.addLast(bulk);
+                }
+                try {
+                    connections.execute(() -> {
+                        try {
+                            shipAndComplete(bulk);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    complete(bulk, false);
+                    throw e;
+                }
+            }
+            awaitInFlight();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            reporter.error("Failed to ship the appender queue", e);
+        } finally {
+            if (batcher != null) {
+                batcher.onFlushed();
+            }
+            metrics.recordDrainTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Stops within {@link #STOP_TIMEOUT_SEC}, then closes the connections and the compressors
+     */
+    void stop() {
+        stop(TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SEC));
+    }
+
+    /**
+     * Lets the bulks in flight complete and, unless the queue is memory-mapped, ships what is left until the timeout
+     */
+    void stop(long timeoutNanos) {
+        stopDeadlineNanos = System.nanoTime() + timeoutNanos;
+        stopping = true;
+        try {
+            // A run in progress sees the stop, and returns once its bulks in flight are done
+            if (running.tryLock(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                try {
+                    if (mappedQueue == null) {
+                        shipQueue();
+                    }
+                } finally {
+                    running.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connections.shutdown();
+        try {
+            if (!connections.awaitTermination(Math.max(0, stopDeadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                // The bulks still in flight are interrupted, and not acknowledged
+                connections.shutdownNow();
+                connections.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            connections.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        BulkCompressor compressor;
+        while ((compressor = compressors.poll()) != null) {
+            compressor.close();
+        }
+        reportUnshipped();
+    }
+
+    /**
+     * @return false once stopping, past the timeout or at once for a memory-mapped queue
+     */
+    private boolean mayDequeue() {
+        return !stopping || (mappedQueue == null && !isPastStopDeadline());
+    }
+
+    private boolean isPastStopDeadline() {
+        return stopping && System.nanoTime() - stopDeadlineNanos >= 0;
+    }
+
+    private void reportUnshipped() {
+        long unshipped = 0;
+        synchronized (unacknowledged) {
+            for (Bulk bulk : unacknowledged) {
+                // Shipped bulks behind a failed one are only sent again from a memory-mapped queue
+                if (mappedQueue != null || !bulk.shipped) {
+                    unshipped += bulk.logs.size();
+                }
+            }
+        }
+        if (mappedQueue != null) {
+            unshipped += mappedQueue.size();
+            if (unshipped > 0) {
+                reporter.info(unshipped + " logs were not shipped before stopping, they stay in the disk queue for the next start");
+            }
+        } else {
+            unshipped += queue instanceof OffHeapLogsQueue ? ((OffHeapLogsQueue) queue).size() : 0;
+            if (unshipped > 0) {
+                reporter.error("Could not ship " + unshipped + " logs before stopping, they are dropped");
+            }
+        }
+    }
+
+    /**
+     * Sends the bulks that failed on a previous run again, one at a time and in order
+     *
+     * @return true once none is left
+     */
+    private boolean resendFailed() {
+        List<Bulk> failed = new ArrayList<>();
+        synchronized (unacknowledged) {
+            for (Bulk bulk : unacknowledged) {
+                if (bulk.failed) {
+                    failed.add(bulk);
+                }
+            }
+        }
+        for (Bulk bulk : failed) {
+            shipAndComplete(bulk);
+            if (bulk.failed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<byte[]> dequeueBulk() {
+        List<byte[]> logs = new ArrayList<>();
+        long bytes = 0;
+        long maxBytes = batcher != null ? batcher.targetBytes() : BULK_BYTES;
+        byte[] log;
+        while (bytes < maxBytes && (log = queue.dequeue()) != null) {
+            logs.add(log);
+            bytes += log.length;
+        }
+        return logs;
+    }
+
+    private void awaitInFlight() throws InterruptedException {
+        inFlight.acquire(maxInFlightBulks);
+        inFlight.release(maxInFlightBulks);
+    }
+
+    /**
+     * Completes the bulk whatever ship throws, a bulk left in flight would hold back the acknowledgement of every
+     * bulk after it
+     */
+    private void shipAndComplete(Bulk bulk) {
+        boolean shipped = false;
+        try {
+            shipped = ship(bulk);
+        } catch (Throwable e) {
+            reporter.error("Failed to ship a bulk of " + bulk.logs.size() + " logs, it will be sent again", e);
+        } finally {
+            complete(bulk, shipped);
+        }
+    }
+
+    private void complete(Bulk bulk, boolean shipped) {
+        synchronized (unacknowledged) {
+            bulk.shipped = shipped;
+            bulk.failed = !shipped;
+            MappedSegmentLogsQueue.ReadMark commit = null;
+            while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().shipped) {
+                commit = unacknowledged.pollFirst().mark;
+            }
+            failing = unacknowledged.stream().anyMatch(pending -> pending.failed);
+            if (mappedQueue != null && commit != null) {
+                // Under the lock, marks must reach the queue in order
+                mappedQueue.commitRead(commit);
+            }
+        }
+    }
+
+    /**
+     * @return false if the bulk has to be sent again, true once it was shipped or rejected for good
+     */
+    private boolean ship(Bulk bulk) {
+        long start = System.nanoTime();
+        BulkCompressor compressor = compressors.poll();
+        if (compressor == null) {
+            compressor = BulkCompressor.create(codec, compressionLevel);
+        }
+        try {
+            compressor.compress(bulk.logs);
+            int waitBeforeRetryMs = configuration.getInitialWaitBeforeRetryMS();
+            int maxRetries = configuration.getMaxRetriesAttempts();
+            for (int attempt = 1; ; attempt++) {
+                String failure;
+                IOException exception = null;
+                try {
+                    long sent = System.nanoTime();
+                    int responseCode = transport.send(compressor);
+                    if (batcher != null) {
+                        batcher.onRoundTrip(System.nanoTime() - sent);
+                    }
+                    if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_BAD_REQUEST
+                            || responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                        return true;
+                    }
+                    failure = "response code " + responseCode;
+                } catch (IOException e) {
+                    reporter.error("Got IO exception - " + e.getMessage());
+                    exception = e;
+                    failure = e.getMessage();
+                }
+                if (attempt >= maxRetries || isPastStopDeadline()) {
+                    if (exception != null) {
+                        reporter.error("Got IO exception on the last bulk try to logz.io", exception);
+                    } else {
+                        reporter.error("Could not ship a bulk of " + bulk.logs.size() + " logs to logz.io, " + failure);
+                    }
+                    return false;
+                }
+                metrics.sendRetries.increment();
+                reporter.warning("Could not send log to logz.io, retry (" + attempt + "/" + maxRetries + ")");
+                reporter.warning("Sleeping for " + waitBeforeRetryMs + " ms and will try again.");
+                Thread.sleep(waitBeforeRetryMs);
+                waitBeforeRetryMs *= 2;
+            }
+        } catch (InterruptedException e) {
+            reporter.info("Got interrupted exception");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            compressors.offer(compressor);
+            metrics.recordBulkSendTime(System.nanoTime() - start);
+        }
+    }
+
+    private static final class Bulk {
+        private final List<byte[]> logs;
+        private final MappedSegmentLogsQueue.ReadMark mark;
+        // Guarded by unacknowledged, neither is set while the bulk is in flight
+        private boolean shipped;
+        private boolean failed;
+
+        private Bulk(List<byte[]> logs, MappedSegmentLogsQueue.ReadMark mark) {
+            this.logs = logs;
+            this.mark = mark;
+        }
+    }
+}
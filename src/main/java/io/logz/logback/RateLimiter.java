@@ -0,0 +1,164 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounds how many events per second reach the sender, per level and per logger name prefix, so one noisy
+ * component can't fill the queue. It runs before the event is formatted, a suppressed event costs a lookup,
+ * a read of the bucket and an increment of a counter striped across cores.
+ * <p>
+ * Each bucket holds up to a second worth of events and refills continuously. An event must get through the
+ * bucket of the longest prefix of its logger name, if any, then the bucket of its level, if any.
+ */
+final class RateLimiter {
+
+    static final String SUPPRESSED_EVENTS = "suppressed_events";
+    private static final TokenBucket UNLIMITED = new TokenBucket("unlimited", 0, 0);
+
+    private final LongSupplier nanoClock;
+    // Indexed by levelIndex
+    private final TokenBucket[] levelBuckets = new TokenBucket[5];
+    private final List<TokenBucket> loggerBuckets = new ArrayList<>();
+    private final LoggerPrefixMatcher<TokenBucket> loggerBucketMatcher;
+    private final BoundedCache<String, TokenBucket> loggerBucketsByName = new BoundedCache<>();
+
+    /**
+     * @param levelRates  events per second allowed for each level
+     * @param loggerRates events per second allowed for each logger name prefix
+     */
+    RateLimiter(Map<Level, Integer> levelRates, Map<String, Integer> loggerRates, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        levelRates.forEach((level, rate) -> {
+            int index = levelIndex(level);
+            if (index >= 0) {
+                levelBuckets[index] = new TokenBucket("level " + level.levelStr, rate, nanoClock.getAsLong());
+            }
+        });
+        Map<String, TokenBucket> bucketsByPrefix = new LinkedHashMap<>();
+        loggerRates.forEach((prefix, rate) ->
+                bucketsByPrefix.put(prefix, new TokenBucket("logger " + prefix, rate, nanoClock.getAsLong())));
+        loggerBuckets.addAll(bucketsByPrefix.values());
+        // Reported longest prefix first, the order they are matched in
+        loggerBuckets.sort(Comparator.comparingInt((TokenBucket bucket) -> bucket.name.length()).reversed());
+        loggerBucketMatcher = new LoggerPrefixMatcher<>(bucketsByPrefix, UNLIMITED);
+    }
+
+    /**
+     * @return false if the event must be dropped
+     */
+    boolean tryAcquire(ILoggingEvent loggingEvent) {
+        TokenBucket loggerBucket = loggerBucket(loggingEvent.getLoggerName());
+        int levelIndex = levelIndex(loggingEvent.getLevel());
+        TokenBucket levelBucket = levelIndex >= 0 ? levelBuckets[levelIndex] : null;
+        if (loggerBucket == UNLIMITED && levelBucket == null) {
+            return true;
+        }
+        long now = nanoClock.getAsLong();
+        if (loggerBucket != UNLIMITED && levelBucket != null && !levelBucket.hasToken(now)) {
+            // Spares the logger bucket a token the level bucket would not let through
+            levelBucket.suppressed.increment();
+            return false;
+        }
+        return (loggerBucket == UNLIMITED || loggerBucket.tryAcquire(now))
+                && (levelBucket == null || levelBucket.tryAcquire(now));
+    }
+
+    /**
+     * @return the number of events each bucket suppressed since the last call, for the buckets that did
+     */
+    Map<String, Long> drainSuppressed() {
+        Map<String, Long> suppressed = new LinkedHashMap<>();
+        for (TokenBucket bucket : levelBuckets) {
+            if (bucket != null) {
+                bucket.drainSuppressed(suppressed);
+            }
+        }
+        for (TokenBucket bucket : loggerBuckets) {
+            bucket.drainSuppressed(suppressed);
+        }
+        return suppressed;
+    }
+
+    private TokenBucket loggerBucket(String loggerName) {
+        if (loggerBuckets.isEmpty() || loggerName == null) {
+            return UNLIMITED;
+        }
+        TokenBucket bucket = loggerBucketsByName.get(loggerName);
+        if (bucket == null) {
+            bucket = loggerBucketsByName.put(loggerName, loggerBucketMatcher.match(loggerName));
+        }
+        return bucket;
+    }
+
+    private static int levelIndex(Level level) {
+        switch (level.levelInt) {
+            case Level.TRACE_INT:
+                return 0;
+            case Level.DEBUG_INT:
+                return 1;
+            case Level.INFO_INT:
+                return 2;
+            case Level.WARN_INT:
+                return 3;
+            case Level.ERROR_INT:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * A token bucket kept as the time its next event is due, the generic cell rate algorithm: admitting an event
+     * is a single compare and set, and a bucket that ran dry is only read.
+     */
+    private static final class TokenBucket {
+        private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final String name;
+        private final long intervalNanos;
+        private final AtomicLong nextDue;
+        private final LongAdder suppressed = new LongAdder();
+
+        private TokenBucket(String name, int eventsPerSecond, long now) {
+            this.name = name;
+            this.intervalNanos = eventsPerSecond > 0 ? BURST_NANOS / eventsPerSecond : 0;
+            this.nextDue = new AtomicLong(now);
+        }
+
+        private boolean hasToken(long now) {
+            return nextDue.get() - now <= BURST_NANOS - intervalNanos;
+        }
+
+        private boolean tryAcquire(long now) {
+            while (true) {
+                long due = nextDue.get();
+                long start = due - now > 0 ? due : now;
+                if (start - now > BURST_NANOS - intervalNanos) {
+                    suppressed.increment();
+                    return false;
+                }
+                if (nextDue.compareAndSet(due, start + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        private void drainSuppressed(Map<String, Long> suppressedByBucket) {
+            long count = suppressed.sumThenReset();
+            if (count > 0) {
+                suppressedByBucket.put(name, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.logz.logback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells which loggers must not reach the appender, because shipping their events logs again: the sender's own
+ * loggers and whatever it calls into. The decision is made once per logger name and cached, applications log from a
+ * few hundred loggers at most, so the cache is a hash lookup on the logger name, whose hash the String keeps.
+ */
+final class SelfLoggingFilter {
+
+    static final String SENDER_PACKAGE = "io.logz.sender";
+
+    private final List<String> excludedPrefixes;
+    private final BoundedCache<String, Boolean> decisions = new BoundedCache<>();
+
+    /**
+     * @param excludedPrefixes logger name prefixes to exclude, in addition to the sender's package
+     */
+    SelfLoggingFilter(List<String> excludedPrefixes) {
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add(SENDER_PACKAGE);
+        for (String prefix : excludedPrefixes) {
+            String trimmed = prefix.trim();
+            if (!trimmed.isEmpty() && !prefixes.contains(trimmed)) {
+                prefixes.add(trimmed);
+            }
+        }
+        this.excludedPrefixes = Collections.unmodifiableList(prefixes);
+    }
+
+    boolean isExcluded(String loggerName) {
+        Boolean excluded = decisions.get(loggerName);
+        if (excluded == null) {
+            excluded = decisions.put(loggerName, matches(loggerName));
+        }
+        return excluded;
+    }
+
+    List<String> getExcludedPrefixes() {
+        return excludedPrefixes;
+    }
+
+    private boolean matches(String loggerName) {
+        for (String prefix : excludedPrefixes) {
+            // Also matches the package relocated under another one, as in a shaded jar
+            if (loggerName.startsWith(prefix) || loggerName.contains("." + prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,71 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the pipeline an event is shipped through, from its logger name, its level or one of its MDC values. Events
+ * no route matches go to the fallback.
+ * <p>
+ * Logger routes match a prefix of the logger name, the longest one wins, and the pipeline is cached per logger name.
+ * Level and MDC routes match the value exactly, a level by its name in any case.
+ */
+final class ShardRouter<T> {
+
+    enum Key {
+        LOGGER,
+        LEVEL,
+        MDC
+    }
+
+    private final Key key;
+    private final String mdcKey;
+    private final Map<String, T> routes;
+    private final T fallback;
+    // Null unless routing by logger name
+    private final LoggerPrefixMatcher<T> loggerRoutes;
+    private final BoundedCache<String, T> routesByLoggerName = new BoundedCache<>();
+
+    /**
+     * @param mdcKey the MDC key whose value is routed, for {@link Key#MDC}
+     * @param routes the pipeline for each logger name prefix, level name or MDC value
+     */
+    ShardRouter(Key key, String mdcKey, Map<String, T> routes, T fallback) {
+        this.key = key;
+        this.mdcKey = mdcKey;
+        this.fallback = fallback;
+        if (key == Key.LEVEL) {
+            this.routes = new ConcurrentHashMap<>();
+            routes.forEach((level, route) -> this.routes.put(level.toUpperCase(Locale.ROOT), route));
+        } else {
+            this.routes = new ConcurrentHashMap<>(routes);
+        }
+        this.loggerRoutes = key == Key.LOGGER ? new LoggerPrefixMatcher<>(routes, fallback) : null;
+    }
+
+    T route(ILoggingEvent loggingEvent) {
+        switch (key) {
+            case LOGGER:
+                return routeLogger(loggingEvent.getLoggerName());
+            case LEVEL:
+                return routes.getOrDefault(loggingEvent.getLevel().levelStr, fallback);
+            default:
+                String value = loggingEvent.getMDCPropertyMap().get(mdcKey);
+                return value == null ? fallback : routes.getOrDefault(value, fallback);
+        }
+    }
+
+    private T routeLogger(String loggerName) {
+        if (loggerName == null) {
+            return fallback;
+        }
+        T route = routesByLoggerName.get(loggerName);
+        if (route == null) {
+            route = routesByLoggerName.put(loggerName, loggerRoutes.match(loggerName));
+        }
+        return route;
+    }
+}
@@ -0,0 +1,227 @@
+package io.logz.logback;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The appender's own tasks executor, instead of the small scheduled pool logback shares between all its periodic
+ * tasks. A single timer thread only keeps time, every task runs on a thread of its own: a virtual thread on Java 21
+ * and later, so a drain blocked on a slow listener or sleeping between retries holds no platform thread, otherwise
+ * a pooled daemon thread.
+ * <p>
+ * Periodic tasks keep the semantics of {@link ScheduledThreadPoolExecutor}: a run never overlaps the previous one,
+ * the next run is scheduled once it is done, and a run that throws cancels the task.
+ */
+final class ShippingExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private static final long IDLE_THREAD_KEEP_ALIVE_SEC = 60;
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService workers;
+    private final boolean virtual;
+
+    private ShippingExecutor(ScheduledThreadPoolExecutor timer, ExecutorService workers, boolean virtual) {
+        this.timer = timer;
+        this.workers = workers;
+        this.virtual = virtual;
+    }
+
+    /**
+     * @param name names the threads, logzio-timer-name and logzio-ship-name-n
+     */
+    static ShippingExecutor create(String name) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("logzio-timer-" + name)
+                .setDaemon(true)
+                .build());
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        timer.setRemoveOnCancelPolicy(true);
+        ExecutorService virtualWorkers = newVirtualThreadPerTaskExecutor("logzio-ship-" + name + "-");
+        if (virtualWorkers != null) {
+            return new ShippingExecutor(timer, virtualWorkers, true);
+        }
+        ThreadPoolExecutor platformWorkers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_THREAD_KEEP_ALIVE_SEC,
+                TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadFactoryBuilder()
+                .setNameFormat("logzio-ship-" + name + "-%d")
+                .setDaemon(true)
+                .build());
+        return new ShippingExecutor(timer, platformWorkers, false);
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, named prefix then a counter, null before Java 21
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor(String prefix) {
+        try {
+            // Built for Java 11, the Java 21 API is looked up
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the tasks run on virtual threads
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        workers.execute(command);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return arm(new ScheduledTask<>(Executors.callable(command), 0), unit.toNanos(delay));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return arm(new ScheduledTask<>(callable, 0), unit.toNanos(delay));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return arm(new ScheduledTask<>(Executors.callable(command), unit.toNanos(period)), unit.toNanos(initialDelay));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        return arm(new ScheduledTask<>(Executors.callable(command), -unit.toNanos(delay)), unit.toNanos(initialDelay));
+    }
+
+    @Override
+    public void shutdown() {
+        timer.shutdown();
+        workers.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = new ArrayList<>(timer.shutdownNow());
+        pending.addAll(workers.shutdownNow());
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return workers.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return timer.isTerminated() && workers.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return timer.awaitTermination(timeout, unit)
+                && workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private <V> ScheduledTask<V> arm(ScheduledTask<V> task, long delayNanos) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("The shipping executor is shut down");
+        }
+        task.time = System.nanoTime() + delayNanos;
+        task.schedule();
+        return task;
+    }
+
+    /**
+     * Waits on the timer, then runs on a worker thread, and for a periodic task, goes back to the timer once done
+     */
+    private final class ScheduledTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        // 0 for a one shot task, positive for a fixed rate, negative for a fixed delay
+        private final long period;
+        // System.nanoTime() of the next run
+        private volatile long time;
+        private volatile ScheduledFuture<?> timerFuture;
+
+        private ScheduledTask(Callable<V> callable, long period) {
+            super(callable);
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            if (period == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                time = period > 0 ? time + period : System.nanoTime() - period;
+                try {
+                    schedule();
+                } catch (RejectedExecutionException e) {
+                    // Shut down meanwhile
+                    cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            ScheduledFuture<?> pending = timerFuture;
+            if (cancelled && pending != null) {
+                pending.cancel(false);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return other == this ? 0 : Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        private void schedule() {
+            timerFuture = timer.schedule(this::dispatch, time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        private void dispatch() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.Encoder;
+import net.logstash.logback.encoder.StreamingEncoder;
+
+import java.io.IOException;
+
+/**
+ * Lets encoders that can write to a stream, such as LogstashEncoder, encode into a per-thread buffer
+ * that is reused across events, instead of each encode returning a freshly grown array.
+ * The only allocation left per event is the exact-size copy handed to the sender.
+ */
+final class StreamingEncoderWriter {
+
+    private static final String STREAMING_ENCODER_CLASS = "net.logstash.logback.encoder.StreamingEncoder";
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final ThreadLocal<ByteArrayBuilder> buffers = ThreadLocal.withInitial(() -> new ByteArrayBuilder(INITIAL_BUFFER_SIZE));
+    private final StreamingEncoder<ILoggingEvent> encoder;
+
+    private StreamingEncoderWriter(StreamingEncoder<ILoggingEvent> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * @return a writer for the encoder, or null if the encoder can't write to a stream or logstash-logback-encoder
+     * is not on the classpath
+     */
+    @SuppressWarnings("unchecked")
+    static StreamingEncoderWriter forEncoder(Encoder<ILoggingEvent> encoder) {
+        if (encoder == null || !isStreamingEncoderAvailable()) {
+            return null;
+        }
+        return encoder instanceof StreamingEncoder
+                ? new StreamingEncoderWriter((StreamingEncoder<ILoggingEvent>) encoder)
+                : null;
+    }
+
+    byte[] write(ILoggingEvent loggingEvent) throws IOException {
+        ByteArrayBuilder out = buffers.get();
+        out.reset();
+        encoder.encode(loggingEvent, out);
+        return out.toByteArray();
+    }
+
+    private static boolean isStreamingEncoderAvailable() {
+        try {
+            Class.forName(STREAMING_ENCODER_CLASS, false, StreamingEncoderWriter.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import io.logz.sender.com.google.gson.JsonNull;
+import io.logz.sender.com.google.gson.JsonObject;
+import org.slf4j.event.KeyValuePair;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static io.logz.logback.LogzioLogbackAppender.MESSAGE;
+
+/**
+ * Ships the message template, the arguments and the SLF4J key/value pairs of an event as fields of their own,
+ * numbers and booleans as JSON numbers and booleans, anything else as its string, the way the message formatter
+ * renders it. The arguments are named by their position, arg0 for the first one.
+ * <p>
+ * Fields are added in that order, a key/value pair overriding the template or an argument of the same name, and
+ * the last pair of a key winning. A pair never overrides the message.
+ */
+final class StructuredFields {
+
+    static final String MESSAGE_TEMPLATE = "message_template";
+    static final String ARGUMENT_PREFIX = "arg";
+
+    private static final int PRE_ENCODED_ARGUMENTS = 16;
+    private static final byte[] MESSAGE_TEMPLATE_KEY = ("\"" + MESSAGE_TEMPLATE + "\":").getBytes(StandardCharsets.UTF_8);
+    private static final byte[][] ARGUMENT_KEYS = new byte[PRE_ENCODED_ARGUMENTS][];
+
+    static {
+        for (int i = 0; i < PRE_ENCODED_ARGUMENTS; i++) {
+            ARGUMENT_KEYS[i] = ("\"" + ARGUMENT_PREFIX + i + "\":").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private StructuredFields() {
+    }
+
+    /**
+     * @param withTemplate false when the message field already holds the template
+     */
+    static void add(JsonObject logMessage, ILoggingEvent loggingEvent, boolean withTemplate) {
+        if (withTemplate) {
+            logMessage.addProperty(MESSAGE_TEMPLATE, loggingEvent.getMessage());
+        }
+        Object[] arguments = loggingEvent.getArgumentArray();
+        if (arguments != null) {
+            for (int i = 0; i < arguments.length; i++) {
+                addValue(logMessage, ARGUMENT_PREFIX + i, arguments[i]);
+            }
+        }
+        List<KeyValuePair> keyValuePairs = loggingEvent.getKeyValuePairs();
+        if (keyValuePairs != null) {
+            for (KeyValuePair pair : keyValuePairs) {
+                if (isShipped(pair)) {
+                    addValue(logMessage, pair.key, pair.value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the same fields {@link #add} adds, each one preceded by a separator, as JSON members
+     *
+     * @param shadowed tells the names of the fields a later source of the document overrides
+     */
+    static void write(ByteArrayBuilder out, ILoggingEvent loggingEvent, boolean withTemplate, Predicate<String> shadowed) {
+        List<KeyValuePair> keyValuePairs = loggingEvent.getKeyValuePairs();
+        if (withTemplate && !hasPair(keyValuePairs, MESSAGE_TEMPLATE, 0) && !shadowed.test(MESSAGE_TEMPLATE)) {
+            JsonEventWriter.separator(out);
+            out.write(MESSAGE_TEMPLATE_KEY);
+            writeString(out, loggingEvent.getMessage());
+        }
+        Object[] arguments = loggingEvent.getArgumentArray();
+        if (arguments != null) {
+            for (int i = 0; i < arguments.length; i++) {
+                String name = ARGUMENT_PREFIX + i;
+                if (!hasPair(keyValuePairs, name, 0) && !shadowed.test(name)) {
+                    JsonEventWriter.separator(out);
+                    if (i < PRE_ENCODED_ARGUMENTS) {
+                        out.write(ARGUMENT_KEYS[i]);
+                    } else {
+                        out.writeJsonString(name);
+                        out.write(':');
+                    }
+                    writeValue(out, arguments[i]);
+                }
+            }
+        }
+        if (keyValuePairs != null) {
+            for (int i = 0; i < keyValuePairs.size(); i++) {
+                KeyValuePair pair = keyValuePairs.get(i);
+                if (isShipped(pair) && !hasPair(keyValuePairs, pair.key, i + 1) && !shadowed.test(pair.key)) {
+                    JsonEventWriter.separator(out);
+                    out.writeJsonString(pair.key);
+                    out.write(':');
+                    writeValue(out, pair.value);
+                }
+            }
+        }
+    }
+
+    private static boolean isShipped(KeyValuePair pair) {
+        return pair.key != null && !MESSAGE.equals(pair.key);
+    }
+
+    /**
+     * @return true if a pair from index from on is shipped under the name
+     */
+    private static boolean hasPair(List<KeyValuePair> keyValuePairs, String name, int from) {
+        if (keyValuePairs == null) {
+            return false;
+        }
+        for (int i = from; i < keyValuePairs.size(); i++) {
+            if (name.equals(keyValuePairs.get(i).key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addValue(JsonObject logMessage, String name, Object value) {
+        if (value == null) {
+            logMessage.add(name, JsonNull.INSTANCE);
+        } else if (value instanceof Boolean) {
+            logMessage.addProperty(name, (Boolean) value);
+        } else if (isJsonNumber(value)) {
+            logMessage.addProperty(name, (Number) value);
+        } else {
+            logMessage.addProperty(name, render(value));
+        }
+    }
+
+    private static void writeValue(ByteArrayBuilder out, Object value) {
+        if (value == null) {
+            out.writeAscii("null");
+        } else if (value instanceof Boolean || isJsonNumber(value)) {
+            out.writeAscii(value.toString());
+        } else {
+            out.writeJsonString(render(value));
+        }
+    }
+
+    private static void writeString(ByteArrayBuilder out, String value) {
+        if (value == null) {
+            out.writeAscii("null");
+        } else {
+            out.writeJsonString(value);
+        }
+    }
+
+    /**
+     * @return true for the numbers whose string is a JSON number
+     */
+    private static boolean isJsonNumber(Object value) {
+        if (value instanceof Double) {
+            return Double.isFinite((Double) value);
+        }
+        if (value instanceof Float) {
+            return Float.isFinite((Float) value);
+        }
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger || value instanceof BigDecimal;
+    }
+
+    /**
+     * @return the value as the message formatter renders it
+     */
+    private static String render(Object value) {
+        try {
+            if (value.getClass().isArray()) {
+                String array = Arrays.deepToString(new Object[]{value});
+                return array.substring(1, array.length() - 1);
+            }
+            return value.toString();
+        } catch (Throwable t) {
+            return "[FAILED toString()]";
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Formats event timestamps as ISO-8601 UTC instants with a fixed number of fraction digits.
+ * The date and time up to the second is formatted once per second and shared by every event logged
+ * in that second, only the fraction is written per event.
+ */
+final class TimestampEncoder {
+
+    enum Precision {
+        MILLIS(3),
+        MICROS(6);
+
+        private final int digits;
+
+        Precision(int digits) {
+            this.digits = digits;
+        }
+
+        static Precision fromString(String value) {
+            return Precision.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final DateTimeFormatter SECOND_FORMATTER =
+            DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss", Locale.ROOT).withZone(ZoneOffset.UTC);
+
+    private final Precision precision;
+    // Replaced by whichever thread first sees a new second, a lost race only costs formatting the second twice
+    private volatile Second cachedSecond = new Second(0);
+
+    TimestampEncoder(Precision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * Writes the timestamp of the event as a quoted JSON string
+     */
+    void write(ByteArrayBuilder out, ILoggingEvent loggingEvent) {
+        long epochSecond = epochSecond(loggingEvent);
+        out.write('"');
+        out.write(second(epochSecond).bytes);
+        out.write('.');
+        out.writeDigits(fraction(loggingEvent), precision.digits);
+        out.write('Z');
+        out.write('"');
+    }
+
+    String format(ILoggingEvent loggingEvent) {
+        long epochSecond = epochSecond(loggingEvent);
+        String fraction = Integer.toString(fraction(loggingEvent));
+        StringBuilder timestamp = new StringBuilder(32).append(second(epochSecond).text).append('.');
+        for (int i = fraction.length(); i < precision.digits; i++) {
+            timestamp.append('0');
+        }
+        return timestamp.append(fraction).append('Z').toString();
+    }
+
+    private long epochSecond(ILoggingEvent loggingEvent) {
+        if (precision == Precision.MICROS) {
+            Instant instant = loggingEvent.getInstant();
+            if (instant != null) {
+                return instant.getEpochSecond();
+            }
+        }
+        return Math.floorDiv(loggingEvent.getTimeStamp(), 1000L);
+    }
+
+    private int fraction(ILoggingEvent loggingEvent) {
+        if (precision == Precision.MICROS) {
+            Instant instant = loggingEvent.getInstant();
+            if (instant != null) {
+                return instant.getNano() / 1000;
+            }
+            return (int) Math.floorMod(loggingEvent.getTimeStamp(), 1000L) * 1000;
+        }
+        return (int) Math.floorMod(loggingEvent.getTimeStamp(), 1000L);
+    }
+
+    private Second second(long epochSecond) {
+        Second second = cachedSecond;
+        if (second.epochSecond != epochSecond) {
+            second = new Second(epochSecond);
+            cachedSecond = second;
+        }
+        return second;
+    }
+
+    private static final class Second {
+        private final long epochSecond;
+        private final String text;
+        private final byte[] bytes;
+
+        private Second(long epochSecond) {
+            this.epochSecond = epochSecond;
+            this.text = SECOND_FORMATTER.format(Instant.ofEpochSecond(epochSecond));
+            this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
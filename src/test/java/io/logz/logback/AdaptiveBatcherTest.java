@@ -0,0 +1,57 @@
+package io.logz.logback;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveBatcherTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger flushes = new AtomicInteger();
+
+    @Test
+    public void targetIsWhatGetsEnqueuedOverARoundTrip() {
+        AdaptiveBatcher batcher = new AdaptiveBatcher(1000, 100_000, flushes::incrementAndGet, clock::get);
+        assertThat(batcher.targetBytes()).isEqualTo(1000);
+
+        for (int i = 0; i < 50; i++) {
+            batcher.onEnqueued(1000);
+        }
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        batcher.onFlush();
+        batcher.onRoundTrip(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(batcher.targetBytes()).isEqualTo(10_000);
+
+        // A listener far away makes for bulks as large as allowed
+        for (int i = 0; i < 20; i++) {
+            batcher.onRoundTrip(TimeUnit.SECONDS.toNanos(10));
+        }
+        assertThat(batcher.targetBytes()).isEqualTo(100_000);
+    }
+
+    @Test
+    public void flushIsRequestedOncePerTargetReached() {
+        AdaptiveBatcher batcher = new AdaptiveBatcher(1000, 100_000, flushes::incrementAndGet, clock::get);
+
+        batcher.onEnqueued(400);
+        batcher.onEnqueued(400);
+        assertThat(flushes.get()).isEqualTo(0);
+        batcher.onEnqueued(400);
+        assertThat(flushes.get()).isEqualTo(1);
+        // The flush that was requested ships these too
+        batcher.onEnqueued(400);
+        assertThat(flushes.get()).isEqualTo(1);
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        batcher.onFlush();
+        batcher.onFlushed();
+        batcher.onEnqueued(400);
+        assertThat(flushes.get()).isEqualTo(1);
+        batcher.onEnqueued(1000);
+        assertThat(flushes.get()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,119 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import io.logz.sender.SenderStatusReporter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncDispatcherTest {
+    private final Logger logger = new LoggerContext().getLogger("asyncDispatcher");
+
+    @Test
+    public void warnEventsWaitForAFreeSlotUpToATimeout() throws InterruptedException {
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncDispatcher dispatcher = new AsyncDispatcher(2, 1, AsyncDispatcher.WaitStrategy.SLEEPING, true, 5000,
+                "bounded", (loggingEvent, spanContext, callerLine) -> {
+            handling.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, reporter());
+        dispatcher.start();
+        try {
+            assertThat(dispatcher.dispatch(event(Level.WARN, "taken by the worker"), null, null)).isTrue();
+            assertThat(handling.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(dispatcher.dispatch(event(Level.WARN, "queued 1"), null, null)).isTrue();
+            assertThat(dispatcher.dispatch(event(Level.WARN, "queued 2"), null, null)).isTrue();
+
+            long start = System.nanoTime();
+            assertThat(dispatcher.dispatch(event(Level.ERROR, "no free slot"), null, null)).isFalse();
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isBetween(900L, 5000L);
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void noEventIsLeftInTheRingWhenStopping() throws InterruptedException {
+        AtomicLong handled = new AtomicLong();
+        AsyncDispatcher dispatcher = new AsyncDispatcher(1024, 2, AsyncDispatcher.WaitStrategy.BLOCKING, true, 5000,
+                "stopping", (loggingEvent, spanContext, callerLine) -> handled.incrementAndGet(), reporter());
+        dispatcher.start();
+
+        AtomicBoolean producing = new AtomicBoolean(true);
+        AtomicLong published = new AtomicLong();
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread producer = new Thread(() -> {
+                ILoggingEvent loggingEvent = event(Level.INFO, "event");
+                while (producing.get()) {
+                    if (dispatcher.dispatch(loggingEvent, null, null)) {
+                        published.incrementAndGet();
+                    }
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        Thread.sleep(200);
+        dispatcher.stop();
+        producing.set(false);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertThat(dispatcher.size()).isZero();
+        assertThat(handled.get()).isEqualTo(published.get());
+        // Events logged once the dispatcher stopped are dropped, not queued
+        assertThat(dispatcher.dispatch(event(Level.ERROR, "after stop"), null, null)).isFalse();
+        assertThat(dispatcher.size()).isZero();
+    }
+
+    private ILoggingEvent event(Level level, String message) {
+        return new LoggingEvent(Logger.class.getName(), logger, level, message, null, null);
+    }
+
+    private SenderStatusReporter reporter() {
+        return new SenderStatusReporter() {
+            @Override
+            public void error(String msg) {
+            }
+
+            @Override
+            public void error(String msg, Throwable e) {
+            }
+
+            @Override
+            public void warning(String msg) {
+            }
+
+            @Override
+            public void warning(String msg, Throwable e) {
+            }
+
+            @Override
+            public void info(String msg) {
+            }
+
+            @Override
+            public void info(String msg, Throwable e) {
+            }
+        };
+    }
+}
@@ -0,0 +1,126 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import io.logz.sender.SenderStatusReporter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BackpressurePolicyTest {
+
+    private final AtomicReference<Double> fillLevel = new AtomicReference<>(0.0);
+    private final List<String> warnings = new ArrayList<>();
+
+    @Test
+    public void shedsLowLevelEventsAboveTheShedWatermark() {
+        BackpressurePolicy policy = policy(TimeUnit.MILLISECONDS.toNanos(10));
+
+        fillLevel.set(0.5);
+        assertThat(policy.admit(event(Level.DEBUG))).isTrue();
+        fillLevel.set(0.75);
+        assertThat(policy.admit(event(Level.DEBUG))).isFalse();
+        assertThat(policy.admit(event(Level.INFO))).isFalse();
+        assertThat(policy.admit(event(Level.WARN))).isTrue();
+        assertThat(policy.admit(event(Level.ERROR))).isTrue();
+        assertThat(policy.getShedEvents()).isEqualTo(2);
+        assertThat(policy.getDroppedEvents()).isZero();
+    }
+
+    @Test
+    public void blocksAboveTheBlockWatermarkUntilTheQueueDrains() {
+        BackpressurePolicy policy = policy(TimeUnit.SECONDS.toNanos(10));
+        fillLevel.set(0.95);
+
+        CompletableFuture.runAsync(() -> {
+            sleepMillis(100);
+            fillLevel.set(0.8);
+        });
+        long start = System.nanoTime();
+        assertThat(policy.admit(event(Level.ERROR))).isTrue();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isBetween(50L, 5000L);
+    }
+
+    @Test
+    public void dropsWhenFullAfterTheBlockTimeout() {
+        BackpressurePolicy policy = policy(TimeUnit.MILLISECONDS.toNanos(20));
+        fillLevel.set(0.95);
+        assertThat(policy.admit(event(Level.ERROR))).isTrue();
+
+        fillLevel.set(1.0);
+        assertThat(policy.admit(event(Level.ERROR))).isFalse();
+        assertThat(policy.getDroppedEvents()).isEqualTo(1);
+    }
+
+    @Test
+    public void reportsSheddingOncePerEpisode() {
+        BackpressurePolicy policy = policy(0);
+
+        fillLevel.set(0.8);
+        for (int i = 0; i < 10; i++) {
+            policy.admit(event(Level.INFO));
+        }
+        fillLevel.set(0.1);
+        policy.admit(event(Level.INFO));
+        fillLevel.set(0.8);
+        policy.admit(event(Level.INFO));
+
+        assertThat(warnings).hasSize(2);
+        assertThat(warnings.get(0)).contains("80% full");
+    }
+
+    private BackpressurePolicy policy(long blockTimeoutNanos) {
+        return new BackpressurePolicy(fillLevel::get, 0.7, Level.INFO, 0.9, blockTimeoutNanos, reporter());
+    }
+
+    private static LoggingEvent event(Level level) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerName("backpressure");
+        event.setLevel(level);
+        return event;
+    }
+
+    private static void sleepMillis(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SenderStatusReporter reporter() {
+        return new SenderStatusReporter() {
+            @Override
+            public void error(String msg) {
+            }
+
+            @Override
+            public void error(String msg, Throwable e) {
+            }
+
+            @Override
+            public void warning(String msg) {
+                warnings.add(msg);
+            }
+
+            @Override
+            public void warning(String msg, Throwable e) {
+                warnings.add(msg);
+            }
+
+            @Override
+            public void info(String msg) {
+            }
+
+            @Override
+            public void info(String msg, Throwable e) {
+            }
+        };
+    }
+}
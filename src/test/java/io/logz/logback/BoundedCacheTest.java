@@ -0,0 +1,21 @@
+package io.logz.logback;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void stopsCachingOnceFull() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(2);
+        assertThat(cache.put("a", 1)).isEqualTo(1);
+        assertThat(cache.put("a", 10)).isEqualTo(10);
+        assertThat(cache.put("b", 2)).isEqualTo(2);
+        assertThat(cache.put("c", 3)).isEqualTo(3);
+
+        assertThat(cache.get("a")).isEqualTo(1);
+        assertThat(cache.get("b")).isEqualTo(2);
+        assertThat(cache.get("c")).isNull();
+    }
+}
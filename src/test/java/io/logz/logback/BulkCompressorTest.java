@@ -0,0 +1,88 @@
+package io.logz.logback;
+
+import com.github.luben.zstd.Zstd;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkCompressorTest {
+
+    @Test
+    public void gzipBodiesAreReadableByGzipInputStream() throws IOException {
+        BulkCompressor compressor = BulkCompressor.create(BulkCompressor.Codec.GZIP, 1);
+        // The same compressor, deflater and buffers, for bulks of different sizes
+        for (int bulkSize : new int[]{1000, 10, 5000}) {
+            List<byte[]> logs = logs(bulkSize);
+            compressor.compress(logs);
+
+            assertThat(compressor.contentEncoding()).isEqualTo("gzip");
+            assertThat(compressor.bodySize()).isLessThan(newLineSeparated(logs).length);
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressor.body(), 0, compressor.bodySize()))) {
+                assertThat(in.readAllBytes()).isEqualTo(newLineSeparated(logs));
+            }
+        }
+        compressor.close();
+    }
+
+    @Test
+    public void incompressibleBodiesGrowTheBuffer() throws IOException {
+        BulkCompressor compressor = BulkCompressor.create(BulkCompressor.Codec.GZIP, 0);
+        List<byte[]> logs = logs(2000);
+        compressor.compress(logs);
+
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressor.body(), 0, compressor.bodySize()))) {
+            assertThat(in.readAllBytes()).isEqualTo(newLineSeparated(logs));
+        }
+        compressor.close();
+    }
+
+    @Test
+    public void zstdBodiesRoundTrip() {
+        assertThat(BulkCompressor.isZstdAvailable()).isTrue();
+        BulkCompressor compressor = BulkCompressor.create(BulkCompressor.Codec.ZSTD, BulkCompressor.DEFAULT_LEVEL);
+        List<byte[]> logs = logs(1000);
+        compressor.compress(logs);
+
+        assertThat(compressor.contentEncoding()).isEqualTo("zstd");
+        byte[] body = Arrays.copyOf(compressor.body(), compressor.bodySize());
+        byte[] expected = newLineSeparated(logs);
+        assertThat(Zstd.decompress(body, expected.length)).isEqualTo(expected);
+        compressor.close();
+    }
+
+    @Test
+    public void noneSendsTheLogsAsIs() {
+        BulkCompressor compressor = BulkCompressor.create(BulkCompressor.Codec.NONE, BulkCompressor.DEFAULT_LEVEL);
+        List<byte[]> logs = logs(10);
+        compressor.compress(logs);
+
+        assertThat(compressor.contentEncoding()).isNull();
+        assertThat(Arrays.copyOf(compressor.body(), compressor.bodySize())).isEqualTo(newLineSeparated(logs));
+        assertThat(BulkCompressor.isValidLevel(BulkCompressor.Codec.GZIP, 10)).isFalse();
+        assertThat(BulkCompressor.isValidLevel(BulkCompressor.Codec.ZSTD, 19)).isTrue();
+    }
+
+    private static List<byte[]> logs(int count) {
+        List<byte[]> logs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            logs.add(("{\"message\":\"log number " + i + "\",\"logger\":\"bulkCompressor\"}").getBytes(StandardCharsets.UTF_8));
+        }
+        return logs;
+    }
+
+    private static byte[] newLineSeparated(List<byte[]> logs) {
+        StringBuilder body = new StringBuilder();
+        for (byte[] log : logs) {
+            body.append(new String(log, StandardCharsets.UTF_8)).append('\n');
+        }
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
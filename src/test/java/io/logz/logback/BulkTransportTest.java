@@ -0,0 +1,107 @@
+package io.logz.logback;
+
+import com.sun.net.httpserver.HttpServer;
+import io.logz.sender.HttpsRequestConfiguration;
+import io.logz.sender.SenderStatusReporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkTransportTest {
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final List<String> upgrades = new CopyOnWriteArrayList<>();
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+    private HttpServer listener;
+
+    @Before
+    public void startListener() throws Exception {
+        listener = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        listener.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            String upgrade = exchange.getRequestHeaders().getFirst("Upgrade");
+            if (upgrade != null) {
+                upgrades.add(upgrade);
+            }
+            bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        listener.start();
+    }
+
+    @After
+    public void stopListener() {
+        listener.stop(0);
+    }
+
+    @Test
+    public void http2TransportOffersHttp2AndKeepsItsConnectionBetweenBulks() throws Exception {
+        BulkTransport transport = BulkTransport.create(BulkTransport.Type.HTTP2, configuration(), reporter());
+        assertThat(sendBulks(transport, 5)).containsOnly(200);
+
+        assertThat(bodies).hasSize(5);
+        // Asked to upgrade to cleartext HTTP/2, which this listener does not, the requests go on as HTTP/1.1
+        assertThat(upgrades).contains("h2c");
+        assertThat(clientPorts).hasSize(1);
+    }
+
+    private static List<Integer> sendBulks(BulkTransport transport, int count) throws Exception {
+        BulkCompressor compressor = BulkCompressor.create(BulkCompressor.Codec.NONE, BulkCompressor.DEFAULT_LEVEL);
+        List<Integer> responseCodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            compressor.compress(Collections.singletonList(("{\"message\":\"bulk " + i + "\"}").getBytes(StandardCharsets.UTF_8)));
+            responseCodes.add(transport.send(compressor));
+        }
+        compressor.close();
+        return responseCodes;
+    }
+
+    private HttpsRequestConfiguration configuration() throws Exception {
+        return HttpsRequestConfiguration.builder()
+                .setLogzioListenerUrl("http://localhost:" + listener.getAddress().getPort())
+                .setLogzioToken("transportToken")
+                .setLogzioType("transportType")
+                .build();
+    }
+
+    private static SenderStatusReporter reporter() {
+        return new SenderStatusReporter() {
+            @Override
+            public void error(String msg) {
+            }
+
+            @Override
+            public void error(String msg, Throwable e) {
+            }
+
+            @Override
+            public void warning(String msg) {
+            }
+
+            @Override
+            public void warning(String msg, Throwable e) {
+            }
+
+            @Override
+            public void info(String msg) {
+            }
+
+            @Override
+            public void info(String msg, Throwable e) {
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.pattern.LineOfCallerConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallerLineResolverTest {
+
+    @Test
+    public void stackWalkerFindsTheSameLineAsCallerData() {
+        CallerLineResolver resolver = resolver(null, 1, true);
+        List<String> walked = new ArrayList<>();
+        List<String> fromCallerData = new ArrayList<>();
+        Logger logger = logger(event -> {
+            walked.add(resolver.resolve(event));
+            fromCallerData.add(new LineOfCallerConverter().convert(event));
+        });
+
+        for (int i = 0; i < 3; i++) {
+            logger.info("from the same call site");
+        }
+        logger.info("from another one");
+
+        assertThat(walked).isEqualTo(fromCallerData);
+        assertThat(walked.get(0)).isEqualTo(walked.get(1)).isEqualTo(walked.get(2));
+        assertThat(Integer.parseInt(walked.get(3))).isEqualTo(Integer.parseInt(walked.get(0)) + 2);
+    }
+
+    @Test
+    public void eventsBelowTheMinimumLevelGetNoLine() {
+        CallerLineResolver resolver = resolver(Level.WARN, 1, true);
+        List<String> lines = new ArrayList<>();
+        Logger logger = logger(event -> lines.add(resolver.resolve(event)));
+
+        logger.info("info");
+        logger.warn("warn");
+        logger.error("error");
+
+        assertThat(lines.get(0)).isNull();
+        assertThat(lines.get(1)).isNotNull();
+        assertThat(lines.get(2)).isNotNull();
+    }
+
+    @Test
+    public void sampledEventsGetTheLine() {
+        CallerLineResolver resolver = resolver(null, 4, false);
+        List<String> lines = new ArrayList<>();
+        Logger logger = logger(event -> lines.add(resolver.resolve(event)));
+
+        for (int i = 0; i < 4000; i++) {
+            logger.info("sampled");
+        }
+
+        long withLine = lines.stream().filter(line -> line != null).count();
+        assertThat(withLine).isBetween(700L, 1300L);
+        assertThat(lines.stream().filter(line -> line != null).distinct()).hasSize(1);
+    }
+
+    private static CallerLineResolver resolver(Level minLevel, int sampleRate, boolean stackWalker) {
+        return new CallerLineResolver(new LineOfCallerConverter(), minLevel, sampleRate, stackWalker, 64,
+                Collections.emptyList());
+    }
+
+    private static Logger logger(Consumer<ILoggingEvent> onEvent) {
+        LoggerContext loggerContext = new LoggerContext();
+        AppenderBase<ILoggingEvent> appender = new AppenderBase<ILoggingEvent>() {
+            @Override
+            protected void append(ILoggingEvent loggingEvent) {
+                onEvent.accept(loggingEvent);
+            }
+        };
+        appender.setContext(loggerContext);
+        appender.start();
+        Logger logger = loggerContext.getLogger("callerLineResolver");
+        logger.addAppender(appender);
+        return logger;
+    }
+}
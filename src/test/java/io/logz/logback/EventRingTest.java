@@ -0,0 +1,177 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventRingTest {
+    private final Logger logger = new LoggerContext().getLogger("eventRing");
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertThat(new EventRing(1000).capacity()).isEqualTo(1024);
+        assertThat(new EventRing(1024).capacity()).isEqualTo(1024);
+    }
+
+    @Test
+    public void rejectsWhenFullAndKeepsOrder() {
+        EventRing ring = new EventRing(4);
+        List<ILoggingEvent> events = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            events.add(event("event " + i));
+            assertThat(ring.offer(events.get(i), null, null)).isTrue();
+        }
+        assertThat(ring.offer(event("overflow"), null, null)).isFalse();
+        assertThat(ring.size()).isEqualTo(4);
+
+        List<ILoggingEvent> polled = new ArrayList<>();
+        while (ring.poll((loggingEvent, spanContext, callerLine) -> polled.add(loggingEvent))) {
+            // drain
+        }
+        assertThat(polled).containsExactlyElementsOf(events);
+        assertThat(ring.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void batchesClaimWhatFitsAndKeepOrder() {
+        EventRing ring = new EventRing(8);
+        List<ILoggingEvent> events = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            events.add(event("event " + i));
+        }
+        assertThat(ring.offer(events.get(0), null, null)).isTrue();
+        assertThat(ring.offerBatch(events, 1, null, null)).isEqualTo(7);
+        assertThat(ring.offerBatch(events, 8, null, null)).isZero();
+
+        List<ILoggingEvent> drained = new ArrayList<>();
+        assertThat(ring.drain((loggingEvent, spanContext, callerLine) -> drained.add(loggingEvent), 5)).isEqualTo(5);
+        assertThat(ring.offerBatch(events, 8, null, null)).isEqualTo(4);
+        assertThat(ring.drain((loggingEvent, spanContext, callerLine) -> drained.add(loggingEvent), 64)).isEqualTo(7);
+        assertThat(ring.drain((loggingEvent, spanContext, callerLine) -> drained.add(loggingEvent), 64)).isZero();
+        assertThat(drained).containsExactlyElementsOf(events);
+    }
+
+    @Test
+    public void failingHandlerStillReleasesTheDrainedSlots() {
+        EventRing ring = new EventRing(4);
+        List<ILoggingEvent> events = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            events.add(event("event " + i));
+        }
+        assertThat(ring.offerBatch(events, 0, null, null)).isEqualTo(4);
+        try {
+            ring.drain((loggingEvent, spanContext, callerLine) -> {
+                throw new IllegalStateException("handler failure");
+            }, 4);
+        } catch (IllegalStateException expected) {
+            // the rest of the batch is dropped
+        }
+        assertThat(ring.isEmpty()).isTrue();
+        assertThat(ring.offerBatch(events, 0, null, null)).isEqualTo(4);
+    }
+
+    @Test
+    public void batchProducersAndConsumersDeliverEveryEventOnce() throws Exception {
+        int producers = 4;
+        int batches = 2000;
+        int batchSize = 25;
+        EventRing ring = new EventRing(256);
+        Set<ILoggingEvent> received = ConcurrentHashMap.newKeySet();
+        AtomicBoolean producing = new AtomicBoolean(true);
+        CountDownLatch producersDone = new CountDownLatch(producers);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                for (int b = 0; b < batches; b++) {
+                    List<ILoggingEvent> batch = new ArrayList<>();
+                    for (int i = 0; i < batchSize; i++) {
+                        batch.add(event("event"));
+                    }
+                    int published = 0;
+                    while (published < batchSize) {
+                        int offered = ring.offerBatch(batch, published, null, null);
+                        if (offered == 0) {
+                            Thread.yield();
+                        }
+                        published += offered;
+                    }
+                }
+                producersDone.countDown();
+            }));
+        }
+        for (int c = 0; c < 2; c++) {
+            threads.add(new Thread(() -> {
+                while (producing.get() || !ring.isEmpty()) {
+                    if (ring.drain((loggingEvent, spanContext, callerLine) -> assertThat(received.add(loggingEvent)).isTrue(), 16) == 0) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        producersDone.await();
+        producing.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(received).hasSize(producers * batches * batchSize);
+    }
+
+    @Test
+    public void multipleProducersAndConsumersDeliverEveryEventOnce() throws Exception {
+        int producers = 4;
+        int eventsPerProducer = 50000;
+        EventRing ring = new EventRing(256);
+        Set<ILoggingEvent> received = ConcurrentHashMap.newKeySet();
+        AtomicBoolean producing = new AtomicBoolean(true);
+        CountDownLatch producersDone = new CountDownLatch(producers);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < eventsPerProducer; i++) {
+                    ILoggingEvent event = event("event");
+                    while (!ring.offer(event, null, null)) {
+                        Thread.yield();
+                    }
+                }
+                producersDone.countDown();
+            }));
+        }
+        for (int c = 0; c < 2; c++) {
+            threads.add(new Thread(() -> {
+                while (producing.get() || !ring.isEmpty()) {
+                    if (!ring.poll((loggingEvent, spanContext, callerLine) -> assertThat(received.add(loggingEvent)).isTrue())) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        producersDone.await();
+        producing.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(received).hasSize(producers * eventsPerProducer);
+    }
+
+    private ILoggingEvent event(String message) {
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null, null);
+    }
+}
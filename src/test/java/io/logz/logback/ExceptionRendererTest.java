@@ -0,0 +1,116 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExceptionRendererTest {
+
+    private final AtomicInteger conversions = new AtomicInteger();
+    private ThrowableProxyConverter converter;
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        LoggerContext context = new LoggerContext();
+        logger = context.getLogger("exceptionRenderer");
+        converter = new ThrowableProxyConverter() {
+            @Override
+            public String convert(ILoggingEvent event) {
+                conversions.incrementAndGet();
+                return super.convert(event);
+            }
+        };
+        converter.setContext(context);
+        converter.setOptionList(Collections.singletonList("full"));
+        converter.start();
+    }
+
+    @Test
+    public void identicalChainsAreRenderedOnce() {
+        ExceptionRenderer renderer = new ExceptionRenderer(converter, 16, 0);
+
+        String first = null;
+        for (int i = 0; i < 3; i++) {
+            String rendered = renderer.render(event(failure("Boom"), 0)).exception;
+            if (first == null) {
+                first = rendered;
+            }
+            assertThat(rendered).isEqualTo(first);
+        }
+        assertThat(conversions.get()).isEqualTo(1);
+        assertThat(first).startsWith("java.lang.IllegalStateException: Boom").contains("Caused by: java.io.IOException: reset");
+    }
+
+    @Test
+    public void differentMessagesAreRenderedAgain() {
+        ExceptionRenderer renderer = new ExceptionRenderer(converter, 16, 0);
+
+        assertThat(renderer.render(event(failure("Boom 1"), 0)).exception).startsWith("java.lang.IllegalStateException: Boom 1");
+        assertThat(renderer.render(event(failure("Boom 2"), 0)).exception).startsWith("java.lang.IllegalStateException: Boom 2");
+        assertThat(conversions.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        ExceptionRenderer renderer = new ExceptionRenderer(converter, 1, 0);
+
+        renderer.render(event(failure("Boom 1"), 0));
+        renderer.render(event(failure("Boom 2"), 0));
+        renderer.render(event(failure("Boom 1"), 0));
+        assertThat(conversions.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void repeatedExceptionsAreReferencedWithinTheWindow() {
+        ExceptionRenderer renderer = new ExceptionRenderer(converter, 16, 1000);
+
+        ExceptionRenderer.Rendering[] renderings = new ExceptionRenderer.Rendering[3];
+        for (int i = 0; i < renderings.length; i++) {
+            // Thrown from the same line every time, only the messages differ
+            renderings[i] = renderer.render(event(failure("Boom " + (i + 1)), i * 500));
+        }
+        ExceptionRenderer.Rendering first = renderings[0];
+        ExceptionRenderer.Rendering second = renderings[1];
+        ExceptionRenderer.Rendering afterWindow = renderings[2];
+
+        assertThat(first.count).isEqualTo(1);
+        assertThat(first.exception).contains("\tat ");
+        assertThat(second.count).isEqualTo(2);
+        assertThat(second.exception).isEqualTo("java.lang.IllegalStateException: Boom 2");
+        assertThat(second.fingerprint).isEqualTo(first.fingerprint).hasSize(16);
+        assertThat(afterWindow.count).isEqualTo(1);
+        assertThat(afterWindow.exception).startsWith("java.lang.IllegalStateException: Boom 3").contains("\tat ");
+    }
+
+    @Test
+    public void differentFramesHaveDifferentFingerprints() {
+        ExceptionRenderer renderer = new ExceptionRenderer(converter, 16, 1000);
+
+        ExceptionRenderer.Rendering first = renderer.render(event(failure("Boom"), 0));
+        ExceptionRenderer.Rendering other = renderer.render(event(new IllegalStateException("Boom"), 0));
+
+        assertThat(other.fingerprint).isNotEqualTo(first.fingerprint);
+        assertThat(other.count).isEqualTo(1);
+    }
+
+    private static Exception failure(String message) {
+        return new IllegalStateException(message, new java.io.IOException("reset"));
+    }
+
+    private ILoggingEvent event(Throwable throwable, long timestamp) {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "Failed", throwable, null);
+        event.setTimeStamp(timestamp);
+        return event;
+    }
+}
@@ -0,0 +1,284 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import io.logz.sender.com.google.gson.Gson;
+import io.logz.sender.com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MarkerFactory;
+import org.slf4j.event.KeyValuePair;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the streamed JSON documents with the ones built by the JsonObject path
+ */
+public class JsonEventWriterTest {
+    private static final Gson gson = new Gson();
+    private LogzioLogbackAppender logzioLogbackAppender;
+    private LoggerContext loggerContext;
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+        logger = loggerContext.getLogger("jsonEventWriter" + UUID.randomUUID());
+        logzioLogbackAppender = new LogzioLogbackAppender();
+        logzioLogbackAppender.setContext(loggerContext);
+        logzioLogbackAppender.setToken("jsonEventWriterToken");
+        logzioLogbackAppender.setLogzioType("jsonEventWriter" + UUID.randomUUID().toString().substring(0, 8));
+        logzioLogbackAppender.setLogzioUrl("http://127.0.0.1:1");
+        logzioLogbackAppender.setInMemoryQueue(true);
+        logzioLogbackAppender.setDrainTimeoutSec(60);
+    }
+
+    @After
+    public void tearDown() {
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void simpleEvent() {
+        logzioLogbackAppender.start();
+        assertSameDocument(event(Level.INFO, "Simple message", null));
+    }
+
+    @Test
+    public void escapedAndUnicodeCharacters() {
+        logzioLogbackAppender.start();
+        assertSameDocument(event(Level.WARN, "quote \" backslash \\ tab \t new line \n control \u0001 "
+                + "unicode \u00e9\u4e2d\ud83d\ude00 separators \u2028\u2029 broken \ud83d", null));
+    }
+
+    @Test
+    public void mdcMarkerExceptionAndAdditionalFields() {
+        logzioLogbackAppender.setAdditionalFields("env=prod;region=us-east-1;line=fromConfig");
+        logzioLogbackAppender.setLine(true);
+        logzioLogbackAppender.start();
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("requestId", "1234");
+        mdc.put("env", "shadowedByAdditionalField");
+        mdc.put("logger", "shadowedByLogger");
+        mdc.put("message", "overrides the message");
+        LoggingEvent event = event(Level.ERROR, "Message {}", new RuntimeException("Boom", new IllegalStateException("cause")), mdc);
+        event.addMarker(MarkerFactory.getMarker("MyMarker"));
+
+        assertSameDocument(event);
+    }
+
+    @Test
+    public void preEncodedAdditionalFieldsAndHostname() {
+        logzioLogbackAppender.setAdditionalFields("env=prod;quoted=\"value\" with \\ backslash;unicode=\u00e9\u4e2d;empty=");
+        logzioLogbackAppender.setAddHostname(true);
+        logzioLogbackAppender.start();
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("env", "shadowedByAdditionalField");
+        LoggingEvent event = event(Level.INFO, "Message", null, mdc);
+
+        assertSameDocument(event);
+        // The pre-encoded block is reused as is for the next events
+        assertSameDocument(event(Level.WARN, "Another message", null));
+    }
+
+    @Test
+    public void projectedMdc() {
+        logzioLogbackAppender.setFormat("json");
+        logzioLogbackAppender.setSpliceJsonMessages(true);
+        logzioLogbackAppender.setMdcExcludeKeys("secret");
+        logzioLogbackAppender.setMdcRenames("userId=user.id;msg=message;quote=\"quoted\"");
+        logzioLogbackAppender.start();
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("userId", "42");
+        mdc.put("user.id", "shadowedByTheRenamedKey");
+        mdc.put("secret", "excluded");
+        mdc.put("msg", "overrides the message");
+        mdc.put("quote", "escaped once");
+        LoggingEvent event = event(Level.INFO, "{\"message\":\"json message\",\"secret\":\"fromMessage\"}", null, mdc);
+
+        assertSameDocument(event);
+        JsonObject document = gson.fromJson(new String(writer().write(event), StandardCharsets.UTF_8), JsonObject.class);
+        assertThat(document.get("user.id").getAsString()).isEqualTo("42");
+        assertThat(document.has("userId")).isFalse();
+        assertThat(document.get("secret").getAsString()).isEqualTo("fromMessage");
+        assertThat(document.get("message").getAsString()).isEqualTo("overrides the message");
+        assertThat(document.get("\"quoted\"").getAsString()).isEqualTo("escaped once");
+        // The encoded keys are cached for the next events
+        assertSameDocument(event(Level.WARN, "Another message", null, mdc));
+    }
+
+    @Test
+    public void structuredArgumentsAndKeyValuePairs() {
+        logzioLogbackAppender.setStructuredArguments(true);
+        logzioLogbackAppender.start();
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("tenant", "fromMdc");
+        LoggingEvent event = event(Level.INFO, "Order {} of {} paid {} {} {}", null, mdc,
+                42, "alice \"quoted\"", 12.5, true, new int[]{1, 2});
+        event.addKeyValuePair(new KeyValuePair("orderId", 42L));
+        event.addKeyValuePair(new KeyValuePair("tenant", "shadowedByMdc"));
+        event.addKeyValuePair(new KeyValuePair("arg1", "overridesTheArgument"));
+        event.addKeyValuePair(new KeyValuePair("message", "neverOverridesTheMessage"));
+        event.addKeyValuePair(new KeyValuePair("logger", "shadowedByLogger"));
+        event.addKeyValuePair(new KeyValuePair("nan", Double.NaN));
+        event.addKeyValuePair(new KeyValuePair("orderId", 43L));
+
+        assertSameDocument(event);
+        JsonObject document = gson.fromJson(new String(writer().write(event), StandardCharsets.UTF_8), JsonObject.class);
+        assertThat(document.get("message").getAsString()).isEqualTo("Order 42 of alice \"quoted\" paid 12.5 true [1, 2]");
+        assertThat(document.get(StructuredFields.MESSAGE_TEMPLATE).getAsString()).isEqualTo("Order {} of {} paid {} {} {}");
+        assertThat(document.get("arg0").getAsJsonPrimitive().isNumber()).isTrue();
+        assertThat(document.get("arg1").getAsString()).isEqualTo("overridesTheArgument");
+        assertThat(document.get("arg3").getAsBoolean()).isTrue();
+        assertThat(document.get("arg4").getAsString()).isEqualTo("[1, 2]");
+        assertThat(document.get("orderId").getAsLong()).isEqualTo(43);
+        assertThat(document.get("tenant").getAsString()).isEqualTo("fromMdc");
+        assertThat(document.get("nan").getAsString()).isEqualTo("NaN");
+        assertSameDocument(event(Level.INFO, "No arguments", null, new HashMap<>(), (Object[]) null));
+    }
+
+    @Test
+    public void unformattedMessage() {
+        logzioLogbackAppender.setStructuredArguments(true);
+        logzioLogbackAppender.setFormatMessage(false);
+        logzioLogbackAppender.start();
+
+        LoggingEvent event = event(Level.INFO, "User {} logged in", null, new HashMap<>(), "alice");
+
+        assertSameDocument(event);
+        JsonObject document = gson.fromJson(new String(writer().write(event), StandardCharsets.UTF_8), JsonObject.class);
+        assertThat(document.get("message").getAsString()).isEqualTo("User {} logged in");
+        assertThat(document.has(StructuredFields.MESSAGE_TEMPLATE)).isFalse();
+        assertThat(document.get("arg0").getAsString()).isEqualTo("alice");
+    }
+
+    @Test
+    public void jsonFormatMessage() {
+        logzioLogbackAppender.setFormat("json");
+        logzioLogbackAppender.start();
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("userName", "fromMdc");
+        LoggingEvent event = event(Level.INFO, "{\"message\":\"json message\",\"userName\":\"test\",\"nested\":{\"a\":[1,2,{\"b\":null}]},\"loglevel\":\"shadowed\"}", null, mdc);
+
+        assertSameDocument(event);
+        assertSameDocument(event(Level.INFO, "not a json message", null));
+    }
+
+    @Test
+    public void splicedJsonFormatMessage() {
+        logzioLogbackAppender.setFormat("json");
+        logzioLogbackAppender.setSpliceJsonMessages(true);
+        logzioLogbackAppender.setLine(true);
+        logzioLogbackAppender.setAdditionalFields("env=prod");
+        logzioLogbackAppender.start();
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("userName", "fromMdc");
+        assertSameDocument(event(Level.INFO, " {\"message\":\"json \\\"message\\\" \\u00e9\", \"userName\":\"test\",\"count\":1.50,"
+                + "\"nested\":{\"a\":[1,2,{\"b\":null}]},\"loglevel\":\"shadowed\",\"line\":\"shadowed\",\"env\":\"shadowed\","
+                + "\"unicode\":\"\u00e9\u4e2d\ud83d\ude00\"} ", null, mdc));
+        // Messages the scan rejects are shipped as text, never parsed
+        for (String message : new String[]{"{\"a\":1,\"a\":2}", "{lenient:'json'}", "{not json", "not a json message"}) {
+            assertSameDocument(event(Level.INFO, message, null));
+            JsonObject document = gson.fromJson(new String(writer().write(event(Level.INFO, message, null)), StandardCharsets.UTF_8), JsonObject.class);
+            assertThat(document.get("message").getAsString()).isEqualTo(message);
+        }
+    }
+
+    @Test
+    public void splicedJsonMessageCloseToTheLengthLimitIsLeftToTheSender() {
+        logzioLogbackAppender.setFormat("json");
+        logzioLogbackAppender.setSpliceJsonMessages(true);
+        logzioLogbackAppender.start();
+        StringBuilder message = new StringBuilder();
+        while (message.length() < JsonEventWriter.MAX_MESSAGE_LENGTH) {
+            message.append("\\u0041");
+        }
+        // Under the limit once unescaped, written after a full parse
+        assertSameDocument(event(Level.INFO, "{\"message\":\"" + message + "\"}", null));
+        while (message.length() < 7 * JsonEventWriter.MAX_MESSAGE_LENGTH) {
+            message.append("\\u0041");
+        }
+        assertThat(writer().write(event(Level.INFO, "{\"message\":\"" + message + "\"}", null))).isNull();
+    }
+
+    @Test
+    public void oversizedMessageIsLeftToTheSender() {
+        logzioLogbackAppender.start();
+        StringBuilder message = new StringBuilder();
+        while (message.length() < JsonEventWriter.MAX_MESSAGE_LENGTH) {
+            message.append("oversized ");
+        }
+        assertThat(writer().write(event(Level.INFO, message.toString(), null))).isNull();
+    }
+
+    @Test
+    public void deduplicatedExceptions() {
+        logzioLogbackAppender.setExceptionDedupWindowSec(60);
+        logzioLogbackAppender.start();
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put(ExceptionRenderer.EXCEPTION_COUNT, "shadowedByTheCount");
+
+        JsonObject first = null;
+        JsonObject repeated = null;
+        for (int i = 0; i < 2; i++) {
+            // Same frames on every iteration, the messages differ
+            LoggingEvent event = event(Level.ERROR, "Failed", new IllegalStateException("Boom " + i), mdc);
+            JsonObject document = gson.fromJson(new String(writer().write(event), StandardCharsets.UTF_8), JsonObject.class);
+            if (i == 0) {
+                first = document;
+            } else {
+                repeated = document;
+            }
+        }
+
+        assertThat(first.get("exception").getAsString()).startsWith("java.lang.IllegalStateException: Boom 0").contains("\tat ");
+        assertThat(first.get(ExceptionRenderer.EXCEPTION_COUNT).getAsLong()).isEqualTo(1);
+        assertThat(repeated.get("exception").getAsString()).isEqualTo("java.lang.IllegalStateException: Boom 1");
+        assertThat(repeated.get(ExceptionRenderer.EXCEPTION_COUNT).getAsLong()).isEqualTo(2);
+        assertThat(repeated.get(ExceptionRenderer.EXCEPTION_FINGERPRINT).getAsString())
+                .isEqualTo(first.get(ExceptionRenderer.EXCEPTION_FINGERPRINT).getAsString());
+    }
+
+    private void assertSameDocument(LoggingEvent event) {
+        byte[] streamed = writer().write(event);
+        assertThat(streamed).isNotNull();
+        // Compare what reaches the listener, the sender sends the JsonObject as UTF-8 of its toString()
+        byte[] sent = logzioLogbackAppender.formatMessageAsJsonInternal(event).toString().getBytes(StandardCharsets.UTF_8);
+        JsonObject expected = gson.fromJson(new String(sent, StandardCharsets.UTF_8), JsonObject.class);
+        JsonObject actual = gson.fromJson(new String(streamed, StandardCharsets.UTF_8), JsonObject.class);
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    private JsonEventWriter writer() {
+        return logzioLogbackAppender.getJsonEventWriter();
+    }
+
+    private LoggingEvent event(Level level, String message, Throwable throwable) {
+        return event(level, message, throwable, new HashMap<>());
+    }
+
+    private LoggingEvent event(Level level, String message, Throwable throwable, Map<String, String> mdc) {
+        return event(level, message, throwable, mdc, "arg");
+    }
+
+    private LoggingEvent event(Level level, String message, Throwable throwable, Map<String, String> mdc, Object... arguments) {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, level, message, throwable, arguments);
+        event.setMDCPropertyMap(mdc);
+        return event;
+    }
+}
@@ -0,0 +1,97 @@
+package io.logz.logback;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JsonMessageScannerTest {
+    private final JsonMessageScanner scanner = new JsonMessageScanner();
+
+    @Test
+    public void recordsTopLevelMembers() {
+        String message = " {\"message\" : \"hello \\\"world\\\"\", \"nested\":{\"a\":[1,-2.5e+3,true,null,{}]},\"empty\":[] } ";
+        assertThat(scanner.scan(message)).isTrue();
+        assertThat(scanner.memberCount()).isEqualTo(3);
+        assertThat(scanner.key(0)).isEqualTo("message");
+        assertThat(value(message, 0)).isEqualTo("\"hello \\\"world\\\"\"");
+        assertThat(scanner.key(1)).isEqualTo("nested");
+        assertThat(value(message, 1)).isEqualTo("{\"a\":[1,-2.5e+3,true,null,{}]}");
+        assertThat(value(message, 2)).isEqualTo("[]");
+
+        assertThat(scanner.scan("{}")).isTrue();
+        assertThat(scanner.memberCount()).isZero();
+    }
+
+    @Test
+    public void rejectsAnythingThatIsNotAStrictObject() {
+        String[] messages = {
+                null,
+                "",
+                "plain text",
+                "[1,2]",
+                "\"string\"",
+                "{\"a\":1",
+                "{\"a\":1} trailing",
+                "{\"a\":1,}",
+                "{a:1}",
+                "{'a':1}",
+                "{\"a\":01}",
+                "{\"a\":1.}",
+                "{\"a\":tru}",
+                "{\"a\":\"bad \\x escape\"}",
+                "{\"a\":\"raw \n new line\"}",
+                "{\"a\":{\"b\":1}",
+                "{\"a\":[1,2}",
+                "{\"a\":1}{\"b\":2}",
+        };
+        for (String message : messages) {
+            assertThat(scanner.scan(message)).as(String.valueOf(message)).isFalse();
+        }
+    }
+
+    @Test
+    public void rejectsDuplicateAndEscapedKeys() {
+        assertThat(scanner.scan("{\"a\":1,\"a\":2}")).isFalse();
+        assertThat(scanner.scan("{\"\\u0061\":1}")).isFalse();
+        // Nested keys are not looked at
+        assertThat(scanner.scan("{\"a\":{\"\\u0061\":1}}")).isTrue();
+    }
+
+    @Test
+    public void findsDuplicateKeysAmongManyMembers() {
+        StringBuilder unique = new StringBuilder("{");
+        for (int i = 0; i < 5000; i++) {
+            unique.append("\"key").append(i).append("\":").append(i).append(',');
+        }
+        String duplicate = unique + "\"key4999\":0}";
+        assertThat(scanner.scan(duplicate)).isFalse();
+        assertThat(scanner.scan(unique.append("\"last\":0}").toString())).isTrue();
+        assertThat(scanner.memberCount()).isEqualTo(5001);
+        // The keys of the previous message are forgotten
+        assertThat(scanner.scan("{\"key1\":1,\"key2\":2}")).isTrue();
+    }
+
+    @Test
+    public void limitsNestingDepth() {
+        StringBuilder deep = new StringBuilder("{\"a\":");
+        for (int i = 0; i < 1000; i++) {
+            deep.append('[');
+        }
+        for (int i = 0; i < 1000; i++) {
+            deep.append(']');
+        }
+        assertThat(scanner.scan(deep.append('}').toString())).isFalse();
+    }
+
+    @Test
+    public void startsLikeObject() {
+        assertThat(JsonMessageScanner.startsLikeObject(" \n\t{")).isTrue();
+        assertThat(JsonMessageScanner.startsLikeObject("text {")).isFalse();
+        assertThat(JsonMessageScanner.startsLikeObject("   ")).isFalse();
+        assertThat(JsonMessageScanner.startsLikeObject(null)).isFalse();
+    }
+
+    private String value(String message, int member) {
+        return message.substring(scanner.valueStart(member), scanner.valueEnd(member));
+    }
+}
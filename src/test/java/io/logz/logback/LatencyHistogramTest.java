@@ -0,0 +1,39 @@
+package io.logz.logback;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsHoldTheirValues() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123_456_789, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertThat(LatencyHistogram.bucketUpperBound(index)).isGreaterThanOrEqualTo(value);
+            // Within 12.5% of the value
+            assertThat(LatencyHistogram.bucketUpperBound(index) - value).isLessThanOrEqualTo(value / 8);
+            if (index > 0) {
+                assertThat(LatencyHistogram.bucketUpperBound(index - 1)).isLessThan(value);
+            }
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getValueAtPercentileNanos(50)).isZero();
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getMaxNanos()).isEqualTo(1_000_000);
+        assertThat(histogram.getMeanNanos()).isEqualTo(500_500);
+        assertThat(histogram.getValueAtPercentileNanos(50)).isBetween(500_000L, 562_500L);
+        assertThat(histogram.getValueAtPercentileNanos(99)).isBetween(990_000L, 1_000_000L);
+        assertThat(histogram.getValueAtPercentileNanos(100)).isEqualTo(1_000_000);
+    }
+}
@@ -0,0 +1,25 @@
+package io.logz.logback;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoggerPrefixMatcherTest {
+
+    @Test
+    public void longestPrefixInTheLoggerHierarchyWins() {
+        Map<String, String> valuesByPrefix = new LinkedHashMap<>();
+        valuesByPrefix.put("com.acme", "acme");
+        valuesByPrefix.put("com.acme.billing", "billing");
+        LoggerPrefixMatcher<String> matcher = new LoggerPrefixMatcher<>(valuesByPrefix, "fallback");
+
+        assertThat(matcher.match("com.acme")).isEqualTo("acme");
+        assertThat(matcher.match("com.acme.Service")).isEqualTo("acme");
+        assertThat(matcher.match("com.acme.billing.Invoices")).isEqualTo("billing");
+        assertThat(matcher.match("com.acme.billingreports.Job")).isEqualTo("acme");
+        assertThat(matcher.match("com.acmeco.Service")).isEqualTo("fallback");
+    }
+}
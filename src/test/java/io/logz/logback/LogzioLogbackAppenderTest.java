@@ -3,6 +3,7 @@ package io.logz.logback;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.spi.DeferredProcessingAware;
 import io.logz.sender.com.google.gson.Gson;
 import io.logz.test.MockLogzioBulkListener;
@@ -27,10 +28,14 @@ import org.slf4j.MDC;
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
@@ -382,6 +387,261 @@ public class LogzioLogbackAppenderTest extends BaseLogbackAppenderTest {
         assertThat(logRequest.getStringFieldOrNull(mdcKey)).isEqualTo(mdcValue);
     }
 
+    @Test
+    public void asyncAppending() {
+        String token = "asyncToken";
+        String type = "asyncType" + random(8);
+        String loggerName = "asyncTesting" + random(8);
+        int drainTimeout = 1;
+        String message1 = "Async log line - "+random(5);
+        String message2 = "Async log line - "+random(5);
+        String mdcKey = "async-mdc-key";
+        String mdcValue = "async-mdc-value";
+
+        logzioLogbackAppender.setAsync(true);
+        logzioLogbackAppender.setAsyncWaitStrategy("blocking");
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, true, null, false);
+        MDC.put(mdcKey, mdcValue);
+        try {
+            testLogger.info(message1);
+        } finally {
+            MDC.remove(mdcKey);
+        }
+        testLogger.warn(message2);
+        StringBuilder argument = new StringBuilder("as logged");
+        testLogger.info("Async argument {}", argument);
+        argument.setLength(0);
+        argument.append("changed later");
+
+        sleepSeconds(2 * drainTimeout);
+
+        mockListener.assertNumberOfReceivedMsgs(3);
+        // The message is formatted with the arguments as they were when logged
+        mockListener.assertLogReceivedByMessage("Async argument as logged");
+        MockLogzioBulkListener.LogRequest logRequest = mockListener.assertLogReceivedByMessage(message1);
+        mockListener.assertLogReceivedIs(logRequest, token, type, loggerName, Level.INFO.levelStr);
+        // Thread bound data is taken from the logging thread, not from the async worker
+        assertThat(logRequest.getStringFieldOrNull(mdcKey)).isEqualTo(mdcValue);
+        assertThat(logRequest.getStringFieldOrNull("thread")).isEqualTo(Thread.currentThread().getName());
+        assertThat(logRequest.getStringFieldOrNull("line")).isNotNull();
+        mockListener.assertLogReceivedIs(message2, token, type, loggerName, Level.WARN.levelStr);
+    }
+
+    @Test
+    public void excludedLoggersAreNotShipped() {
+        String token = "excludedLoggersToken";
+        String type = "excludedLoggersType" + random(8);
+        String loggerName = "com.acme.http.Client" + random(8);
+        int drainTimeout = 1;
+        String excludedMessage = "Excluded log - " + random(5);
+        String senderMessage = "Sender log - " + random(5);
+        String shippedMessage = "Shipped log - " + random(5);
+
+        logzioLogbackAppender.setExcludedLoggerPrefixes("org.example.wire, com.acme.http");
+        Logger excludedLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        ch.qos.logback.classic.Logger senderLogger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("io.logz.sender.Test" + random(8));
+        senderLogger.addAppender(logzioLogbackAppender);
+        senderLogger.setAdditive(false);
+        String shippedLoggerName = "com.acme.service.Service" + random(8);
+        ch.qos.logback.classic.Logger shippedLogger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(shippedLoggerName);
+        shippedLogger.addAppender(logzioLogbackAppender);
+        shippedLogger.setAdditive(false);
+
+        excludedLogger.info(excludedMessage);
+        senderLogger.info(senderMessage);
+        shippedLogger.info(shippedMessage);
+
+        sleepSeconds(2 * drainTimeout);
+        mockListener.assertNumberOfReceivedMsgs(1);
+        mockListener.assertLogReceivedIs(shippedMessage, token, type, shippedLoggerName, Level.INFO.levelStr);
+    }
+
+    @Test
+    public void shardedEventsAreShippedWithTheirShardTypeAndToken() {
+        String token = "shardToken";
+        String type = "shardType" + random(8);
+        String billingType = "billingType" + random(8);
+        String auditToken = "auditShardToken";
+        String auditType = "auditType" + random(8);
+        String loggerName = "com.acme.service.Service" + random(8);
+        int drainTimeout = 1;
+        String message = "Default shard log - " + random(5);
+        String billingMessage = "Billing shard log - " + random(5);
+        String auditMessage = "Audit shard log - " + random(5);
+
+        logzioLogbackAppender.setShardBy("logger");
+        logzioLogbackAppender.setShards("com.acme.billing=" + billingType + "; com.acme.audit=" + auditType + "," + auditToken);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        String billingLoggerName = "com.acme.billing.Invoices" + random(8);
+        ch.qos.logback.classic.Logger billingLogger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(billingLoggerName);
+        billingLogger.addAppender(logzioLogbackAppender);
+        billingLogger.setAdditive(false);
+        String auditLoggerName = "com.acme.audit.Trail" + random(8);
+        ch.qos.logback.classic.Logger auditLogger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(auditLoggerName);
+        auditLogger.addAppender(logzioLogbackAppender);
+        auditLogger.setAdditive(false);
+
+        testLogger.info(message);
+        billingLogger.info(billingMessage);
+        auditLogger.warn(auditMessage);
+
+        sleepSeconds(2 * drainTimeout);
+        mockListener.assertNumberOfReceivedMsgs(3);
+        mockListener.assertLogReceivedIs(message, token, type, loggerName, Level.INFO.levelStr);
+        mockListener.assertLogReceivedIs(billingMessage, token, billingType, billingLoggerName, Level.INFO.levelStr);
+        mockListener.assertLogReceivedIs(auditMessage, auditToken, auditType, auditLoggerName, Level.WARN.levelStr);
+    }
+
+    @Test
+    public void shardSharingADiskQueueWithAnotherTokenFailsTheStart() {
+        String type = "sharedDiskQueueType" + random(8);
+
+        logzioLogbackAppender.setContext(((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("sharedDiskQueue")).getLoggerContext());
+        logzioLogbackAppender.setToken("sharedDiskQueueToken");
+        logzioLogbackAppender.setLogzioType(type);
+        logzioLogbackAppender.setLogzioUrl("http://" + mockListener.getHost() + ":" + mockListener.getPort());
+        logzioLogbackAppender.setShardBy("logger");
+        logzioLogbackAppender.setShards("com.acme.billing=" + type + ",otherToken");
+        logzioLogbackAppender.start();
+
+        assertThat(logzioLogbackAppender.isStarted()).isEqualTo(queueType == QueueType.MEMORY);
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void shipsOnTheAppendersOwnExecutor() {
+        String token = "shippingExecutorToken";
+        String type = "shippingExecutorType" + random(8);
+        String loggerName = "shippingExecutorLogger" + random(8);
+        int drainTimeout = 1;
+        String message = "Own executor log - " + random(5);
+
+        logzioLogbackAppender.setShippingExecutor("virtual");
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        testLogger.info(message);
+
+        sleepSeconds(2 * drainTimeout);
+        mockListener.assertNumberOfReceivedMsgs(1);
+        mockListener.assertLogReceivedIs(message, token, type, loggerName, Level.INFO.levelStr);
+        assertThat(logzioLogbackAppender.getShippingExecutor()).isEqualTo("virtual");
+    }
+
+    @Test
+    public void rateLimitedEventsAreSummarized() {
+        String token = "rateLimitToken";
+        String type = "rateLimitType" + random(8);
+        String loggerName = "com.acme.noisy.Poller" + random(8);
+        int drainTimeout = 1;
+
+        logzioLogbackAppender.setLoggerRateLimits("com.acme.noisy=2");
+        logzioLogbackAppender.setRateLimitSummaryIntervalSec(1);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+
+        for (int i = 0; i < 10; i++) {
+            testLogger.info("Polled " + i);
+        }
+
+        sleepSeconds(3 * drainTimeout);
+        mockListener.assertNumberOfReceivedMsgs(3);
+        mockListener.assertLogReceivedIs("Polled 0", token, type, loggerName, Level.INFO.levelStr);
+        mockListener.assertLogReceivedIs("Polled 1", token, type, loggerName, Level.INFO.levelStr);
+        MockLogzioBulkListener.LogRequest summary =
+                mockListener.assertLogReceivedByMessage("Rate limits suppressed 8 events: logger com.acme.noisy=8");
+        assertThat(summary.getStringFieldOrNull(RateLimiter.SUPPRESSED_EVENTS)).isEqualTo("8");
+    }
+
+    @Test
+    public void metricsAreExposedOverJmx() throws Exception {
+        String token = "metricsToken";
+        String type = "metricsType" + random(8);
+        String loggerName = "metricsLogger" + random(8);
+        int drainTimeout = 1;
+
+        logzioLogbackAppender.setJmxMetrics(true);
+        logzioLogbackAppender.setLoggerRateLimits(loggerName + "=2");
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        for (int i = 0; i < 3; i++) {
+            testLogger.info("Measured " + i);
+        }
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("io.logz.logback:type=LogzioLogbackAppender,context=\"default\",name=\"LogzioLogbackAppender\"");
+        assertThat(mBeanServer.getAttribute(objectName, "EventsAppended")).isEqualTo(3L);
+        assertThat(mBeanServer.getAttribute(objectName, "EventsSent")).isEqualTo(2L);
+        assertThat(mBeanServer.getAttribute(objectName, "EventsRateLimited")).isEqualTo(1L);
+        LogzioAppenderMetrics metrics = logzioLogbackAppender.getMetrics();
+        assertThat(metrics.getBytesSent()).isPositive();
+        assertThat(metrics.getFormatFailures()).isZero();
+
+        sleepSeconds(2 * drainTimeout);
+        mockListener.assertNumberOfReceivedMsgs(2);
+        logzioLogbackAppender.stop();
+        assertThat(mBeanServer.isRegistered(objectName)).isFalse();
+    }
+
+    @Test
+    public void appendBatch() {
+        for (boolean async : new boolean[]{false, true}) {
+            String token = "batchToken";
+            String type = "batchType" + random(8);
+            String loggerName = "batchTesting" + random(8);
+            int drainTimeout = 1;
+
+            LogzioLogbackAppender appender = new LogzioLogbackAppender();
+            appender.setInMemoryQueue(queueType == QueueType.MEMORY);
+            appender.setAsync(async);
+            Logger testLogger = createLogger(appender, token, type, loggerName, drainTimeout, false, false, null, false);
+            ch.qos.logback.classic.Logger logbackLogger = (ch.qos.logback.classic.Logger) testLogger;
+
+            List<ILoggingEvent> batch = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                batch.add(new LoggingEvent(ch.qos.logback.classic.Logger.class.getName(), logbackLogger, ch.qos.logback.classic.Level.INFO,
+                        "Batch log line " + i + " - " + random(5), null, null));
+            }
+            appender.appendBatch(batch);
+
+            sleepSeconds(2 * drainTimeout);
+            appender.stop();
+
+            for (ILoggingEvent event : batch) {
+                MockLogzioBulkListener.LogRequest logRequest = mockListener.assertLogReceivedByMessage(event.getFormattedMessage());
+                mockListener.assertLogReceivedIs(logRequest, token, type, loggerName, Level.INFO.levelStr);
+            }
+        }
+        mockListener.assertNumberOfReceivedMsgs(40);
+    }
+
+    @Test
+    public void eventsTheAsyncQueueDropsAreCounted() {
+        String token = "asyncDropToken";
+        String type = "asyncDropType" + random(8);
+        String loggerName = "asyncDropTesting" + random(8);
+        int drainTimeout = 1;
+        int events = 5000;
+
+        LogzioLogbackAppender appender = new LogzioLogbackAppender();
+        appender.setInMemoryQueue(queueType == QueueType.MEMORY);
+        appender.setAsync(true);
+        appender.setAsyncQueueSize(2);
+        appender.setAsyncWorkers(1);
+        appender.setAsyncDropInfoWhenFull(true);
+        Logger testLogger = createLogger(appender, token, type, loggerName, drainTimeout, false, false, null, false);
+        ch.qos.logback.classic.Logger logbackLogger = (ch.qos.logback.classic.Logger) testLogger;
+
+        List<ILoggingEvent> batch = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            batch.add(new LoggingEvent(ch.qos.logback.classic.Logger.class.getName(), logbackLogger, ch.qos.logback.classic.Level.INFO,
+                    "Dropped or sent " + i, null, null));
+        }
+        // Far more INFO events than two slots hold, published faster than one worker formats them
+        appender.appendBatch(batch);
+        appender.stop();
+
+        LogzioAppenderMetrics metrics = appender.getMetrics();
+        assertThat(metrics.getEventsDroppedByAsyncQueue()).isPositive();
+        assertThat(metrics.getEventsSent() + metrics.getEventsDroppedByAsyncQueue()).isEqualTo(events);
+    }
+
     @Test
     public void testMarker() {
         String token = "markerToken";
@@ -0,0 +1,414 @@
+package io.logz.logback;
+
+import io.logz.sender.SenderStatusReporter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappedSegmentLogsQueueTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    // Magic, sequence and committed read offset
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> warnings = new ArrayList<>();
+
+    @Test
+    public void keepsOrderAcrossSegments() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 10 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        assertThat(queue.size()).isEqualTo(count);
+
+        for (int i = 0; i < count; i++) {
+            assertThat(string(queue.dequeue())).isEqualTo(log(i));
+        }
+        assertThat(queue.dequeue()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+        queue.close();
+    }
+
+    @Test
+    public void holdsLogsLargerThanASegment() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        byte[] large = new byte[SEGMENT_SIZE * 2];
+        Arrays.fill(large, (byte) 'a');
+
+        queue.enqueue(bytes("before"));
+        queue.enqueue(large);
+        queue.enqueue(bytes("after"));
+
+        assertThat(string(queue.dequeue())).isEqualTo("before");
+        assertThat(queue.dequeue()).isEqualTo(large);
+        assertThat(string(queue.dequeue())).isEqualTo("after");
+        queue.commitRead();
+        queue.close();
+    }
+
+    @Test
+    public void reopenedQueueHoldsTheUncommittedLogs() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 3 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        int committed = count / 2;
+        for (int i = 0; i < committed; i++) {
+            queue.dequeue();
+        }
+        queue.commitRead();
+        // Dequeued but never committed, as if the process died while shipping them
+        queue.dequeue();
+        queue.close();
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        assertThat(reopened.size()).isEqualTo(count - committed);
+        for (int i = committed; i < count; i++) {
+            assertThat(string(reopened.dequeue())).isEqualTo(log(i));
+        }
+        assertThat(reopened.dequeue()).isNull();
+        reopened.close();
+    }
+
+    @Test
+    public void commitsOnlyTheLogsBeforeTheMark() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 3 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        int firstBulk = count / 3;
+        for (int i = 0; i < firstBulk; i++) {
+            queue.dequeue();
+        }
+        MappedSegmentLogsQueue.ReadMark firstMark = queue.readMark();
+        // A second bulk is still in flight when the first one is acknowledged
+        for (int i = firstBulk; i < 2 * firstBulk; i++) {
+            queue.dequeue();
+        }
+        queue.commitRead(firstMark);
+        queue.close();
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        assertThat(reopened.size()).isEqualTo(count - firstBulk);
+        assertThat(string(reopened.dequeue())).isEqualTo(log(firstBulk));
+        reopened.close();
+    }
+
+    @Test
+    public void recycledSegmentsDoNotReplayOldLogs() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 5 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        while (queue.dequeue() != null) {
+            queue.commitRead();
+        }
+        queue.commitRead();
+        queue.enqueue(bytes("new log"));
+        queue.close();
+
+        File[] segmentFiles = folder.getRoot().listFiles();
+        assertThat(segmentFiles).hasSizeLessThan(5);
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        assertThat(reopened.size()).isEqualTo(1);
+        assertThat(string(reopened.dequeue())).isEqualTo("new log");
+        assertThat(reopened.dequeue()).isNull();
+        reopened.close();
+    }
+
+    @Test
+    public void clearEmptiesTheQueue() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        queue.enqueue(bytes("first"));
+        queue.enqueue(bytes("second"));
+
+        queue.clear();
+        assertThat(queue.isEmpty()).isTrue();
+        queue.enqueue(bytes("third"));
+        queue.close();
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        assertThat(string(reopened.dequeue())).isEqualTo("third");
+        assertThat(reopened.dequeue()).isNull();
+        reopened.close();
+    }
+
+    @Test
+    public void fillLevelIsTheQueuedBytesOverTheCapacity() throws IOException {
+        int logSize = bytes(log(0)).length;
+        MappedSegmentLogsQueue queue = new MappedSegmentLogsQueue(folder.getRoot(), SEGMENT_SIZE,
+                MappedSegmentLogsQueue.SyncPolicy.NONE, 10, LogzioLogbackAppender.DONT_LIMIT_CAPACITY, 10L * logSize,
+                reporter());
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        assertThat(queue.fillLevel()).isEqualTo(0.5);
+
+        for (int i = 5; i < 15; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        assertThat(queue.size()).isEqualTo(10);
+        assertThat(queue.fillLevel()).isEqualTo(1.0);
+        assertThat(warnings).hasSize(1);
+
+        queue.dequeue();
+        assertThat(queue.fillLevel()).isEqualTo(0.9);
+        queue.close();
+    }
+
+    @Test
+    public void reopensFullSegmentsFromTheIndex() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 5 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        queue.close();
+        // Scanning the second segment would now find no records, the index still knows them
+        File second = new File(folder.getRoot(), MappedSegmentLogsQueue.SEGMENT_FILE_PREFIX + 1
+                + MappedSegmentLogsQueue.SEGMENT_FILE_SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(second, "rw")) {
+            file.seek(HEADER_SIZE + Integer.BYTES);
+            file.writeInt(-1);
+        }
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        assertThat(reopened.size()).isEqualTo(count);
+        assertThat(reopened.replayLogs()).isEqualTo(count);
+        reopened.close();
+    }
+
+    @Test
+    public void fullSegmentsAreIndexedByTheSyncNotTheProducer() throws IOException {
+        MappedSegmentLogsQueue queue = new MappedSegmentLogsQueue(folder.getRoot(), SEGMENT_SIZE,
+                MappedSegmentLogsQueue.SyncPolicy.INTERVAL, 1, LogzioLogbackAppender.DONT_LIMIT_CAPACITY,
+                LogzioLogbackAppender.DONT_LIMIT_CAPACITY, reporter());
+        int count = 3 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        File index = new File(folder.getRoot(), MappedSegmentLogsQueue.INDEX_FILE);
+        assertThat(index.length()).isZero();
+
+        queue.sync();
+        assertThat(index.length()).isPositive();
+        queue.close();
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        assertThat(reopened.size()).isEqualTo(count);
+        reopened.close();
+    }
+
+    @Test
+    public void recordsMissingBehindTheIndexAreDropped() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 5 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        queue.close();
+        // As if the index entry of the second segment reached the disk before its records
+        File second = new File(folder.getRoot(), MappedSegmentLogsQueue.SEGMENT_FILE_PREFIX + 1
+                + MappedSegmentLogsQueue.SEGMENT_FILE_SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(second, "rw")) {
+            file.seek(HEADER_SIZE);
+            file.writeInt(Integer.MAX_VALUE);
+        }
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        List<String> dequeued = new ArrayList<>();
+        byte[] log;
+        while ((log = reopened.dequeue()) != null) {
+            dequeued.add(string(log));
+        }
+        assertThat(dequeued).isNotEmpty().hasSizeLessThan(count).isSorted();
+        assertThat(dequeued.get(dequeued.size() - 1)).isEqualTo(log(count - 1));
+        assertThat(reopened.size()).isZero();
+        assertThat(reopened.sizeInBytes()).isZero();
+        assertThat(warnings).hasSize(1);
+        assertThat(warnings.get(0)).contains("Dropping");
+        reopened.close();
+    }
+
+    @Test
+    public void scansTheSegmentsWithoutAnIndex() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 5 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        queue.close();
+        assertThat(new File(folder.getRoot(), MappedSegmentLogsQueue.INDEX_FILE).delete()).isTrue();
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        assertThat(reopened.size()).isEqualTo(count);
+        for (int i = 0; i < count; i++) {
+            assertThat(string(reopened.dequeue())).isEqualTo(log(i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void tailAppendedToAfterAReopenIsNotTakenFromTheIndex() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 3 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        queue.close();
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        for (int i = count; i < 2 * count; i++) {
+            reopened.enqueue(bytes(log(i)));
+        }
+        reopened.close();
+
+        MappedSegmentLogsQueue again = open(folder.getRoot());
+        assertThat(again.size()).isEqualTo(2 * count);
+        for (int i = 0; i < 2 * count; i++) {
+            assertThat(string(again.dequeue())).isEqualTo(log(i));
+        }
+        assertThat(again.dequeue()).isNull();
+        again.close();
+    }
+
+    @Test
+    public void liveLogsAreDequeuedInTurnWithTheBacklog() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 10;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        queue.close();
+
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        for (int i = 0; i < 3; i++) {
+            reopened.enqueue(bytes("live " + i));
+        }
+        List<String> dequeued = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            dequeued.add(string(reopened.dequeue()));
+        }
+        assertThat(dequeued).containsExactly(log(0), "live 0", log(1), "live 1");
+        // The mark holds the read position of both
+        reopened.commitRead(reopened.readMark());
+        reopened.close();
+
+        MappedSegmentLogsQueue again = open(folder.getRoot());
+        assertThat(again.size()).isEqualTo(count + 3 - 4);
+        assertThat(string(again.dequeue())).isEqualTo(log(2));
+        again.close();
+    }
+
+    @Test
+    public void throttlesTheReplayOfThePreviousRun() throws IOException {
+        MappedSegmentLogsQueue queue = open(folder.getRoot());
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(log(i)));
+        }
+        queue.close();
+
+        AtomicLong now = new AtomicLong();
+        int logSize = bytes(log(0)).length;
+        MappedSegmentLogsQueue reopened = open(folder.getRoot());
+        reopened.throttleReplay(10L * logSize, 0, now::get);
+        assertThat(drain(reopened)).isEqualTo(10);
+        assertThat(drain(reopened)).isZero();
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(drain(reopened)).isEqualTo(5);
+
+        // Idle time only adds up to the burst
+        now.addAndGet(TimeUnit.SECONDS.toNanos(100));
+        assertThat(drain(reopened)).isEqualTo(10);
+        assertThat(reopened.replayLogs()).isEqualTo(count - 25);
+
+        // The live logs are not throttled, however much of the backlog is left
+        for (int i = 0; i < 20; i++) {
+            reopened.enqueue(bytes(log(i)));
+        }
+        assertThat(drain(reopened)).isEqualTo(20);
+        assertThat(reopened.replayLogs()).isEqualTo(count - 25);
+        while (reopened.replayLogs() > 0) {
+            now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            drain(reopened);
+        }
+        assertThat(reopened.size()).isZero();
+        reopened.close();
+    }
+
+    private static int drain(MappedSegmentLogsQueue queue) {
+        int dequeued = 0;
+        while (queue.dequeue() != null) {
+            dequeued++;
+        }
+        return dequeued;
+    }
+
+    private MappedSegmentLogsQueue open(File dir) throws IOException {
+        return new MappedSegmentLogsQueue(dir, SEGMENT_SIZE, MappedSegmentLogsQueue.SyncPolicy.EVERY, 10,
+                LogzioLogbackAppender.DONT_LIMIT_CAPACITY, LogzioLogbackAppender.DONT_LIMIT_CAPACITY, reporter());
+    }
+
+    private SenderStatusReporter reporter() {
+        return new SenderStatusReporter() {
+            @Override
+            public void error(String msg) {
+            }
+
+            @Override
+            public void error(String msg, Throwable e) {
+            }
+
+            @Override
+            public void warning(String msg) {
+                warnings.add(msg);
+            }
+
+            @Override
+            public void warning(String msg, Throwable e) {
+                warnings.add(msg);
+            }
+
+            @Override
+            public void info(String msg) {
+            }
+
+            @Override
+            public void info(String msg, Throwable e) {
+            }
+        };
+    }
+
+    private static String log(int i) {
+        return String.format("log line number %05d with some padding to fill the segments quicker", i);
+    }
+
+    private static byte[] bytes(String log) {
+        return log.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] log) {
+        return new String(log, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,60 @@
+package io.logz.logback;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MdcProjectionTest {
+
+    @Test
+    public void includedKeysOnlyButTheExcludedOnes() {
+        MdcProjection projection = new MdcProjection(Arrays.asList("requestId", "tenant"),
+                Collections.singleton("tenant"), Collections.emptyMap());
+        Map<String, String> mdc = mdc("requestId", "1", "tenant", "acme", "other", "x");
+
+        assertThat(projection.fieldName("requestId", mdc)).isEqualTo("requestId");
+        assertThat(projection.fieldName("tenant", mdc)).isNull();
+        assertThat(projection.fieldName("other", mdc)).isNull();
+        assertThat(projection.containsField(mdc, "other")).isFalse();
+    }
+
+    @Test
+    public void renamedKeyWinsOverTheKeyOfItsNewName() {
+        MdcProjection projection = new MdcProjection(Collections.emptySet(), Collections.emptySet(),
+                Collections.singletonMap("userId", "user"));
+        Map<String, String> both = mdc("userId", "42", "user", "alice");
+
+        assertThat(projection.fieldName("userId", both)).isEqualTo("user");
+        assertThat(projection.fieldName("user", both)).isNull();
+        assertThat(projection.fieldValue(both, "user")).isEqualTo("42");
+        assertThat(projection.containsField(both, "userId")).isFalse();
+
+        Map<String, String> unrenamed = mdc("user", "alice");
+        assertThat(projection.fieldName("user", unrenamed)).isEqualTo("user");
+        assertThat(projection.fieldValue(unrenamed, "user")).isEqualTo("alice");
+    }
+
+    @Test
+    public void encodedNameIsEscapedOnceAndCached() {
+        MdcProjection projection = MdcProjection.identity();
+        Map<String, String> mdc = mdc("a\"b", "1");
+
+        MdcProjection.Field field = projection.field("a\"b", mdc);
+        assertThat(new String(field.encodedName, StandardCharsets.UTF_8)).isEqualTo("\"a\\\"b\":");
+        assertThat(projection.field("a\"b", mdc)).isSameAs(field);
+    }
+
+    private static Map<String, String> mdc(String... keysAndValues) {
+        Map<String, String> mdc = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            mdc.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return mdc;
+    }
+}
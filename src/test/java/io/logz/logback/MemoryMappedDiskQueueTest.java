@@ -0,0 +1,140 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MemoryMappedDiskQueueTest extends BaseLogbackAppenderTest {
+    private LogzioLogbackAppender logzioLogbackAppender;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        logzioLogbackAppender = new LogzioLogbackAppender();
+        logzioLogbackAppender.setDiskQueueMemoryMapped(true);
+        logzioLogbackAppender.setQueueDir(folder.getRoot().getAbsolutePath());
+    }
+
+    @Test
+    public void shipsLogsThroughTheMappedQueue() {
+        String token = "mappedQueueToken";
+        String type = random(8);
+        String loggerName = "mappedQueue" + random(8);
+        int drainTimeout = 1;
+        String message1 = "Testing.." + random(5);
+        String message2 = "Warning test.." + random(5);
+
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        testLogger.info(message1);
+        testLogger.warn(message2);
+
+        sleepSeconds(drainTimeout * 3);
+        mockListener.assertNumberOfReceivedMsgs(2);
+        mockListener.assertLogReceivedIs(message1, token, type, loggerName, Level.INFO.levelStr);
+        mockListener.assertLogReceivedIs(message2, token, type, loggerName, Level.WARN.levelStr);
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void shipsBulksInParallel() {
+        String token = "mappedQueueParallelToken";
+        String type = random(8);
+        String loggerName = "mappedQueueParallel" + random(8);
+        int drainTimeout = 1;
+        int count = 2000;
+        // About 4 bulks worth of logs
+        String padding = "x".repeat(6000);
+
+        logzioLogbackAppender.setMaxInFlightBulks(4);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        for (int i = 0; i < count; i++) {
+            testLogger.info("Parallel " + i + " " + padding);
+        }
+
+        sleepSeconds(drainTimeout * 5);
+        mockListener.assertNumberOfReceivedMsgs(count);
+        mockListener.assertLogReceivedIs("Parallel 0 " + padding, token, type, loggerName, Level.INFO.levelStr);
+        mockListener.assertLogReceivedIs("Parallel " + (count - 1) + " " + padding, token, type, loggerName, Level.INFO.levelStr);
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void oversizedLogsAreCutAsTheSenderDoes() {
+        String token = "mappedQueueOversizedToken";
+        String type = random(8);
+        String loggerName = "mappedQueueOversized" + random(8);
+        int drainTimeout = 1;
+
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        testLogger.info("x".repeat(600000));
+
+        sleepSeconds(drainTimeout * 3);
+        mockListener.assertNumberOfReceivedMsgs(1);
+        String message = mockListener.getReceivedMsgs().iterator().next().getMessage();
+        assertThat(message).endsWith("...truncated").hasSizeLessThanOrEqualTo(JsonEventWriter.MAX_MESSAGE_LENGTH);
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void stopLeavesTheBacklogOnDisk() {
+        String token = "mappedQueueBacklogToken";
+        String type = random(8);
+        String loggerName = "mappedQueueBacklog" + random(8);
+
+        logzioLogbackAppender.setMaxInFlightBulks(2);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, 60, false, false, null, false);
+        for (int i = 0; i < 100; i++) {
+            testLogger.info("Backlog " + i);
+        }
+        // Not shipped by the stop, the queue is durable
+        logzioLogbackAppender.stop();
+        mockListener.assertNumberOfReceivedMsgs(0);
+
+        LogzioLogbackAppender restarted = new LogzioLogbackAppender();
+        restarted.setDiskQueueMemoryMapped(true);
+        restarted.setMaxInFlightBulks(2);
+        restarted.setQueueDir(folder.getRoot().getAbsolutePath());
+        createLogger(restarted, token + "Restarted", type, loggerName, 1, false, false, null, false);
+
+        sleepSeconds(3);
+        mockListener.assertNumberOfReceivedMsgs(100);
+        mockListener.assertLogReceivedIs("Backlog 99", token + "Restarted", type, loggerName, Level.INFO.levelStr);
+        restarted.stop();
+    }
+
+    @Test
+    public void unshippedLogsAreShippedAfterRestart() throws Exception {
+        String token = "mappedQueueRestartToken";
+        String type = random(8);
+        String loggerName = "mappedQueueRestart" + random(8);
+        String message = "Shipped after restart.." + random(5);
+
+        mockListener.stop();
+        logzioLogbackAppender.setDiskQueueSyncPolicy("every");
+        logzioLogbackAppender.setDiskQueueSyncEveryLogs(1);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, 60, false, false, null, false);
+        testLogger.info(message);
+        // The final drain fails with the listener down, the log has to stay in the queue
+        logzioLogbackAppender.stop();
+
+        mockListener.start();
+        LogzioLogbackAppender restarted = new LogzioLogbackAppender();
+        restarted.setDiskQueueMemoryMapped(true);
+        restarted.setQueueDir(folder.getRoot().getAbsolutePath());
+        // Senders are shared per token and type, a new token gets a sender for the restarted listener
+        String restartedToken = token + "Restarted";
+        createLogger(restarted, restartedToken, type, loggerName, 1, false, false, null, false);
+
+        sleepSeconds(3);
+        mockListener.assertNumberOfReceivedMsgs(1);
+        mockListener.assertLogReceivedIs(message, restartedToken, type, loggerName, Level.INFO.levelStr);
+        restarted.stop();
+    }
+}
@@ -0,0 +1,161 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffHeapInMemoryTest extends BaseLogbackAppenderTest {
+    private LogzioLogbackAppender logzioLogbackAppender;
+
+    @Before
+    public void setUp() {
+        logzioLogbackAppender = new LogzioLogbackAppender();
+        logzioLogbackAppender.setInMemoryQueue(true);
+        logzioLogbackAppender.setInMemoryQueueOffHeap(true);
+    }
+
+    @Test
+    public void validateOffHeapQueueCapacity() {
+        String token = "verifyOffHeapCapacityInBytesToken";
+        String type = random(8);
+        String loggerName = "verifyOffHeapCapacityInBytes" + random(8);
+        int drainTimeout = 1;
+        String message1 = "Testing.." + random(5);
+        String message2 = "Don't get here test! ";
+
+        logzioLogbackAppender.setInMemoryLogsCountCapacity(1);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+
+        testLogger.info(message1);
+        testLogger.warn(message2);
+
+        sleepSeconds(drainTimeout * 3);
+        mockListener.assertNumberOfReceivedMsgs(1);
+        mockListener.assertLogReceivedIs(message1, token, type, loggerName, Level.INFO.levelStr);
+
+        // Shipped logs free their space in the off-heap queue
+        testLogger.warn(message2);
+        sleepSeconds(drainTimeout * 3);
+        mockListener.assertNumberOfReceivedMsgs(2);
+        mockListener.assertLogReceivedIs(message2, token, type, loggerName, Level.WARN.levelStr);
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void shipsGzipAtTheConfiguredLevel() {
+        String token = "offHeapGzipLevelToken";
+        String type = random(8);
+        String loggerName = "offHeapGzipLevel" + random(8);
+        int drainTimeout = 1;
+        String message = "Compressed.." + random(5);
+
+        logzioLogbackAppender.setCompression("gzip");
+        logzioLogbackAppender.setCompressionLevel(1);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        for (int i = 0; i < 100; i++) {
+            testLogger.info(message + i);
+        }
+
+        sleepSeconds(drainTimeout * 3);
+        mockListener.assertNumberOfReceivedMsgs(100);
+        mockListener.assertLogReceivedIs(message + 99, token, type, loggerName, Level.INFO.levelStr);
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void adaptiveBatchingShipsWithoutWaitingForTheDrainTimeout() {
+        String token = "offHeapAdaptiveBatchingToken";
+        String type = random(8);
+        String loggerName = "offHeapAdaptiveBatching" + random(8);
+        int drainTimeout = 60;
+        String message = "Lingered.." + random(5);
+
+        logzioLogbackAppender.setAdaptiveBatching(true);
+        logzioLogbackAppender.setBulkMaxLingerMs(200);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        testLogger.info(message);
+
+        sleepSeconds(2);
+        mockListener.assertNumberOfReceivedMsgs(1);
+        mockListener.assertLogReceivedIs(message, token, type, loggerName, Level.INFO.levelStr);
+        logzioLogbackAppender.stop();
+    }
+
+    @Test
+    public void backpressureShedsInfoBeforeTheQueueIsFull() {
+        String token = "offHeapBackpressureToken";
+        String type = random(8);
+        String loggerName = "offHeapBackpressure" + random(8);
+        int drainTimeout = 60;
+
+        logzioLogbackAppender.setInMemoryLogsCountCapacity(10);
+        logzioLogbackAppender.setBackpressure(true);
+        logzioLogbackAppender.setBackpressureShedPercent(50);
+        logzioLogbackAppender.setBackpressureBlockTimeoutMs(20);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        for (int i = 0; i < 8; i++) {
+            testLogger.info("Info " + i);
+        }
+        for (int i = 0; i < 6; i++) {
+            testLogger.warn("Warn " + i);
+        }
+        assertThat(logzioLogbackAppender.getQueueFillPercent()).isEqualTo(100);
+
+        logzioLogbackAppender.stop();
+        mockListener.assertNumberOfReceivedMsgs(10);
+        mockListener.assertLogReceivedIs("Info 4", token, type, loggerName, Level.INFO.levelStr);
+        mockListener.assertLogReceivedIs("Warn 4", token, type, loggerName, Level.WARN.levelStr);
+    }
+
+    @Test
+    public void backpressureOnlyHoldsBackTheEventsOfTheFullShard() {
+        String token = "offHeapShardBackpressureToken";
+        String type = random(8);
+        String billingType = "billingType" + random(8);
+        String loggerName = "offHeapShardBackpressure" + random(8);
+        int drainTimeout = 60;
+
+        logzioLogbackAppender.setInMemoryLogsCountCapacity(10);
+        logzioLogbackAppender.setBackpressure(true);
+        logzioLogbackAppender.setBackpressureShedPercent(50);
+        logzioLogbackAppender.setShardBy("logger");
+        logzioLogbackAppender.setShards("com.acme.billing=" + billingType);
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        String billingLoggerName = "com.acme.billing.Invoices" + random(8);
+        ch.qos.logback.classic.Logger billingLogger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(billingLoggerName);
+        billingLogger.addAppender(logzioLogbackAppender);
+        billingLogger.setAdditive(false);
+
+        for (int i = 0; i < 10; i++) {
+            billingLogger.info("Billing " + i);
+        }
+        // The billing shard's queue sheds INFO events, the default one is empty
+        testLogger.info("Default");
+
+        logzioLogbackAppender.stop();
+        mockListener.assertNumberOfReceivedMsgs(6);
+        mockListener.assertLogReceivedIs("Billing 4", token, billingType, billingLoggerName, Level.INFO.levelStr);
+        mockListener.assertLogReceivedIs("Default", token, type, loggerName, Level.INFO.levelStr);
+    }
+
+    @Test
+    public void offHeapQueueIsShippedOnStop() {
+        String token = "offHeapShippedOnStopToken";
+        String type = random(8);
+        String loggerName = "offHeapShippedOnStop" + random(8);
+        int drainTimeout = 60;
+
+        Logger testLogger = createLogger(logzioLogbackAppender, token, type, loggerName, drainTimeout, false, false, null, false);
+        for (int i = 0; i < 100; i++) {
+            testLogger.info("Off-heap log line " + i);
+        }
+
+        logzioLogbackAppender.stop();
+        mockListener.assertNumberOfReceivedMsgs(100);
+        mockListener.assertLogReceivedIs("Off-heap log line 99", token, type, loggerName, Level.INFO.levelStr);
+    }
+}
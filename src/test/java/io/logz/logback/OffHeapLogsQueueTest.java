@@ -0,0 +1,162 @@
+package io.logz.logback;
+
+import io.logz.sender.SenderStatusReporter;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffHeapLogsQueueTest {
+
+    private final List<String> warnings = new ArrayList<>();
+
+    @Test
+    public void keepsOrderAcrossSegments() {
+        OffHeapLogsQueue queue = new OffHeapLogsQueue(LogzioLogbackAppender.DONT_LIMIT_CAPACITY,
+                LogzioLogbackAppender.DONT_LIMIT_CAPACITY, reporter());
+        byte[] padding = new byte[1000];
+        Arrays.fill(padding, (byte) 'x');
+        String suffix = new String(padding, StandardCharsets.US_ASCII);
+        // Enough logs to fill a few segments, none of them splitting evenly
+        int count = 3 * OffHeapLogsQueue.SEGMENT_SIZE / 1000;
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(bytes(i + suffix));
+        }
+        assertThat(queue.size()).isEqualTo(count);
+
+        for (int i = 0; i < count; i++) {
+            assertThat(string(queue.dequeue())).isEqualTo(i + suffix);
+        }
+        assertThat(queue.dequeue()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.sizeInBytes()).isZero();
+    }
+
+    @Test
+    public void holdsLogsLargerThanASegment() {
+        OffHeapLogsQueue queue = new OffHeapLogsQueue(LogzioLogbackAppender.DONT_LIMIT_CAPACITY,
+                LogzioLogbackAppender.DONT_LIMIT_CAPACITY, reporter());
+        byte[] large = new byte[OffHeapLogsQueue.SEGMENT_SIZE + 10];
+        Arrays.fill(large, (byte) 'a');
+
+        queue.enqueue(bytes("before"));
+        queue.enqueue(large);
+        queue.enqueue(bytes("after"));
+
+        assertThat(string(queue.dequeue())).isEqualTo("before");
+        assertThat(queue.dequeue()).isEqualTo(large);
+        assertThat(string(queue.dequeue())).isEqualTo("after");
+        assertThat(queue.dequeue()).isNull();
+    }
+
+    @Test
+    public void dropsLogsOverCapacityAndReportsOnce() {
+        OffHeapLogsQueue queue = new OffHeapLogsQueue(10, LogzioLogbackAppender.DONT_LIMIT_CAPACITY, reporter());
+
+        queue.enqueue(bytes("12345"));
+        queue.enqueue(bytes("67890"));
+        queue.enqueue(bytes("dropped"));
+        queue.enqueue(bytes("dropped"));
+
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(warnings).hasSize(1);
+        assertThat(warnings.get(0)).contains("off-heap memory threshold");
+
+        assertThat(string(queue.dequeue())).isEqualTo("12345");
+        queue.enqueue(bytes("abcde"));
+        assertThat(string(queue.dequeue())).isEqualTo("67890");
+        assertThat(string(queue.dequeue())).isEqualTo("abcde");
+    }
+
+    @Test
+    public void dropsLogsOverCountLimit() {
+        OffHeapLogsQueue queue = new OffHeapLogsQueue(LogzioLogbackAppender.DONT_LIMIT_CAPACITY, 2, reporter());
+
+        queue.enqueue(bytes("first"));
+        queue.enqueue(bytes("second"));
+        queue.enqueue(bytes("third"));
+
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(warnings).hasSize(1);
+        assertThat(warnings.get(0)).contains("logs counter threshold of 2 logs");
+    }
+
+    @Test
+    public void clearEmptiesTheQueue() {
+        OffHeapLogsQueue queue = new OffHeapLogsQueue(LogzioLogbackAppender.DONT_LIMIT_CAPACITY,
+                LogzioLogbackAppender.DONT_LIMIT_CAPACITY, reporter());
+        queue.enqueue(bytes("first"));
+        queue.enqueue(bytes("second"));
+
+        queue.clear();
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.dequeue()).isNull();
+
+        queue.enqueue(bytes("third"));
+        assertThat(string(queue.dequeue())).isEqualTo("third");
+        queue.close();
+    }
+
+    @Test
+    public void fillLevelFollowsTheTightestLimit() {
+        OffHeapLogsQueue queue = new OffHeapLogsQueue(100, 4, reporter());
+        assertThat(queue.fillLevel()).isZero();
+
+        queue.enqueue(bytes("0123456789"));
+        assertThat(queue.fillLevel()).isEqualTo(0.25);
+        queue.enqueue(new byte[50]);
+        assertThat(queue.fillLevel()).isEqualTo(0.6);
+        queue.dequeue();
+        queue.dequeue();
+        assertThat(queue.fillLevel()).isZero();
+        queue.close();
+    }
+
+    @Test
+    public void readsTheDirectMemoryLimit() {
+        // No -XX:MaxDirectMemorySize in the tests, the limit is the max heap size
+        assertThat(OffHeapLogsQueue.maxDirectMemory()).isEqualTo(Runtime.getRuntime().maxMemory());
+    }
+
+    private SenderStatusReporter reporter() {
+        return new SenderStatusReporter() {
+            @Override
+            public void error(String msg) {
+            }
+
+            @Override
+            public void error(String msg, Throwable e) {
+            }
+
+            @Override
+            public void warning(String msg) {
+                warnings.add(msg);
+            }
+
+            @Override
+            public void warning(String msg, Throwable e) {
+                warnings.add(msg);
+            }
+
+            @Override
+            public void info(String msg) {
+            }
+
+            @Override
+            public void info(String msg, Throwable e) {
+            }
+        };
+    }
+
+    private static byte[] bytes(String log) {
+        return log.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] log) {
+        return new String(log, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,193 @@
+package io.logz.logback;
+
+import io.logz.sender.HttpsRequestConfiguration;
+import io.logz.sender.SenderStatusReporter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelBulkShipperTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final LogzioAppenderMetrics metrics = new LogzioAppenderMetrics(() -> -1, () -> -1, () -> 0, () -> 0);
+
+    @Test
+    public void aLaterBulkShippedFirstIsOnlyAcknowledgedOnceTheEarlierOneWentThrough() throws Exception {
+        MappedSegmentLogsQueue queue = open();
+        queue.enqueue(log('a'));
+        queue.enqueue(log('b'));
+        CountDownLatch laterShipped = new CountDownLatch(1);
+        ParallelBulkShipper shipper = shipper(queue, new FakeTransport(body -> {
+            if (body.startsWith("a")) {
+                // The first bulk fails once the second one was shipped
+                laterShipped.await(5, TimeUnit.SECONDS);
+                Thread.sleep(100);
+                return HttpURLConnection.HTTP_UNAVAILABLE;
+            }
+            laterShipped.countDown();
+            return HttpURLConnection.HTTP_OK;
+        }));
+
+        shipper.run();
+        shipper.stop();
+        assertThat(sent).hasSize(2);
+        // Neither is consumed, the failed bulk comes first
+        assertThat(reopen(queue).size()).isEqualTo(2);
+    }
+
+    @Test
+    public void aFailedBulkIsSentAgainFirstThenAcknowledgedWithTheOnesAfterIt() throws Exception {
+        MappedSegmentLogsQueue queue = open();
+        queue.enqueue(log('a'));
+        queue.enqueue(log('b'));
+        CountDownLatch laterShipped = new CountDownLatch(1);
+        FakeTransport transport = new FakeTransport(body -> {
+            if (body.startsWith("a")) {
+                laterShipped.await(5, TimeUnit.SECONDS);
+                throw new IllegalArgumentException("Not an IOException");
+            }
+            laterShipped.countDown();
+            return HttpURLConnection.HTTP_OK;
+        });
+        ParallelBulkShipper shipper = shipper(queue, transport);
+
+        shipper.run();
+        transport.responses = body -> HttpURLConnection.HTTP_OK;
+        queue.enqueue(log('c'));
+        shipper.run();
+        shipper.stop();
+
+        // The shipped bulk is not sent again, the failed one is, before anything new is dequeued
+        assertThat(sent).hasSize(4);
+        assertThat(sent.get(2)).startsWith("a");
+        assertThat(sent.get(3)).startsWith("c");
+        assertThat(reopen(queue).size()).isZero();
+        assertThat(metrics.getBulkSendCount()).isEqualTo(4);
+        assertThat(metrics.getDrainCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void retriesAreCountedByTheShipper() throws Exception {
+        MappedSegmentLogsQueue queue = open();
+        queue.enqueue(log('a'));
+        List<Integer> responses = new CopyOnWriteArrayList<>(Arrays.asList(HttpURLConnection.HTTP_UNAVAILABLE,
+                HttpURLConnection.HTTP_UNAVAILABLE, HttpURLConnection.HTTP_OK));
+        ParallelBulkShipper shipper = shipper(queue, new FakeTransport(body -> responses.remove(0)),
+                configuration(3));
+
+        shipper.run();
+        shipper.stop();
+
+        assertThat(sent).hasSize(3);
+        assertThat(metrics.getSendRetries()).isEqualTo(2);
+        assertThat(metrics.getBulkSendCount()).isEqualTo(1);
+    }
+
+    private MappedSegmentLogsQueue open() throws IOException {
+        return new MappedSegmentLogsQueue(folder.getRoot(), MappedSegmentLogsQueue.DEFAULT_SEGMENT_SIZE,
+                MappedSegmentLogsQueue.SyncPolicy.NONE, 1, LogzioLogbackAppender.DONT_LIMIT_CAPACITY,
+                LogzioLogbackAppender.DONT_LIMIT_CAPACITY, reporter());
+    }
+
+    private MappedSegmentLogsQueue reopen(MappedSegmentLogsQueue queue) throws IOException {
+        queue.close();
+        return open();
+    }
+
+    private ParallelBulkShipper shipper(MappedSegmentLogsQueue queue, BulkTransport transport) throws Exception {
+        return shipper(queue, transport, configuration(1));
+    }
+
+    private ParallelBulkShipper shipper(MappedSegmentLogsQueue queue, BulkTransport transport,
+                                        HttpsRequestConfiguration configuration) {
+        // One log per bulk
+        AdaptiveBatcher batcher = new AdaptiveBatcher(1000, 1000, () -> { }, System::nanoTime);
+        return new ParallelBulkShipper(queue, configuration, transport, BulkCompressor.Codec.NONE,
+                BulkCompressor.DEFAULT_LEVEL, 2, batcher, ParallelBulkShipper.newConnectionPool(2, "test"),
+                metrics, reporter());
+    }
+
+    private static byte[] log(char content) {
+        byte[] log = new byte[1000];
+        Arrays.fill(log, (byte) content);
+        return log;
+    }
+
+    private static HttpsRequestConfiguration configuration(int maxRetries) throws Exception {
+        return HttpsRequestConfiguration.builder()
+                .setLogzioListenerUrl("http://localhost:1")
+                .setLogzioToken("shipperToken")
+                .setLogzioType("shipperType")
+                .setMaxRetriesAttempts(maxRetries)
+                .setInitialWaitBeforeRetryMS(1)
+                .build();
+    }
+
+    private interface Responses {
+        int respond(String body) throws Exception;
+    }
+
+    private final class FakeTransport extends BulkTransport {
+        private volatile Responses responses;
+
+        private FakeTransport(Responses responses) throws Exception {
+            super(configuration(1), reporter());
+            this.responses = responses;
+        }
+
+        @Override
+        int send(BulkCompressor compressor) throws IOException, InterruptedException {
+            String body = new String(compressor.body(), 0, compressor.bodySize(), StandardCharsets.UTF_8);
+            sent.add(body);
+            try {
+                return responses.respond(body);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static SenderStatusReporter reporter() {
+        return new SenderStatusReporter() {
+            @Override
+            public void error(String msg) {
+            }
+
+            @Override
+            public void error(String msg, Throwable e) {
+            }
+
+            @Override
+            public void warning(String msg) {
+            }
+
+            @Override
+            public void warning(String msg, Throwable e) {
+            }
+
+            @Override
+            public void info(String msg) {
+            }
+
+            @Override
+            public void info(String msg, Throwable e) {
+            }
+        };
+    }
+}
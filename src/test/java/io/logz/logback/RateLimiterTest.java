@@ -0,0 +1,81 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong(-TimeUnit.SECONDS.toNanos(100));
+
+    @Test
+    public void levelBucketRefillsOverTime() {
+        RateLimiter limiter = new RateLimiter(Collections.singletonMap(Level.INFO, 10), Collections.emptyMap(), now::get);
+
+        assertThat(admitted(limiter, event("com.acme.Service", Level.INFO), 20)).isEqualTo(10);
+        assertThat(admitted(limiter, event("com.acme.Service", Level.WARN), 20)).isEqualTo(20);
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+        assertThat(admitted(limiter, event("com.acme.Service", Level.INFO), 20)).isEqualTo(3);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertThat(admitted(limiter, event("com.acme.Service", Level.INFO), 20)).isEqualTo(10);
+        assertThat(limiter.drainSuppressed()).containsExactly(entry("level INFO", 37L));
+        assertThat(limiter.drainSuppressed()).isEmpty();
+    }
+
+    @Test
+    public void loggerBucketOfTheLongestPrefix() {
+        Map<String, Integer> loggerRates = new LinkedHashMap<>();
+        loggerRates.put("com.acme", 5);
+        loggerRates.put("com.acme.noisy", 2);
+        RateLimiter limiter = new RateLimiter(Collections.emptyMap(), loggerRates, now::get);
+
+        assertThat(admitted(limiter, event("com.acme.noisy.Poller", Level.ERROR), 10)).isEqualTo(2);
+        assertThat(admitted(limiter, event("com.acme.Service", Level.INFO), 10)).isEqualTo(5);
+        assertThat(admitted(limiter, event("com.acmeco.Service", Level.INFO), 10)).isEqualTo(10);
+        assertThat(admitted(limiter, event("com.acme", Level.INFO), 10)).isZero();
+        assertThat(limiter.drainSuppressed())
+                .containsExactly(entry("logger com.acme.noisy", 8L), entry("logger com.acme", 15L));
+    }
+
+    @Test
+    public void eventsGoThroughTheLoggerBucketThenTheLevelBucket() {
+        RateLimiter limiter = new RateLimiter(Collections.singletonMap(Level.DEBUG, 3),
+                Collections.singletonMap("com.acme.noisy", 5), now::get);
+
+        assertThat(admitted(limiter, event("com.acme.noisy.Poller", Level.DEBUG), 10)).isEqualTo(3);
+        assertThat(admitted(limiter, event("com.acme.noisy.Poller", Level.INFO), 10)).isEqualTo(2);
+        assertThat(admitted(limiter, event("com.acme.Service", Level.DEBUG), 10)).isZero();
+    }
+
+    private static int admitted(RateLimiter limiter, LoggingEvent event, int attempts) {
+        int admitted = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (limiter.tryAcquire(event)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    private static Map.Entry<String, Long> entry(String bucket, long count) {
+        return new AbstractMap.SimpleEntry<>(bucket, count);
+    }
+
+    private static LoggingEvent event(String loggerName, Level level) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerName(loggerName);
+        event.setLevel(level);
+        return event;
+    }
+}
@@ -0,0 +1,35 @@
+package io.logz.logback;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SelfLoggingFilterTest {
+
+    @Test
+    public void excludesTheSenderByDefault() {
+        SelfLoggingFilter filter = new SelfLoggingFilter(Collections.emptyList());
+
+        assertThat(filter.isExcluded("io.logz.sender.LogzioSender")).isTrue();
+        assertThat(filter.isExcluded("com.acme.shaded.io.logz.sender.HttpsSyncSender")).isTrue();
+        assertThat(filter.isExcluded("io.logz.senders.Other")).isTrue();
+        assertThat(filter.isExcluded("io.logz.logback.MyClass")).isFalse();
+        assertThat(filter.isExcluded("com.acme.Service")).isFalse();
+    }
+
+    @Test
+    public void excludesConfiguredPrefixes() {
+        SelfLoggingFilter filter = new SelfLoggingFilter(Arrays.asList(" org.apache.http ", "", "io.logz.sender"));
+
+        assertThat(filter.getExcludedPrefixes()).containsExactly("io.logz.sender", "org.apache.http");
+        assertThat(filter.isExcluded("org.apache.http.wire")).isTrue();
+        assertThat(filter.isExcluded("org.apache.httpclient")).isTrue();
+        assertThat(filter.isExcluded("org.apache.kafka.Producer")).isFalse();
+        // Cached decisions give the same answers
+        assertThat(filter.isExcluded("org.apache.http.wire")).isTrue();
+        assertThat(filter.isExcluded("org.apache.kafka.Producer")).isFalse();
+    }
+}
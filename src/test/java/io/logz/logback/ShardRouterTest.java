@@ -0,0 +1,62 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShardRouterTest {
+
+    @Test
+    public void loggerRouteOfTheLongestPrefix() {
+        Map<String, String> routes = new LinkedHashMap<>();
+        routes.put("com.acme", "acme");
+        routes.put("com.acme.billing", "billing");
+        ShardRouter<String> router = new ShardRouter<>(ShardRouter.Key.LOGGER, null, routes, "default");
+
+        assertThat(router.route(event("com.acme.billing.Invoices", Level.INFO))).isEqualTo("billing");
+        assertThat(router.route(event("com.acme.Service", Level.INFO))).isEqualTo("acme");
+        assertThat(router.route(event("com.acme", Level.INFO))).isEqualTo("acme");
+        assertThat(router.route(event("com.acmeco.Service", Level.INFO))).isEqualTo("default");
+        // Cached per logger name
+        assertThat(router.route(event("com.acme.billing.Invoices", Level.INFO))).isEqualTo("billing");
+    }
+
+    @Test
+    public void levelRouteInAnyCase() {
+        ShardRouter<String> router = new ShardRouter<>(ShardRouter.Key.LEVEL, null,
+                Collections.singletonMap("error", "errors"), "default");
+
+        assertThat(router.route(event("com.acme.Service", Level.ERROR))).isEqualTo("errors");
+        assertThat(router.route(event("com.acme.Service", Level.WARN))).isEqualTo("default");
+    }
+
+    @Test
+    public void mdcRouteOfTheExactValue() {
+        ShardRouter<String> router = new ShardRouter<>(ShardRouter.Key.MDC, "tenant",
+                Collections.singletonMap("acme", "acme"), "default");
+
+        assertThat(router.route(event("com.acme.Service", Level.INFO, Collections.singletonMap("tenant", "acme"))))
+                .isEqualTo("acme");
+        assertThat(router.route(event("com.acme.Service", Level.INFO, Collections.singletonMap("tenant", "acmeco"))))
+                .isEqualTo("default");
+        assertThat(router.route(event("com.acme.Service", Level.INFO))).isEqualTo("default");
+    }
+
+    private static LoggingEvent event(String loggerName, Level level) {
+        return event(loggerName, level, Collections.emptyMap());
+    }
+
+    private static LoggingEvent event(String loggerName, Level level, Map<String, String> mdc) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerName(loggerName);
+        event.setLevel(level);
+        event.setMDCPropertyMap(mdc);
+        return event;
+    }
+}
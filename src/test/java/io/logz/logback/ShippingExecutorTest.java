@@ -0,0 +1,91 @@
+package io.logz.logback;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShippingExecutorTest {
+
+    private final ShippingExecutor executor = ShippingExecutor.create("test");
+
+    @After
+    public void shutdown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void tasksRunOffTheTimerThread() throws Exception {
+        ScheduledFuture<String> thread = executor.schedule(() -> Thread.currentThread().getName(), 10, TimeUnit.MILLISECONDS);
+
+        assertThat(thread.get(5, TimeUnit.SECONDS)).startsWith("logzio-ship-test-").isNotEqualTo("logzio-timer-test");
+    }
+
+    @Test
+    public void fixedDelayRunsNeverOverlap() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch runs = new CountDownLatch(5);
+        ScheduledFuture<?> task = executor.scheduleWithFixedDelay(() -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            sleep(20);
+            running.decrementAndGet();
+            runs.countDown();
+        }, 0, 1, TimeUnit.MILLISECONDS);
+
+        assertThat(runs.await(5, TimeUnit.SECONDS)).isTrue();
+        task.cancel(false);
+        assertThat(overlaps.get()).isZero();
+    }
+
+    @Test
+    public void cancelledTaskRunsNoMore() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        ScheduledFuture<?> task = executor.scheduleAtFixedRate(() -> {
+            runs.incrementAndGet();
+            started.countDown();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(task.cancel(false)).isTrue();
+        int runsWhenCancelled = runs.get();
+        sleep(100);
+        assertThat(task.isCancelled()).isTrue();
+        assertThat(runs.get()).isLessThanOrEqualTo(runsWhenCancelled + 1);
+    }
+
+    @Test
+    public void slowTasksDoNotHoldBackTheOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        ScheduledFuture<Boolean> quick = executor.schedule(() -> true, 10, TimeUnit.MILLISECONDS);
+
+        assertThat(quick.get(5, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import net.logstash.logback.encoder.LogstashEncoder;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StreamingEncoderWriterTest {
+    private final LoggerContext loggerContext = new LoggerContext();
+    private final Logger logger = loggerContext.getLogger("streamingEncoderWriter");
+
+    @Test
+    public void writesWhatTheEncoderEncodes() throws Exception {
+        LogstashEncoder encoder = new LogstashEncoder();
+        encoder.setContext(loggerContext);
+        encoder.start();
+        StreamingEncoderWriter writer = StreamingEncoderWriter.forEncoder(encoder);
+        assertThat(writer).isNotNull();
+
+        LoggingEvent longEvent = event(String.join("", Collections.nCopies(5000, "long message ")));
+        LoggingEvent shortEvent = event("short message");
+        longEvent.setMDCPropertyMap(Collections.emptyMap());
+        shortEvent.setMDCPropertyMap(Collections.singletonMap("mdcKey", "mdcValue"));
+
+        // The buffer is reused, a short event after a long one must not carry leftovers
+        assertThat(writer.write(longEvent)).isEqualTo(encoder.encode(longEvent));
+        assertThat(writer.write(shortEvent)).isEqualTo(encoder.encode(shortEvent));
+    }
+
+    @Test
+    public void encodersThatCantStreamAreLeftAsIs() {
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        assertThat(StreamingEncoderWriter.forEncoder(encoder)).isNull();
+        assertThat(StreamingEncoderWriter.forEncoder(null)).isNull();
+    }
+
+    private LoggingEvent event(String message) {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null, null);
+        event.setTimeStamp(1700000000123L);
+        event.setThreadName("main");
+        return event;
+    }
+}
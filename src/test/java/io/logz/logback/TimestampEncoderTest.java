@@ -0,0 +1,71 @@
+package io.logz.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimestampEncoderTest {
+    private static final DateTimeFormatter MILLIS = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter MICROS = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSSSSS'Z'").withZone(ZoneOffset.UTC);
+    private final Logger logger = new LoggerContext().getLogger("timestampEncoder");
+
+    @Test
+    public void millisAcrossSecondsAndEdges() {
+        TimestampEncoder encoder = new TimestampEncoder(TimestampEncoder.Precision.MILLIS);
+        Instant[] instants = {
+                Instant.parse("2024-02-29T23:59:59.999Z"),
+                Instant.parse("2024-03-01T00:00:00Z"),
+                Instant.parse("2024-03-01T00:00:00.007Z"),
+                Instant.parse("2024-03-01T00:00:00.070Z"),
+                Instant.EPOCH,
+                Instant.parse("1969-12-31T23:59:59.001Z"),
+                Instant.parse("2024-03-01T00:00:00.123456789Z")
+        };
+        for (Instant instant : instants) {
+            LoggingEvent event = event(instant);
+            String expected = MILLIS.format(instant);
+            assertThat(encoder.format(event)).isEqualTo(expected);
+            assertThat(written(encoder, event)).isEqualTo("\"" + expected + "\"");
+            // Same second again, served from the cached prefix
+            assertThat(encoder.format(event)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void microsKeepsSubMillisecondOrdering() {
+        TimestampEncoder encoder = new TimestampEncoder(TimestampEncoder.Precision.MICROS);
+        Instant first = Instant.parse("2024-03-01T10:15:30.123456789Z");
+        Instant second = Instant.parse("2024-03-01T10:15:30.123457Z");
+
+        assertThat(encoder.format(event(first))).isEqualTo("2024-03-01T10:15:30.123456Z");
+        assertThat(written(encoder, event(second))).isEqualTo("\"2024-03-01T10:15:30.123457Z\"");
+        assertThat(encoder.format(event(Instant.parse("2024-03-01T10:15:31Z")))).isEqualTo(MICROS.format(Instant.parse("2024-03-01T10:15:31Z")));
+    }
+
+    @Test
+    public void precisionFromString() {
+        assertThat(TimestampEncoder.Precision.fromString(" Micros ")).isEqualTo(TimestampEncoder.Precision.MICROS);
+        assertThat(TimestampEncoder.Precision.fromString("millis")).isEqualTo(TimestampEncoder.Precision.MILLIS);
+    }
+
+    private static String written(TimestampEncoder encoder, LoggingEvent event) {
+        ByteArrayBuilder out = new ByteArrayBuilder(4);
+        encoder.write(out, event);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private LoggingEvent event(Instant instant) {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "message", null, null);
+        event.setInstant(instant);
+        return event;
+    }
+}